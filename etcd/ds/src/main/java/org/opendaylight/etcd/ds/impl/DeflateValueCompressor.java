@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * {@link EtcdValueCompressor} using the JDK's Deflate, without any header or checksum.
+ */
+@ThreadSafe
+public final class DeflateValueCompressor implements EtcdValueCompressor {
+
+    public static final DeflateValueCompressor INSTANCE = new DeflateValueCompressor();
+
+    static final byte ID = 1;
+
+    // Deflater and Inflater hold native memory and are expensive to create, so each thread re-uses its own
+    private static final ThreadLocal<Deflater> DEFLATERS =
+        ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private DeflateValueCompressor() { }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] bytes, int offset, int length) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(bytes, offset, length);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2);
+        byte[] chunk = new byte[Math.min(Math.max(length, 64), 16 * 1024)];
+        while (!deflater.finished()) {
+            int chunkLength = deflater.deflate(chunk);
+            compressed.write(chunk, 0, chunkLength);
+        }
+        return compressed.toByteArray();
+    }
+
+    @Override
+    public byte[] decompress(byte[] bytes, int offset, int length, int uncompressedLength) throws IOException {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        // the extra dummy byte is required by the "nowrap" mode of Inflater, see its constructor's javadoc
+        byte[] input = new byte[length + 1];
+        System.arraycopy(bytes, offset, input, 0, length);
+        inflater.setInput(input);
+        byte[] uncompressed = new byte[uncompressedLength];
+        try {
+            int inflated = inflater.inflate(uncompressed);
+            if (inflated != uncompressedLength || !inflater.finished()) {
+                throw new IOException("Inflated " + inflated + " instead of " + uncompressedLength + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Inflate failed", e);
+        }
+        return uncompressed;
+    }
+
+    @Override
+    public String toString() {
+        return "Deflate";
+    }
+}
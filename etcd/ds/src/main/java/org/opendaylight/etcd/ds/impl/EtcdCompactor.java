@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.opendaylight.etcd.ds.impl.EtcdDataStore.NODES_PREFIX;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.Longs;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.cluster.Member;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.PutOption;
+import java.net.URI;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.infrautils.utils.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compacts the revisions in etcd which no node needs anymore, and defragments the etcd members in an off-peak window,
+ * so that etcd's history, and thus its database, does not grow forever.
+ *
+ * <p>Each node publishes the oldest revision it still needs under its own key in a registry, with a lease, so that
+ * the keys of nodes which are gone expire.  The node whose key sorts first compacts up to the oldest revision of all
+ * registered nodes, and defragments; the others only publish.  A node which starts while another one compacts (and
+ * thus before it has published) may find the revision it wants to watch from compacted, and then resyncs.
+ *
+ * @see EtcdDataStoreConfig#getCompactionInterval()
+ */
+class EtcdCompactor implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdCompactor.class);
+
+    // the same (unsigned) order as etcd's
+    private static final Comparator<byte[]> KEY_ORDER = UnsignedBytes.lexicographicalComparator();
+
+    // how many intervals a node may miss publishing before its key expires
+    private static final int LEASE_INTERVALS = 3;
+
+    private final String name;
+    private final Client client;
+    private final ByteSequence nodeKey;
+    private final Duration interval;
+    private final Optional<LocalTime> defragmentationWindowStart;
+    private final Duration defragmentationWindowLength;
+    private final LongSupplier neededRevision;
+    private final ScheduledExecutorService scheduler;
+
+    // only written by the scheduler's single thread
+    private volatile long leaseId;
+    private long compactedRevision;
+    private @Nullable LocalDate lastDefragmentationDate;
+
+    /**
+     * Constructor.
+     *
+     * @param neededRevision supplies the oldest revision which this node still needs
+     */
+    EtcdCompactor(String name, Client client, EtcdDataStoreConfig config, LongSupplier neededRevision) {
+        this.name = name;
+        this.client = requireNonNull(client, "client");
+        // unique even among nodes with the same name
+        this.nodeKey = ByteSequences.append(NODES_PREFIX, (name + "-" + UUID.randomUUID()).getBytes(UTF_8));
+        this.interval = config.getCompactionInterval()
+                .orElseThrow(() -> new IllegalArgumentException("no compaction interval: " + config));
+        this.defragmentationWindowStart = config.getDefragmentationWindowStart();
+        this.defragmentationWindowLength = config.getDefragmentationWindowLength();
+        this.neededRevision = neededRevision;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor("EtcdDB-compactor", LOG);
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::run, 0, interval.toMillis(), MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        long lease = leaseId;
+        if (lease != 0) {
+            // so that the others don't have to wait for our key to expire before compacting what we needed
+            try {
+                EtcdServerUtils.await(client.getLeaseClient().revoke(lease));
+            } catch (EtcdException e) {
+                LOG.info("{} failed to revoke lease {}, its key will expire instead", name, lease, e);
+            }
+        }
+    }
+
+    // an exception would stop the scheduling of all further runs
+    @SuppressWarnings("checkstyle:IllegalCatch")
+    private void run() {
+        try {
+            publish();
+            List<KeyValue> registry = EtcdServerUtils.await(client.getKVClient().get(NODES_PREFIX,
+                    GetOption.newBuilder().withPrefix(NODES_PREFIX).build())).getKvs();
+            OptionalLong revision = compactionRevision(registry, nodeKey);
+            if (!revision.isPresent()) {
+                return;
+            }
+            if (revision.getAsLong() > compactedRevision) {
+                compact(revision.getAsLong());
+            }
+            LocalDateTime now = LocalDateTime.now();
+            if (defragmentationWindowStart.isPresent() && !now.toLocalDate().equals(lastDefragmentationDate)
+                    && isInWindow(now, defragmentationWindowStart.get(), defragmentationWindowLength)) {
+                lastDefragmentationDate = now.toLocalDate();
+                defragment();
+            }
+        } catch (EtcdException | RuntimeException e) {
+            LOG.warn("{} compaction failed, will retry in {}", name, interval, e);
+        }
+    }
+
+    private void publish() throws EtcdException {
+        if (leaseId == 0 || !isKeptAlive()) {
+            leaseId = EtcdServerUtils.await(client.getLeaseClient().grant(
+                    Math.max(1, interval.getSeconds() * LEASE_INTERVALS))).getID();
+        }
+        EtcdServerUtils.await(client.getKVClient().put(nodeKey,
+                ByteSequences.fromBytes(Longs.toByteArray(neededRevision.getAsLong())),
+                PutOption.newBuilder().withLeaseId(leaseId).build()));
+    }
+
+    private boolean isKeptAlive() {
+        try {
+            return EtcdServerUtils.await(client.getLeaseClient().keepAliveOnce(leaseId)).getTTL() > 0;
+        } catch (EtcdException e) {
+            LOG.info("{} lease {} expired, will register again", name, leaseId, e);
+            return false;
+        }
+    }
+
+    private void compact(long revision) throws EtcdException {
+        try {
+            EtcdServerUtils.await(client.getKVClient().compact(revision));
+            LOG.info("{} compacted etcd up to revision {}", name, revision);
+        } catch (EtcdException e) {
+            // typically because another node, which was the first until a moment ago, has already compacted further
+            if (!EtcdServerUtils.isRevisionAvailable(client.getKVClient(), revision)) {
+                LOG.info("{} etcd was already compacted past revision {}", name, revision);
+            } else {
+                throw e;
+            }
+        }
+        compactedRevision = revision;
+    }
+
+    private void defragment() throws EtcdException {
+        // one member after the other, because each is blocked while it's being defragmented
+        for (Member member : EtcdServerUtils.await(client.getClusterClient().listMember()).getMembers()) {
+            List<URI> endpoints = member.getClientURIs();
+            if (!endpoints.isEmpty()) {
+                LOG.info("{} defragmenting etcd member {} at {}", name, member.getName(), endpoints.get(0));
+                EtcdServerUtils.await(client.getMaintenanceClient().defragmentMember(endpoints.get(0)));
+            }
+        }
+    }
+
+    /**
+     * Whether a time is within the daily window of the given start and length; of the day of the time, or of the
+     * day before, if that window extends past midnight.
+     */
+    @VisibleForTesting
+    static boolean isInWindow(LocalDateTime now, LocalTime start, Duration length) {
+        LocalDateTime todaysStart = now.toLocalDate().atTime(start);
+        for (LocalDateTime windowStart : new LocalDateTime[] { todaysStart, todaysStart.minusDays(1) }) {
+            if (!now.isBefore(windowStart) && now.isBefore(windowStart.plus(length))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The revision up to which to compact: the oldest one needed by any of the registered nodes, if the given node
+     * is the one which compacts, i.e. its key sorts first.
+     */
+    @VisibleForTesting
+    static OptionalLong compactionRevision(List<KeyValue> registry, ByteSequence nodeKey) {
+        @Var @Nullable ByteSequence firstKey = null;
+        @Var long minRevision = Long.MAX_VALUE;
+        for (KeyValue kv : registry) {
+            if (firstKey == null || KEY_ORDER.compare(kv.getKey().getBytes(), firstKey.getBytes()) < 0) {
+                firstKey = kv.getKey();
+            }
+            minRevision = Math.min(minRevision, Longs.fromByteArray(kv.getValue().getBytes()));
+        }
+        if (!nodeKey.equals(firstKey)) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(minRevision);
+    }
+}
@@ -7,19 +7,31 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
-import static org.opendaylight.etcd.ds.impl.EtcdDataStore.CONFIGURATION_PREFIX;
-import static org.opendaylight.etcd.ds.impl.EtcdDataStore.OPERATIONAL_PREFIX;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.opendaylight.mdsal.common.api.LogicalDatastoreType.CONFIGURATION;
 import static org.opendaylight.mdsal.common.api.LogicalDatastoreType.OPERATIONAL;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
+import io.etcd.jetcd.watch.WatchEvent;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import javax.annotation.Nullable;
 import javax.inject.Provider;
 import org.opendaylight.infrautils.utils.concurrent.Executors;
+import org.opendaylight.infrautils.utils.function.CheckedConsumer;
 import org.opendaylight.mdsal.binding.api.DataBroker;
 import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
 import org.opendaylight.mdsal.dom.api.DOMDataBroker;
@@ -41,12 +53,23 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
 
     private final String name;
     private final Client etcdClient;
-    private final EtcdDataStore configDS;
-    private final EtcdDataStore operDS;
+    private final EtcdShardedDOMStore configDS;
+    private final EtcdShardedDOMStore operDS;
     private final DOMDataBroker domDataBroker;
     private final EtcdWatcher watcher;
     private final RevAwaiter revAwaiter;
     private final EtcdWatcherBlockingConsumer etcdWatcherConsumer;
+    private final EtcdWatcherSplittingConsumer splittingConsumer;
+    private final @Nullable ExecutorService watchApplyExecutor;
+    private final @Nullable EtcdGroupCommitter groupCommitter;
+    private final @Nullable EtcdDictionary dictionary;
+    private final @Nullable EtcdCompactor compactor;
+    private final EtcdServerRevisionFetcher revisionFetcher;
+    private final Optional<EtcdSnapshotFile> snapshotFile;
+    private final Duration snapshotInterval;
+    private @Nullable ScheduledExecutorService snapshotScheduler;
+    private long lastSnapshotRevision;
+    private ImmutableMap<String, Long> lastSnapshotRevisions = ImmutableMap.of();
 
     /**
      * Constructor.
@@ -58,48 +81,231 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
      * @param schemas           the DOMSchemaService
      */
     public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemas) throws Exception {
+        this(etcdClient, nodeName, schemas, EtcdDataStoreConfig.DEFAULT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param etcdClient        connection to (cluster of) etcd server/s
+     * @param nodeName          name used as prefix in logs
+     * @param schemas           the DOMSchemaService
+     * @param config            options of the etcd data stores
+     */
+    public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemas,
+            EtcdDataStoreConfig config) throws Exception {
         // choice of suitable executors originally inspired from
-        // org.opendaylight.mdsal.binding.dom.adapter.test.ConcurrentDataBrokerTestCustomizer
+        // org.opendaylight.mdsal.binding.dom.adapter.test.ConcurrentDataBrokerTestCustomizer, except that the commit
+        // coordinator is not single threaded, because the EtcdDataStore can commit transactions concurrently
         this(etcdClient, nodeName, schemas,
-                Executors.newListeningSingleThreadExecutor("EtcdDB-commitCoordinator", LOG),
-                Executors.newListeningCachedThreadPool("EtcdDB-DTCLs", LOG));
+                Executors.newListeningCachedThreadPool("EtcdDB-commitCoordinator", LOG),
+                Executors.newListeningCachedThreadPool("EtcdDB-DTCLs", LOG), config);
     }
 
     public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemaService,
             ListeningExecutorService commitCoordinatorExecutor, ListeningExecutorService dtclExecutor)
             throws Exception {
+        this(etcdClient, nodeName, schemaService, commitCoordinatorExecutor, dtclExecutor,
+                EtcdDataStoreConfig.DEFAULT);
+    }
+
+    public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemaService,
+            ListeningExecutorService commitCoordinatorExecutor, ListeningExecutorService dtclExecutor,
+            EtcdDataStoreConfig config) throws Exception {
         this.name = nodeName;
         this.etcdClient = etcdClient;
+        LOG.info("{} using {}", nodeName, config);
 
         revAwaiter = new RevAwaiter(nodeName);
+        snapshotFile = config.getSnapshotDirectory().map(directory -> new EtcdSnapshotFile(directory, nodeName));
+        snapshotInterval = config.getSnapshotInterval();
+
+        // shared by both data stores, so that their new transactions can also share revision requests
+        revisionFetcher = new EtcdServerRevisionFetcher(etcdClient.getKVClient());
+
+        // one group committer shared by both data stores, so that concurrent commits to the configuration
+        // and the operational data store can also end up in the same etcd Txn
+        groupCommitter = config.isGroupCommitEnabled() ? new EtcdGroupCommitter(nodeName,
+                etcdClient.getKVClient(), config.getGroupCommitWindow(), config.getGroupCommitMaxOps()) : null;
+
+        // also shared by both data stores, as most QNames appear in both of them
+        dictionary = config.isQNameDictionaryEnabled() ? new EtcdDictionary(nodeName, etcdClient.getKVClient()) : null;
 
         // copy/pasted from org.opendaylight.mdsal.binding.dom.adapter.test.AbstractDataBrokerTestCustomizer:
-        configDS = createConfigurationDatastore(CONFIGURATION, dtclExecutor, schemaService);
-        operDS = createConfigurationDatastore(OPERATIONAL, dtclExecutor, schemaService);
-        Map<LogicalDatastoreType, DOMStore> datastores = ImmutableMap.of(CONFIGURATION, configDS, OPERATIONAL, operDS);
-        // TODO use ConcurrentDOMDataBroker instead SerializedDOMDataBroker ?
+        configDS = createConfigurationDatastore(CONFIGURATION, dtclExecutor, schemaService, config);
+        operDS = createConfigurationDatastore(OPERATIONAL, dtclExecutor, schemaService, config);
+        Map<LogicalDatastoreType, DOMStore> datastores = ImmutableMap.of(
+                CONFIGURATION, configDS.asDOMStore(), OPERATIONAL, operDS.asDOMStore());
+        // The SerializedDOMDataBroker only serializes commits if its executor does; with a thread pool, transactions
+        // commit concurrently.  This is safe because each EtcdDataStore commit only succeeds if none of the keys it
+        // writes were modified (by this or another node) since the transaction was validated; etcd checks that
+        // atomically in the Txn, and a conflict fails the transaction with an OptimisticLockFailedException.
         domDataBroker = new SerializedDOMDataBroker(datastores, commitCoordinatorExecutor);
 
-        etcdWatcherConsumer = new EtcdWatcherBlockingConsumer(
-                new EtcdWatcherSplittingConsumer(Optional.of(revAwaiter),
-                        ImmutableMap.of(CONFIGURATION_PREFIX, configDS, OPERATIONAL_PREFIX, operDS)));
-        watcher = new EtcdWatcher(nodeName, etcdClient, EtcdDataStore.BASE_PREFIX, etcdWatcherConsumer);
+        // the dictionary must come first, so that new entries are known before the data stores decode their events
+        ImmutableMap.Builder<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> splitConsumers =
+                ImmutableMap.builder();
+        if (dictionary != null) {
+            splitConsumers.put(EtcdDataStore.DICTIONARY_PREFIX, dictionary);
+        }
+        // the registry of the compactors is read when compacting, so its changes need not be watched
+        splitConsumers.put(EtcdDataStore.NODES_PREFIX, events -> { });
+        for (EtcdShardedDOMStore store : ImmutableList.of(configDS, operDS)) {
+            for (EtcdDataStore shard : store.getShards()) {
+                splitConsumers.put(shard.getPrefix(), shard);
+            }
+        }
+        // with shards, their watch events are applied in parallel (after the dictionary's)
+        watchApplyExecutor = config.isSharded()
+                ? Executors.newListeningCachedThreadPool("EtcdDB-watchApply", LOG) : null;
+        splittingConsumer = new EtcdWatcherSplittingConsumer(Optional.of(revAwaiter), splitConsumers.build(),
+                watchApplyExecutor);
+        etcdWatcherConsumer = new EtcdWatcherBlockingConsumer(splittingConsumer);
+        watcher = new EtcdWatcher(nodeName, etcdClient, EtcdDataStore.BASE_PREFIX, etcdWatcherConsumer, this::resync,
+                config.getWatchQueueCapacity());
+
+        compactor = config.getCompactionInterval().isPresent()
+                ? new EtcdCompactor(nodeName, etcdClient, config, this::getNeededRevision) : null;
     }
 
     public void init() throws Exception {
+        if (dictionary != null) {
+            dictionary.init();
+        }
         long revNow = EtcdServerUtils.getServerRevision(etcdClient.getKVClient());
-        configDS.init(revNow);
-        operDS.init(revNow);
-        revAwaiter.update(revNow);
+        @Var long initialRev = revNow;
+        Optional<EtcdSnapshotFile.Snapshot> snapshot = loadUsableSnapshot(revNow);
+        if (snapshot.isPresent() && initFromSnapshot(snapshot.get())) {
+            initialRev = snapshot.get().getRevision();
+        } else {
+            configDS.init(revNow);
+            operDS.init(revNow);
+        }
+        revAwaiter.update(initialRev);
         // start watching for changes one revision AFTER what we got
-        watcher.start(revNow + 1);
+        watcher.start(initialRev + 1);
+
+        if (snapshotFile.isPresent()) {
+            lastSnapshotRevision = initialRev;
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor("EtcdDB-snapshot", LOG);
+            snapshotScheduler.scheduleWithFixedDelay(this::saveSnapshot, snapshotInterval.toMillis(),
+                    snapshotInterval.toMillis(), MILLISECONDS);
+        }
+        if (compactor != null) {
+            compactor.start();
+        }
+    }
+
+    /**
+     * The oldest etcd revision this node still needs: the one its watch continues from, or, if it's older, the one
+     * after its last snapshot, from which it would continue after a restart.
+     */
+    private synchronized long getNeededRevision() {
+        long watchRevision = revAwaiter.getCurrentRevision() + 1;
+        return snapshotFile.isPresent() ? Math.min(watchRevision, lastSnapshotRevision + 1) : watchRevision;
+    }
+
+    /**
+     * Brings both data stores up to the current revision, when the watch cannot catch up with them anymore.
+     */
+    private long resync() throws EtcdException {
+        long revNow = EtcdServerUtils.getServerRevision(etcdClient.getKVClient());
+        configDS.resync(revNow);
+        operDS.resync(revNow);
+        revAwaiter.update(revNow);
+        return revNow;
+    }
+
+    private Optional<EtcdSnapshotFile.Snapshot> loadUsableSnapshot(long revNow) throws EtcdException {
+        if (!snapshotFile.isPresent()) {
+            return Optional.empty();
+        }
+        Optional<EtcdSnapshotFile.Snapshot> snapshot;
+        try {
+            snapshot = snapshotFile.get().load();
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.warn("{} ignoring unreadable {}, will load everything from etcd", name, snapshotFile.get(), e);
+            return Optional.empty();
+        }
+        if (!snapshot.isPresent()) {
+            return snapshot;
+        }
+        long snapshotRev = snapshot.get().getRevision();
+        if (snapshot.get().getLatestRevision() > revNow) {
+            LOG.warn("{} ignoring snapshot of revision {} newer than etcd's current revision {} (was etcd reset?)",
+                    name, snapshot.get().getLatestRevision(), revNow);
+            return Optional.empty();
+        }
+        // the watch will have to start at the revision after the snapshot, so etcd must not have compacted it yet
+        if (snapshotRev < revNow
+                && !EtcdServerUtils.isRevisionAvailable(etcdClient.getKVClient(), snapshotRev + 1)) {
+            LOG.info("{} ignoring snapshot of revision {}, because etcd has already compacted it", name, snapshotRev);
+            return Optional.empty();
+        }
+        return snapshot;
+    }
+
+    private boolean initFromSnapshot(EtcdSnapshotFile.Snapshot snapshot) {
+        try {
+            // each data store at the revision of its own root; the watch continues after the oldest of them, and
+            // each skips the events up to its own
+            configDS.init(snapshot);
+            operDS.init(snapshot);
+            LOG.info("{} initialized from snapshot of revisions {} to {}", name, snapshot.getRevision(),
+                    snapshot.getLatestRevision());
+            return true;
+        } catch (EtcdException e) {
+            LOG.warn("{} failed to initialize from snapshot, will load everything from etcd", name, e);
+            return false;
+        }
+    }
+
+    private synchronized void saveSnapshot() {
+        // each data store reads its root together with the revision of the watch events it reflects, so that on
+        // restart it continues with exactly the events after that; re-applying events which the root already has
+        // is not harmless, as it would regress it to older data (until the watch caught up) and notify listeners again
+        Map<String, EtcdSnapshotFile.RevisionedRoot> roots = new LinkedHashMap<>();
+        roots.putAll(configDS.readRevisionedRoots());
+        roots.putAll(operDS.readRevisionedRoots());
+        Map<String, Long> revisions = Maps.transformValues(roots, EtcdSnapshotFile.RevisionedRoot::getRevision);
+        if (revisions.equals(lastSnapshotRevisions)) {
+            return;
+        }
+        try {
+            snapshotFile.get().save(roots);
+            lastSnapshotRevisions = ImmutableMap.copyOf(revisions);
+            lastSnapshotRevision = Collections.min(revisions.values());
+        } catch (IOException e) {
+            LOG.warn("{} failed to save {}", name, snapshotFile.get(), e);
+        }
     }
 
     @Override
     public void close() throws Exception {
+        if (compactor != null) {
+            compactor.close();
+        }
         if (watcher != null) {
             watcher.close();
         }
+        if (watchApplyExecutor != null) {
+            watchApplyExecutor.shutdown();
+        }
+        if (splittingConsumer != null && splittingConsumer.getUnmatchedEventsCount() > 0) {
+            LOG.info("{} dropped {} watch events of keys not under any known prefix", name,
+                    splittingConsumer.getUnmatchedEventsCount());
+        }
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdownNow();
+            // a last one, now that the watcher is closed and the data stores don't change anymore
+            saveSnapshot();
+        }
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+        if (revAwaiter != null) {
+            revAwaiter.close();
+        }
         if (operDS != null) {
             operDS.close();
         }
@@ -120,6 +326,27 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
     public TestTool getTestTool() {
         return etcdWatcherConsumer;
     }
+
+    /**
+     * Number of watch events so far of keys which belong to none of the data stores (nor the dictionary).
+     */
+    public long getUnmatchedWatchEventsCount() {
+        return splittingConsumer.getUnmatchedEventsCount();
+    }
+
+    /**
+     * Number of watch responses received from etcd but not yet applied to the data stores.
+     */
+    public int getWatchQueueDepth() {
+        return watcher.getQueueDepth();
+    }
+
+    /**
+     * How many etcd revisions the data stores are behind the latest watch response received.
+     */
+    public long getWatchRevisionLag() {
+        return watcher.getRevisionLag();
+    }
 /*
     public EtcdDataStore getConfigurationDataStore() {
         return configurationDataStore;
@@ -129,12 +356,15 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
         return operationalDataStore;
     }
 */
-    private EtcdDataStore createConfigurationDatastore(LogicalDatastoreType type,
-            ExecutorService dataTreeChangeListenerExecutor, DOMSchemaService schemaService) {
-        EtcdDataStore store = new EtcdDataStore(name, type, dataTreeChangeListenerExecutor,
-                InMemoryDOMDataStoreConfigProperties.DEFAULT_MAX_DATA_CHANGE_LISTENER_QUEUE_SIZE, etcdClient, true,
-                revAwaiter);
-        schemaService.registerSchemaContextListener(store);
-        return store;
+    private EtcdShardedDOMStore createConfigurationDatastore(LogicalDatastoreType type,
+            ExecutorService dataTreeChangeListenerExecutor, DOMSchemaService schemaService,
+            EtcdDataStoreConfig config) {
+        return new EtcdShardedDOMStore(name + "-" + type, config, shardName -> {
+            EtcdDataStore store = new EtcdDataStore(name, type, dataTreeChangeListenerExecutor,
+                    InMemoryDOMDataStoreConfigProperties.DEFAULT_MAX_DATA_CHANGE_LISTENER_QUEUE_SIZE, etcdClient, true,
+                    revAwaiter, config, revisionFetcher, groupCommitter, dictionary, shardName);
+            schemaService.registerSchemaContextListener(store);
+            return store;
+        });
     }
 }
@@ -7,33 +7,68 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
-import io.etcd.jetcd.KV;
-import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.kv.TxnResponse;
 import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchEvent.EventType;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.DecodedChange;
 import org.opendaylight.etcd.ds.impl.EtcdYangKV.EtcdTxn;
 import org.opendaylight.etcd.ds.inmemory.copypaste.InMemoryDOMDataStore;
 import org.opendaylight.etcd.utils.ByteSequences;
 import org.opendaylight.etcd.utils.KeyValues;
 import org.opendaylight.infrautils.utils.function.CheckedConsumer;
 import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
+import org.opendaylight.mdsal.common.api.OptimisticLockFailedException;
+import org.opendaylight.mdsal.common.api.TransactionCommitFailedException;
+import org.opendaylight.mdsal.dom.api.DOMDataTreeChangeListener;
 import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadTransaction;
 import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadWriteTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreTransactionChain;
 import org.opendaylight.mdsal.dom.spi.store.DOMStoreWriteTransaction;
+import org.opendaylight.yangtools.concepts.AbstractListenerRegistration;
+import org.opendaylight.yangtools.concepts.ListenerRegistration;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeCandidate;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeCandidateNode;
+import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeCandidates;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeModification;
+import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeSnapshot;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataValidationFailedException;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.ModificationType;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
 import org.opendaylight.yangtools.yang.model.api.SchemaContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,98 +85,269 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
 
     public static final ByteSequence BASE_PREFIX = ByteSequences.fromBytes(); // empty (currently; could change)
     public static final ByteSequence CONFIGURATION_PREFIX = ByteSequences.append(BASE_PREFIX, (byte) 'C'); // 67
+    // the global QName dictionary, see EtcdDictionary
+    public static final ByteSequence DICTIONARY_PREFIX    = ByteSequences.append(BASE_PREFIX, (byte) 'D'); // 68
     public static final ByteSequence OPERATIONAL_PREFIX   = ByteSequences.append(BASE_PREFIX, (byte) 'O'); // 79
+    // followed by the prefix char of the type, and the NUL terminated name of the shard, see shardPrefix()
+    public static final ByteSequence SHARDS_PREFIX        = ByteSequences.append(BASE_PREFIX, (byte) 'S'); // 83
+    // the nodes' registrations of the oldest revision they still need, see EtcdCompactor
+    public static final ByteSequence NODES_PREFIX         = ByteSequences.append(BASE_PREFIX, (byte) 'N'); // 78
 
-    // This flag could later be dynamic instead of fixed hard-coded, to optionally
-    // support very fast reads with eventual instead of strong consistency.  We could do this either
-    // globally and have different data stores (and, ultimately DataBroker), or per transaction.
-    private final boolean isStronglyConsistent = true;
+    // The consistency of new transactions, unless one is passed explicitly; see the newXYZTransaction(ReadConsistency)
+    private final ReadConsistency readConsistency;
 
+    private final ByteSequence prefix;
     private final EtcdYangKV kv;
-    private final KV kvClient;
+    private final EtcdServerRevisionFetcher revisionFetcher;
     private final RevAwaiter revAwaiter;
+    private final Object commitLock = new Object();
+    private final boolean isLocalApplyEnabled;
+    private final EtcdStorageGranularity storageGranularity;
+    private final boolean isPrefixKeyEncodingEnabled;
+    private final AtomicLong lazyTxCounter = new AtomicLong();
+
+    // in lazy loading mode, the top-level nodes loaded (its content guarded by this), else null, as everything is
+    private final @Nullable LoadedTopLevelNodes loadedNodes;
+
+    // highest etcd revision of the watch events which this data store has seen
+    @GuardedBy("this") private long watchedRevision;
+    // keys of commits which were applied locally, with their revision, until the watch has caught up with it
+    @GuardedBy("this") private final Map<ByteSequence, Long> locallyAppliedRevisions = new HashMap<>();
+    // keys of the changes of a staged commit which were applied, until the watch event of their roll forward
+    @GuardedBy("this") private final Set<ByteSequence> stagedKeys = new HashSet<>();
+    // revisions of the DataTree when canCommit() validated a modification, until prepare(); weak, because a
+    // transaction can still be aborted in between, e.g. if another data store of the same transaction failed it
+    @GuardedBy("this") private final Map<DataTreeModification, TreeRevisions> validatedRevisions = new WeakHashMap<>();
 
     private boolean hasSchemaContext = false;
     private final AtomicBoolean isInitialized = new AtomicBoolean(false);
 
     public EtcdDataStore(String name, LogicalDatastoreType type, ExecutorService dataChangeListenerExecutor,
             int maxDataChangeListenerQueueSize, Client client, boolean debugTransactions, RevAwaiter revAwaiter) {
+        this(name, type, dataChangeListenerExecutor, maxDataChangeListenerQueueSize, client, debugTransactions,
+                revAwaiter, EtcdDataStoreConfig.DEFAULT,
+                new EtcdServerRevisionFetcher(client.getKVClient()), null, null, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param shardName the name of the shard which this data store is, see
+     *                  {@link EtcdDataStoreConfig#getTopLevelNodeShards()}, or null for the default shard
+     */
+    EtcdDataStore(String name, LogicalDatastoreType type, ExecutorService dataChangeListenerExecutor,
+            int maxDataChangeListenerQueueSize, Client client, boolean debugTransactions, RevAwaiter revAwaiter,
+            EtcdDataStoreConfig config, EtcdServerRevisionFetcher revisionFetcher,
+            @Nullable EtcdGroupCommitter groupCommitter, @Nullable EtcdDictionary dictionary,
+            @Nullable String shardName) {
         // TODO InMemoryDOMDataStore creates the DataTree with a hard-coded DataTreeConfiguration, instead of by type
-        super(name + "-" + prefixChar(type), dataChangeListenerExecutor, maxDataChangeListenerQueueSize,
-                debugTransactions);
+        super(name + "-" + prefixChar(type) + (shardName != null ? "-" + shardName : ""), dataChangeListenerExecutor,
+                maxDataChangeListenerQueueSize, debugTransactions);
 
         this.revAwaiter = revAwaiter;
-        this.kvClient = client.getKVClient();
-
-        kv = new EtcdYangKV(getIdentifier(), client, prefix(type));
+        this.revisionFetcher = revisionFetcher;
+        this.isLocalApplyEnabled = config.isLocalApplyEnabled();
+        this.storageGranularity = config.getStorageGranularity();
+        this.isPrefixKeyEncodingEnabled = config.isPrefixKeyEncodingEnabled();
+        this.readConsistency = config.getReadConsistency();
+        this.loadedNodes = config.getLazyLoadingMemoryBudget().isPresent()
+                ? new LoadedTopLevelNodes(config.getLazyLoadingMemoryBudget().getAsLong()) : null;
+
+        this.prefix = shardName != null ? shardPrefix(type, shardName) : prefix(type);
+        kv = new EtcdYangKV(getIdentifier(), client, prefix, config, groupCommitter, dictionary);
     }
 
     @Override
-    @SuppressWarnings("checkstyle:MissingSwitchDefault") // conflicts with http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
     public void accept(List<WatchEvent> events) throws EtcdException {
         isInitialized();
+        long seenRevision;
+        synchronized (this) {
+            seenRevision = watchedRevision;
+        }
+        List<WatchEvent> recognizedEvents = new ArrayList<>(events.size());
+        @Var long maxModRevision = 0;
+        for (WatchEvent watchEvent : events) {
+            if (watchEvent.getKeyValue().getModRevision() <= seenRevision) {
+                // already in the content, e.g. because this was restored from a snapshot of a newer revision than
+                // another data store's, after which the watch which they share continues
+                continue;
+            }
+            if (watchEvent.getEventType() == EventType.UNRECOGNIZED) {
+                LOG.warn("{} UNRECOGNIZED watch event: {}", getIdentifier(),
+                        KeyValues.toStringable(watchEvent.getKeyValue()));
+            } else {
+                recognizedEvents.add(watchEvent);
+            }
+            maxModRevision = Math.max(maxModRevision, watchEvent.getKeyValue().getModRevision());
+        }
+        // decoding (possibly in parallel) is done before, and only the ordered apply while holding the lock
+        List<DecodedChange> changes = kv.decodeAll(recognizedEvents);
+        long batchRevision = maxModRevision;
+
         apply(mod -> {
-            for (WatchEvent watchEvent : events) {
-                switch (watchEvent.getEventType()) {
-                    case PUT:
-                        KeyValue keyValue = watchEvent.getKeyValue();
-                        kv.applyPut(mod, keyValue.getKey(), keyValue.getValue());
-                        break;
-
-                    case DELETE:
-                        kv.applyDelete(mod, watchEvent.getKeyValue().getKey());
-                        break;
-
-                    case UNRECOGNIZED:
-                        LOG.warn("{} UNRECOGNIZED watch event: {}", getIdentifier(),
-                                KeyValues.toStringable(watchEvent.getKeyValue()));
-                        break;
-
-                    // no default, as error-prone has error checking for non-exhaustive switches
+            for (DecodedChange change : changes) {
+                if (loadedNodes != null && !isLoaded(loadedNodes, change)) {
+                    continue;
                 }
+                if (change.isStaged()) {
+                    stagedKeys.add(change.getKey());
+                } else if (stagedKeys.remove(change.getKey())) {
+                    // the roll forward of a staged commit, which was already applied when its marker arrived
+                    continue;
+                }
+                if (!isSupersededByLocalApply(change.getKey(), change.getModRevision())) {
+                    change.applyTo(mod);
+                }
+            }
+            watchedRevision = Math.max(watchedRevision, batchRevision);
+            if (!locallyAppliedRevisions.isEmpty()) {
+                locallyAppliedRevisions.values().removeIf(rev -> rev <= watchedRevision);
+            }
+            if (loadedNodes != null) {
+                evict(loadedNodes, null, mod);
             }
         });
     }
 
+    /**
+     * In lazy loading mode, whether the top-level node of a change is loaded (and if so, accounts for its size); the
+     * changes of the others are skipped, as they will be read when (if ever) their top-level node is loaded.
+     */
+    private static boolean isLoaded(LoadedTopLevelNodes nodes, DecodedChange change) {
+        List<PathArgument> pathArguments = change.getPath().getPathArguments();
+        if (pathArguments.isEmpty()) {
+            return true;
+        }
+        if (!nodes.isLoaded(pathArguments.get(0))) {
+            return false;
+        }
+        nodes.changed(pathArguments.get(0), change.getSize());
+        return true;
+    }
+
+    /**
+     * Checks whether a watch event is the echo of (or older than) a commit of this data store which has already been
+     * applied locally, and thus must be skipped; otherwise we would apply it twice, or even regress to older data.
+     */
+    @GuardedBy("this")
+    private boolean isSupersededByLocalApply(ByteSequence key, long modRevision) {
+        Long localRevision = locallyAppliedRevisions.get(key);
+        if (localRevision != null && localRevision >= modRevision) {
+            LOG.debug("{} skipping watch event of revision {} already applied locally at revision {}: {}",
+                    getIdentifier(), modRevision, localRevision, ByteSequences.toStringable(key));
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public DOMStoreReadTransaction newReadOnlyTransaction() {
+        return newReadOnlyTransaction(readConsistency);
+    }
+
+    public DOMStoreReadTransaction newReadOnlyTransaction(ReadConsistency consistency) {
         isInitialized();
-        await();
+        await(consistency);
+        if (loadedNodes != null) {
+            return new EtcdLazyTransaction(nextLazyIdentifier(), this, super::newReadOnlyTransaction);
+        }
         return super.newReadOnlyTransaction();
     }
 
     @Override
     public DOMStoreReadWriteTransaction newReadWriteTransaction() {
+        return newReadWriteTransaction(readConsistency);
+    }
+
+    public DOMStoreReadWriteTransaction newReadWriteTransaction(ReadConsistency consistency) {
         isInitialized();
-        await();
+        await(consistency);
+        if (loadedNodes != null) {
+            return new EtcdLazyTransaction(nextLazyIdentifier(), this, super::newReadWriteTransaction);
+        }
         return super.newReadWriteTransaction();
     }
 
     @Override
     public DOMStoreWriteTransaction newWriteOnlyTransaction() {
+        return newWriteOnlyTransaction(readConsistency);
+    }
+
+    /**
+     * New write only transaction.  NB that even though it cannot read, the data validation on commit needs
+     * up-to-date data, so anything weaker than {@link ReadConsistency#LINEARIZABLE} risks overwriting concurrent
+     * changes which it has not seen yet.
+     */
+    public DOMStoreWriteTransaction newWriteOnlyTransaction(ReadConsistency consistency) {
         isInitialized();
-        // TODO discuss with others if this makes sense, or could indeed be optimized?
-        // It could be tempting to NOT await() for a newWriteOnlyTransaction(),
-        // but the data validation on commit needs up-to-date data, so we do.
-        await();
+        await(consistency);
+        if (loadedNodes != null) {
+            return new EtcdLazyTransaction(nextLazyIdentifier(), this, super::newWriteOnlyTransaction);
+        }
         return super.newWriteOnlyTransaction();
     }
 
-    private void await() {
-        if (isStronglyConsistent) {
-            long expectedRev;
+    @Override
+    public DOMStoreTransactionChain createTransactionChain() {
+        DOMStoreTransactionChain chain = super.createTransactionChain();
+        return loadedNodes != null ? new EtcdLazyTransaction.Chain(this, chain) : chain;
+    }
+
+    /**
+     * Registers a listener; in lazy loading mode, after loading the top-level node of its path (or, for the root,
+     * everything), which is then never evicted while it has listeners, as they would see that as a delete.
+     */
+    @Override
+    public synchronized <L extends DOMDataTreeChangeListener> ListenerRegistration<L> registerTreeChangeListener(
+            YangInstanceIdentifier treeId, L listener) {
+        LoadedTopLevelNodes nodes = loadedNodes;
+        if (nodes == null) {
+            return super.registerTreeChangeListener(treeId, listener);
+        }
+        // before init(), which loads whatever is pinned
+        if (isInitialized.get()) {
             try {
-                expectedRev = EtcdServerUtils.getServerRevision(kvClient);
+                ensureLoaded(treeId);
             } catch (EtcdException e) {
-                throw new EtcdRuntimeException(getIdentifier() + " await getServerRevision() failed", e);
+                throw new EtcdRuntimeException(getIdentifier() + " failed to load " + treeId, e);
             }
-
-            try {
-                // TODO remove the *10 here again?  It was because of a doubt on early testing.
-                revAwaiter.await(expectedRev, Duration.ofMillis(EtcdYangKV.TIMEOUT_MS * 10));
-            } catch (TimeoutException | InterruptedException e) {
-                throw new EtcdRuntimeException(getIdentifier() + " await revision failed: " + expectedRev, e);
+        }
+        List<PathArgument> pathArguments = treeId.getPathArguments();
+        if (pathArguments.isEmpty()) {
+            nodes.pinAll();
+        } else {
+            nodes.pin(pathArguments.get(0));
+        }
+        ListenerRegistration<L> registration = super.registerTreeChangeListener(treeId, listener);
+        return new AbstractListenerRegistration<L>(listener) {
+            @Override
+            protected void removeRegistration() {
+                registration.close();
+                synchronized (EtcdDataStore.this) {
+                    if (pathArguments.isEmpty()) {
+                        nodes.unpinAll();
+                    } else {
+                        nodes.unpin(pathArguments.get(0));
+                    }
+                }
             }
+        };
+    }
+
+    private void await(ReadConsistency consistency) {
+        long expectedRev;
+        try {
+            // for LOCAL, that's 0, which has always been reached already, so this does not await anything
+            expectedRev = EtcdServerUtils.await(revisionFetcher.fetchRevisionToAwait(consistency));
+        } catch (EtcdException e) {
+            throw new EtcdRuntimeException(getIdentifier() + " await getServerRevision() failed", e);
+        }
+
+        try {
+            // TODO remove the *10 here again?  It was because of a doubt on early testing.
+            revAwaiter.await(expectedRev, Duration.ofMillis(EtcdYangKV.TIMEOUT_MS * 10));
+        } catch (TimeoutException | InterruptedException e) {
+            throw new EtcdRuntimeException(getIdentifier() + " await revision failed: " + expectedRev, e);
         }
     }
 
@@ -155,10 +361,250 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         if (!hasSchemaContext) {
             throw new IllegalStateException("onGlobalContextUpdated() not yet called");
         }
-        initialLoad(rev);
+        kv.recoverStagedCommit();
+        if (loadedNodes != null) {
+            synchronized (this) {
+                // nothing is loaded until it's accessed, except for what listeners were registered on before
+                apply(mod -> mod.write(YangInstanceIdentifier.EMPTY, ImmutableNodes.containerNode(SchemaContext.NAME)));
+                watchedRevision = rev;
+                if (loadedNodes.isAllPinned()) {
+                    loadAll(loadedNodes, rev);
+                } else {
+                    for (PathArgument topLevelNode : loadedNodes.getPinned()) {
+                        ensureLoaded(YangInstanceIdentifier.create(topLevelNode));
+                    }
+                }
+            }
+        } else {
+            initialLoad(rev);
+            synchronized (this) {
+                watchedRevision = rev;
+            }
+        }
         this.isInitialized.set(true);
     }
 
+    /**
+     * Initialize from a local snapshot instead of loading everything from etcd.
+     * @param rev the etcd Revision number which the snapshot reflects
+     * @param root the root node of the snapshot
+     * @throws EtcdException if the snapshot could not be applied, e.g. because it does not match the current schema
+     */
+    void init(long rev, NormalizedNode<?, ?> root) throws EtcdException {
+        if (!hasSchemaContext) {
+            throw new IllegalStateException("onGlobalContextUpdated() not yet called");
+        }
+        kv.recoverStagedCommit();
+        try {
+            apply(mod -> mod.write(YangInstanceIdentifier.EMPTY, root));
+        } catch (IllegalArgumentException e) {
+            throw new EtcdException(getIdentifier() + " snapshot does not match the schema", e);
+        }
+        synchronized (this) {
+            watchedRevision = rev;
+        }
+        this.isInitialized.set(true);
+    }
+
+    /**
+     * Brings the content up to the given etcd revision when the watch missed the events up to it, e.g. because etcd
+     * compacted them, by applying only the difference between the content and etcd, instead of loading everything.
+     * @param rev the etcd Revision number to resync to
+     * @throws EtcdException if reading from etcd, or applying the difference, failed
+     */
+    void resync(long rev) throws EtcdException {
+        isInitialized();
+        if (loadedNodes != null) {
+            reload(loadedNodes, rev);
+            return;
+        }
+        apply(mod -> {
+            NormalizedNode<?, ?> localRoot = mod.readNode(YangInstanceIdentifier.EMPTY)
+                    .orElseThrow(() -> new IllegalStateException(getIdentifier() + " has no root node"));
+            Set<ByteSequence> pendingStagedKeys = kv.resyncInto(watchedRevision, rev, localRoot, storageGranularity,
+                    this::isSupersededByLocalApply, mod);
+            stagedKeys.clear();
+            stagedKeys.addAll(pendingStagedKeys);
+            watchedRevision = Math.max(watchedRevision, rev);
+            locallyAppliedRevisions.values().removeIf(appliedRev -> appliedRev <= watchedRevision);
+        });
+    }
+
+    /**
+     * In lazy loading mode, brings the content up to the given etcd revision by reloading everything which is loaded;
+     * that is bounded by the memory budget, and so, unlike a delta of everything, cheap enough.
+     */
+    private synchronized void reload(LoadedTopLevelNodes nodes, long rev) throws EtcdException {
+        if (nodes.isAllLoaded()) {
+            loadAll(nodes, rev);
+        } else {
+            Set<PathArgument> loaded = nodes.getLoaded();
+            apply(mod -> {
+                // subtree reads don't apply staged changes, so their roll forward must not be skipped
+                stagedKeys.clear();
+                for (PathArgument topLevelNode : loaded) {
+                    YangInstanceIdentifier topLevelPath = YangInstanceIdentifier.create(topLevelNode);
+                    mod.delete(topLevelPath);
+                    nodes.loaded(topLevelNode, kv.readSubtreeInto(rev, topLevelPath, mod));
+                }
+            });
+        }
+        watchedRevision = Math.max(watchedRevision, rev);
+        locallyAppliedRevisions.values().removeIf(appliedRev -> appliedRev <= watchedRevision);
+    }
+
+    /**
+     * In lazy loading mode, loads the top-level node of a path (or, for the root, everything) as of the revision
+     * which the DataTree reflects, unless it is loaded already, and evicts others if that exceeds the memory budget.
+     */
+    synchronized void ensureLoaded(YangInstanceIdentifier path) throws EtcdException {
+        LoadedTopLevelNodes nodes = requireNonNull(loadedNodes, "loadedNodes");
+        List<PathArgument> pathArguments = path.getPathArguments();
+        if (pathArguments.isEmpty()) {
+            if (!nodes.isAllLoaded()) {
+                loadAll(nodes, getLoadRevision());
+            }
+            return;
+        }
+        PathArgument topLevelNode = pathArguments.get(0);
+        if (nodes.isLoaded(topLevelNode)) {
+            nodes.accessed(topLevelNode);
+            return;
+        }
+        YangInstanceIdentifier topLevelPath = YangInstanceIdentifier.create(topLevelNode);
+        try {
+            apply(mod -> {
+                // in case anything of it was left, e.g. by a local apply of a commit after it had been evicted
+                mod.delete(topLevelPath);
+                nodes.loaded(topLevelNode, kv.readSubtreeInto(getLoadRevision(), topLevelPath, mod));
+                // what was applied locally is gone now, unless it was read again; either way the watch must apply it
+                ByteSequence keyPrefix = kv.toByteSequence(topLevelPath);
+                locallyAppliedRevisions.keySet().removeIf(key -> key.startsWith(keyPrefix));
+                evict(nodes, topLevelNode, mod);
+            });
+        } catch (EtcdException e) {
+            nodes.remove(topLevelNode);
+            throw e;
+        }
+    }
+
+    @GuardedBy("this")
+    private void loadAll(LoadedTopLevelNodes nodes, long rev) throws EtcdException {
+        Map<PathArgument, Long> sizes = new HashMap<>();
+        apply(mod -> {
+            mod.write(YangInstanceIdentifier.EMPTY, ImmutableNodes.containerNode(SchemaContext.NAME));
+            locallyAppliedRevisions.clear();
+            stagedKeys.clear();
+            stagedKeys.addAll(kv.readAllInto(rev, mod, change -> {
+                List<PathArgument> pathArguments = change.getPath().getPathArguments();
+                if (!pathArguments.isEmpty()) {
+                    sizes.merge(pathArguments.get(0), (long) change.getSize(), Long::sum);
+                }
+            }));
+        });
+        nodes.allLoaded(sizes);
+    }
+
+    /**
+     * Removes the top-level nodes which the memory budget has no room for anymore from the DataTree (but not from
+     * etcd, of course).
+     */
+    @GuardedBy("this")
+    private void evict(LoadedTopLevelNodes nodes, @Nullable PathArgument keep, DataTreeModification mod)
+            throws EtcdException {
+        for (PathArgument topLevelNode : nodes.evict(keep)) {
+            YangInstanceIdentifier topLevelPath = YangInstanceIdentifier.create(topLevelNode);
+            mod.delete(topLevelPath);
+            // when it's loaded again, the changes of a pending staged commit will only be applied by their roll forward
+            ByteSequence keyPrefix = kv.toByteSequence(topLevelPath);
+            stagedKeys.removeIf(key -> key.startsWith(keyPrefix));
+            LOG.debug("{} evicted {}, now {} bytes loaded", getIdentifier(), topLevelNode, nodes.getTotalSize());
+        }
+    }
+
+    /**
+     * In lazy loading mode, opens a transaction on a snapshot which has the top-level node of the path, if any,
+     * loaded, see {@link EtcdLazyTransaction}.
+     */
+    synchronized EtcdLazyTransaction.Opened openLazily(Optional<YangInstanceIdentifier> path,
+            Supplier<DOMStoreTransaction> factory) throws EtcdException {
+        LoadedTopLevelNodes nodes = requireNonNull(loadedNodes, "loadedNodes");
+        if (path.isPresent()) {
+            ensureLoaded(path.get());
+        }
+        // both while holding the lock, so that the transaction's snapshot is the same as that of its base
+        DOMStoreTransaction transaction = factory.get();
+        return new EtcdLazyTransaction.Opened(transaction, new EtcdLazyTransaction.Base(dataTree.takeSnapshot(),
+                getLoadRevision(), nodes.isAllLoaded(), nodes.getLoaded()));
+    }
+
+    /**
+     * The revision as of which lazy loads (and read-throughs) read etcd.  The watch has applied all changes of this
+     * data store up to the revision of the last watch response which all of its consumers are done with, even if none
+     * of them were this data store's; so that can be used as well, and must, because on a quiet shard the
+     * watchedRevision lags behind what the EtcdCompactor compacts, which is based on that revision too.
+     */
+    @GuardedBy("this")
+    private long getLoadRevision() {
+        return Math.max(watchedRevision, revAwaiter.getCurrentRevision());
+    }
+
+    /**
+     * In lazy loading mode, reads a path whose top-level node (or, for the root, everything) the base of a transaction
+     * does not have loaded, with a single read of etcd.  If the DataTree is still at the revision of that base, and
+     * does not have it loaded either, it's loaded (for later transactions), and read from the DataTree then, which
+     * has it exactly as of that revision; else it's read directly from etcd, as of that revision.
+     */
+    synchronized Optional<NormalizedNode<?, ?>> readLazily(EtcdLazyTransaction.Base base, YangInstanceIdentifier path)
+            throws EtcdException {
+        LoadedTopLevelNodes nodes = requireNonNull(loadedNodes, "loadedNodes");
+        List<PathArgument> pathArguments = path.getPathArguments();
+        boolean isLoaded = pathArguments.isEmpty() ? nodes.isAllLoaded() : nodes.isLoaded(pathArguments.get(0));
+        // if it is loaded already, it may have been changed by a local apply since, without changing the revision
+        if (!isLoaded && getLoadRevision() == base.revision) {
+            ensureLoaded(path);
+            return dataTree.takeSnapshot().readNode(path);
+        }
+        return readThrough(base.snapshot, base.revision, path);
+    }
+
+    private Optional<NormalizedNode<?, ?>> readThrough(DataTreeSnapshot snapshot, long rev,
+            YangInstanceIdentifier path) throws EtcdException {
+        DataTreeModification mod = snapshot.newModification();
+        List<PathArgument> pathArguments = path.getPathArguments();
+        if (pathArguments.isEmpty()) {
+            mod.write(YangInstanceIdentifier.EMPTY, ImmutableNodes.containerNode(SchemaContext.NAME));
+            kv.readAllInto(rev, mod);
+        } else {
+            YangInstanceIdentifier topLevelPath = YangInstanceIdentifier.create(pathArguments.get(0));
+            mod.delete(topLevelPath);
+            kv.readSubtreeInto(rev, topLevelPath, mod);
+        }
+        return mod.readNode(path);
+    }
+
+    String nextLazyIdentifier() {
+        return getIdentifier() + "-lazy-" + lazyTxCounter.getAndIncrement();
+    }
+
+    /**
+     * The prefix of all etcd keys of this data store.
+     */
+    ByteSequence getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * The root node of the current content of this data store, together with the revision of the watch events it
+     * reflects, e.g. to save it in a snapshot.  Both are read while holding the lock which applying them takes, so
+     * that the root is neither older nor newer than that revision (except for commits which were applied locally).
+     */
+    synchronized EtcdSnapshotFile.RevisionedRoot readRevisionedRoot() {
+        return new EtcdSnapshotFile.RevisionedRoot(watchedRevision,
+                dataTree.takeSnapshot().readNode(YangInstanceIdentifier.EMPTY)
+                    .orElseThrow(() -> new IllegalStateException(getIdentifier() + " has no root node")));
+    }
+
     @Override
     public void close() {
         kv.close();
@@ -172,16 +618,33 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         return type.equals(LogicalDatastoreType.CONFIGURATION) ? CONFIGURATION_PREFIX : OPERATIONAL_PREFIX;
     }
 
+    /**
+     * The etcd key prefix of a shard.  Its name is NUL terminated, so that the prefix of one shard is never a prefix
+     * of another one's; and all of them are outside of the prefixes of the default shards.
+     */
+    static ByteSequence shardPrefix(LogicalDatastoreType type, String shardName) {
+        byte[] name = shardName.getBytes(StandardCharsets.UTF_8);
+        // the copy is one longer, and thus ends with the terminating 0
+        return ByteSequences.append(ByteSequences.append(SHARDS_PREFIX, (byte) prefixChar(type)),
+                Arrays.copyOf(name, name.length + 1));
+    }
+
     /**
      * On start-up, read back current persistent state from etcd as initial DataTree content.
      * @param rev the etcd Revision number to load
      * @throws EtcdException if loading failed
      */
     private void initialLoad(long rev) throws EtcdException {
-        apply(mod -> kv.readAllInto(rev, mod));
+        apply(mod -> {
+            // start from scratch, in case something (e.g. a snapshot which then failed to apply) was loaded before
+            mod.write(YangInstanceIdentifier.EMPTY, ImmutableNodes.containerNode(SchemaContext.NAME));
+            stagedKeys.clear();
+            stagedKeys.addAll(kv.readAllInto(rev, mod));
+        });
     }
 
-    private void apply(CheckedConsumer<DataTreeModification, EtcdException> function) throws EtcdException {
+    private synchronized void apply(CheckedConsumer<DataTreeModification, EtcdException> function)
+            throws EtcdException {
         // TODO requires https://git.opendaylight.org/gerrit/#/c/73482/ which makes dataTree protected instead of private
         DataTreeModification mod = dataTree.takeSnapshot().newModification();
         function.accept(mod);
@@ -201,65 +664,166 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         LOG.info("{} applied DataTreeModification={}, DataTreeCandidate={}", getIdentifier(), mod, candidate);
     }
 
+    @Override
+    protected synchronized void validate(DataTreeModification modification) throws DataValidationFailedException {
+        super.validate(modification);
+        // everything changed in the DataTree after this point is a conflict, which etcd's compares will detect
+        validatedRevisions.put(modification, currentTreeRevisions());
+    }
+
+    @Override
+    protected synchronized DataTreeCandidate prepare(DataTreeModification modification) {
+        @Var TreeRevisions revisions = validatedRevisions.remove(modification);
+        if (revisions == null) {
+            revisions = currentTreeRevisions();
+        }
+        return new PreparedCandidate(super.prepare(modification), revisions);
+    }
+
+    @GuardedBy("this")
+    private TreeRevisions currentTreeRevisions() {
+        return new TreeRevisions(watchedRevision, ImmutableMap.copyOf(locallyAppliedRevisions));
+    }
+
     @Override
     // requires https://git.opendaylight.org/gerrit/#/c/73208/ :-( or figure out if we can hook into InMemoryDOMDataStore via a commit cohort?!
-    protected synchronized void commit(DataTreeCandidate candidate) {
-        isInitialized();
+    protected ListenableFuture<Void> commit(DataTreeCandidate candidate) {
+        if (!isInitialized.get()) {
+            return Futures.immediateFailedFuture(new TransactionCommitFailedException(
+                    getIdentifier() + " commit failed, because init() was not yet called"));
+        }
         if (!candidate.getRootPath().equals(YangInstanceIdentifier.EMPTY)) {
             LOG.error("DataTreeCandidate: YangInstanceIdentifier path={}", candidate.getRootPath());
-            throw new IllegalArgumentException("I've not learnt how to deal with DataTreeCandidate where "
-                    + "root path != YangInstanceIdentifier.EMPTY yet - will you teach me? ;)");
+            return Futures.immediateFailedFuture(new TransactionCommitFailedException(
+                    "I've not learnt how to deal with DataTreeCandidate where "
+                    + "root path != YangInstanceIdentifier.EMPTY yet - will you teach me? ;)"));
         }
 
         LOG.info("{} commit: DataTreeCandidate={}", getIdentifier(), candidate);
         print("", candidate.getRootNode());
 
-        // TODO make InMemoryDOMDataStore.commit(DataTreeCandidate) return ListenableFuture<Void> instead of void,
-        // and then InMemoryDOMStoreThreePhaseCommitCohort.commit() return store.commit(candidate) instead of SUCCESS,
-        // and then do this:
-//        sendToEtcd(candidate.getRootNode()).thenRun(() -> super.commit(candidate)).exceptionally(throwable -> {
-//            LOG.error("sendToEtcd failed", throwable);
-//            return null;
-//        });
-        // but for now let's throw the entire nice async-ity over board and just do:
+        TreeRevisions revisions;
+        if (candidate instanceof PreparedCandidate) {
+            revisions = ((PreparedCandidate) candidate).revisions;
+        } else {
+            synchronized (this) {
+                revisions = currentTreeRevisions();
+            }
+        }
+
+        CompletionStage<TxnResponse> txnResponse;
+        Set<ByteSequence> keys;
         try {
             EtcdTxn kvTx = kv.newTransaction();
-            sendToEtcd(kvTx, candidate, candidate.getRootPath(), candidate.getRootNode());
-            kvTx.commit().toCompletableFuture().get();
-        } catch (EtcdException | IllegalArgumentException | InterruptedException | ExecutionException e) {
-            // TODO This is ugly, wrong, and just temporary.. but see above, how to better return problems here?
-            throw new RuntimeException(e);
+            sendToEtcd(kvTx, revisions, candidate, candidate.getRootPath(), candidate.getRootNode());
+            // Sending is serialized to keep the order of the Txns from this node the same as the order of the commits,
+            // but the lock is released as soon as the Txn is on its way; we never wait for etcd's reply holding it.
+            synchronized (commitLock) {
+                txnResponse = kvTx.commit();
+            }
+            keys = kvTx.getKeys();
+        } catch (EtcdException | IllegalArgumentException e) {
+            return Futures.immediateFailedFuture(
+                    new TransactionCommitFailedException(getIdentifier() + " commit failed to prepare etcd Txn", e));
         }
 
-        // We do *NOT* super.commit(candidate), because we don't want to immediately/directly apply changes,
-        // because we let the watcher listener do this - for ourselves here where we initiated the change, as well as
-        // on all other remote nodes which listen to changes.  It seems tempting to optimize and for our own
-        // node just apply ourselves, instead of going through the listener, but this causes
-        // IllegalStateException: "Store tree ... and candidate base ... differ.", because we would apply
-        // everything twice, because the watcher sends us back our own operations;
-        // see also https://github.com/coreos/jetcd/issues/343.
+        // We do *NOT* super.commit(candidate), because we let the watcher listener apply changes - for ourselves
+        // here where we initiated the change, as well as on all other remote nodes which listen to changes.
+        // Applying the candidate directly causes IllegalStateException: "Store tree ... and candidate base ...
+        // differ.", because the watcher sends us back our own operations (see also
+        // https://github.com/coreos/jetcd/issues/343), and the tree may have moved on since the candidate was
+        // prepared.  If local apply is enabled, we instead re-apply the candidate's changes onto the current tree
+        // once etcd has accepted them, and remember their revision to skip the echoed watch events.
+        SettableFuture<Void> future = SettableFuture.create();
+        txnResponse.whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                future.setException(new TransactionCommitFailedException(
+                        getIdentifier() + " commit failed in etcd Txn", unwrap(throwable)));
+            } else if (!response.isSucceeded()) {
+                // another transaction, of this or another node, has modified some of our keys since we validated
+                LOG.info("{} commit conflicted in etcd with a concurrent modification", getIdentifier());
+                future.setException(new OptimisticLockFailedException(
+                        getIdentifier() + " commit conflicted in etcd with a concurrent modification"));
+            } else {
+                if (isLocalApplyEnabled) {
+                    applyLocally(candidate, keys, response.getHeader().getRevision());
+                }
+                future.set(null);
+            }
+        });
+        return future;
+    }
+
+    private void applyLocally(DataTreeCandidate candidate, Set<ByteSequence> keys, long revision) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                if (watchedRevision >= revision) {
+                    // the watch was faster than us, and has already applied this commit (and possibly newer ones)
+                    return;
+                }
+                // all watch events applied so far are older than this commit, so it's safe to apply it on top
+                apply(mod -> DataTreeCandidates.applyToModification(mod, candidate));
+                for (ByteSequence key : keys) {
+                    locallyAppliedRevisions.put(key, revision);
+                }
+            }
+        } catch (EtcdException | IllegalArgumentException | IllegalStateException e) {
+            // the commit is in etcd already, so it's not failed; the watch will apply it, just a little later
+            LOG.warn("{} local apply of revision {} failed, awaiting it from watch instead", getIdentifier(),
+                    revision, e);
+        }
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null
+                ? throwable.getCause() : throwable;
     }
 
     @SuppressWarnings("checkstyle:MissingSwitchDefault") // http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
-    private void sendToEtcd(EtcdTxn kvTx, DataTreeCandidate candidate, YangInstanceIdentifier base,
-            DataTreeCandidateNode node) throws IllegalArgumentException, EtcdException {
+    private void sendToEtcd(EtcdTxn kvTx, TreeRevisions revisions, DataTreeCandidate candidate,
+            YangInstanceIdentifier base, DataTreeCandidateNode node) throws IllegalArgumentException, EtcdException {
         YangInstanceIdentifier newBase = candidate.getRootNode().equals(node) ? base : base.node(node.getIdentifier());
 
         ModificationType modificationType = node.getModificationType();
+        Optional<NormalizedNode<?, ?>> data = node.getDataAfter().isPresent() ? node.getDataAfter()
+                : node.getDataBefore();
+        if (data.isPresent() && !newBase.getPathArguments().isEmpty()
+                && storageGranularity.isStoredWithSubtree(newBase, data.get())) {
+            sendSubtreeToEtcd(kvTx, revisions, newBase, node);
+            return;
+        }
+
         switch (modificationType) {
             case WRITE:
             case APPEARED: // TODO is it right to treat APPEARED like WRITE here?
-                kvTx.put(newBase,
+                ByteSequence putKey = kvTx.put(newBase,
                         node.getDataAfter().orElseThrow(() -> new IllegalArgumentException("No dataAfter: " + node)));
+                kvTx.ifUnmodifiedSince(putKey, revisions.of(putKey), node.getDataBefore().isPresent());
                 break;
 
             case DELETE:
             case DISAPPEARED: // TODO is it right to treat DISAPPEARED like DELETE here?
-                kvTx.delete(newBase);
+                ByteSequence deleteKey = kvTx.delete(newBase);
+                kvTx.ifUnmodifiedSince(deleteKey, revisions.of(deleteKey), node.getDataBefore().isPresent());
+                if (isPrefixKeyEncodingEnabled) {
+                    // that was a range delete of the entire subtree, so there is nothing left to do for the children
+                    return;
+                }
                 break;
 
-            case UNMODIFIED:
             case SUBTREE_MODIFIED:
+                if (!candidate.getRootNode().equals(node)) {
+                    // nothing is put for this node itself, but if it was deleted (or replaced) concurrently, the
+                    // changes to its children must fail instead of leaving them orphaned in etcd
+                    ByteSequence parentKey = kvTx.keyOf(newBase);
+                    kvTx.ifUnmodifiedSince(parentKey, revisions.of(parentKey), true);
+                }
+                break;
+
+            case UNMODIFIED:
                 // ignore
                 break;
 
@@ -267,7 +831,38 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         }
 
         for (DataTreeCandidateNode childNode : node.getChildNodes()) {
-            sendToEtcd(kvTx, candidate, newBase, childNode);
+            sendToEtcd(kvTx, revisions, candidate, newBase, childNode);
+        }
+    }
+
+    @SuppressWarnings("checkstyle:MissingSwitchDefault") // http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+    private static void sendSubtreeToEtcd(EtcdTxn kvTx, TreeRevisions revisions, YangInstanceIdentifier path,
+            DataTreeCandidateNode node) throws IllegalArgumentException, EtcdException {
+        // the entire subtree is one value, so any change within it rewrites all of it, and there is nothing to do
+        // for the children
+        @Var ByteSequence key = null;
+        switch (node.getModificationType()) {
+            case WRITE:
+            case APPEARED:
+            case SUBTREE_MODIFIED:
+                key = kvTx.put(path,
+                        node.getDataAfter().orElseThrow(() -> new IllegalArgumentException("No dataAfter: " + node)),
+                        true);
+                break;
+
+            case DELETE:
+            case DISAPPEARED:
+                key = kvTx.delete(path);
+                break;
+
+            case UNMODIFIED:
+                // ignore
+                break;
+
+            // no default, as error-prone protects us, see http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+        }
+        if (key != null) {
+            kvTx.ifUnmodifiedSince(key, revisions.of(key), node.getDataBefore().isPresent());
         }
     }
 
@@ -298,4 +893,51 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
             throw new IllegalStateException("init() not yet called");
         }
     }
+
+    /**
+     * The etcd revisions which the content of the DataTree reflected at some point: everything up to the watched
+     * revision, plus the keys of newer commits of this node which were applied locally.
+     */
+    @Immutable
+    private static final class TreeRevisions {
+        private final long watchedRevision;
+        private final ImmutableMap<ByteSequence, Long> locallyAppliedRevisions;
+
+        TreeRevisions(long watchedRevision, ImmutableMap<ByteSequence, Long> locallyAppliedRevisions) {
+            this.watchedRevision = watchedRevision;
+            this.locallyAppliedRevisions = locallyAppliedRevisions;
+        }
+
+        long of(ByteSequence key) {
+            return locallyAppliedRevisions.getOrDefault(key, watchedRevision);
+        }
+    }
+
+    /**
+     * A DataTreeCandidate with the revisions of the DataTree which its modification was validated against.
+     */
+    private static final class PreparedCandidate implements DataTreeCandidate {
+        private final DataTreeCandidate delegate;
+        private final TreeRevisions revisions;
+
+        PreparedCandidate(DataTreeCandidate delegate, TreeRevisions revisions) {
+            this.delegate = delegate;
+            this.revisions = revisions;
+        }
+
+        @Override
+        public DataTreeCandidateNode getRootNode() {
+            return delegate.getRootNode();
+        }
+
+        @Override
+        public YangInstanceIdentifier getRootPath() {
+            return delegate.getRootPath();
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
 }
@@ -0,0 +1,499 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import javax.annotation.concurrent.Immutable;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.common.QNameModule;
+
+/**
+ * Configuration options of the etcd based data stores.
+ *
+ * <p>Use {@link #builder()} to create instances; the {@link #DEFAULT} is what is used if nothing else is specified.
+ */
+@Immutable
+public final class EtcdDataStoreConfig {
+
+    // etcd's default --max-txn-ops
+    private static final int DEFAULT_MAX_TXN_OPS = 128;
+
+    // etcd's default --max-request-bytes is 1.5 MiB; this leaves room for the compares and the request's overhead
+    private static final int DEFAULT_MAX_TXN_BYTES = 1024 * 1024;
+
+    private static final int DEFAULT_INITIAL_LOAD_CHUNK_SIZE = 1000;
+
+    private static final Duration DEFAULT_SNAPSHOT_INTERVAL = Duration.ofMinutes(5);
+
+    private static final int DEFAULT_VALUE_COMPRESSION_THRESHOLD = 4 * 1024;
+
+    private static final int DEFAULT_WATCH_QUEUE_CAPACITY = 256;
+
+    public static final EtcdDataStoreConfig DEFAULT = builder().build();
+
+    private final boolean isGroupCommitEnabled;
+    private final Duration groupCommitWindow;
+    private final int groupCommitMaxOps;
+    private final boolean isLocalApplyEnabled;
+    private final ReadConsistency readConsistency;
+    private final int initialLoadChunkSize;
+    private final Optional<Path> snapshotDirectory;
+    private final Duration snapshotInterval;
+    private final boolean isQNameDictionaryEnabled;
+    private final boolean isCompactValueEncodingEnabled;
+    private final boolean isPrefixKeyEncodingEnabled;
+    private final Optional<EtcdValueCompressor> valueCompressor;
+    private final int valueCompressionThreshold;
+    private final int maxTxnOps;
+    private final int maxTxnBytes;
+    private final EtcdStorageGranularity storageGranularity;
+    private final ImmutableMap<QName, String> topLevelNodeShards;
+    private final ImmutableMap<QNameModule, String> moduleShards;
+    private final Optional<Duration> compactionInterval;
+    private final Optional<LocalTime> defragmentationWindowStart;
+    private final Duration defragmentationWindowLength;
+    private final int watchQueueCapacity;
+    private final OptionalLong lazyLoadingMemoryBudget;
+
+    private EtcdDataStoreConfig(Builder builder) {
+        this.isGroupCommitEnabled = builder.isGroupCommitEnabled;
+        this.groupCommitWindow = builder.groupCommitWindow;
+        this.groupCommitMaxOps = builder.groupCommitMaxOps;
+        this.isLocalApplyEnabled = builder.isLocalApplyEnabled;
+        this.readConsistency = builder.readConsistency;
+        this.initialLoadChunkSize = builder.initialLoadChunkSize;
+        this.snapshotDirectory = builder.snapshotDirectory;
+        this.snapshotInterval = builder.snapshotInterval;
+        this.isQNameDictionaryEnabled = builder.isQNameDictionaryEnabled;
+        this.isCompactValueEncodingEnabled = builder.isCompactValueEncodingEnabled;
+        this.isPrefixKeyEncodingEnabled = builder.isPrefixKeyEncodingEnabled;
+        this.valueCompressor = builder.valueCompressor;
+        this.valueCompressionThreshold = builder.valueCompressionThreshold;
+        this.maxTxnOps = builder.maxTxnOps;
+        this.maxTxnBytes = builder.maxTxnBytes;
+        this.storageGranularity = builder.storageGranularity;
+        this.topLevelNodeShards = ImmutableMap.copyOf(builder.topLevelNodeShards);
+        this.moduleShards = ImmutableMap.copyOf(builder.moduleShards);
+        this.compactionInterval = builder.compactionInterval;
+        this.defragmentationWindowStart = builder.defragmentationWindowStart;
+        this.defragmentationWindowLength = builder.defragmentationWindowLength;
+        this.watchQueueCapacity = builder.watchQueueCapacity;
+        this.lazyLoadingMemoryBudget = builder.lazyLoadingMemoryBudget;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Whether the etcd Txns of concurrently committing transactions are coalesced into a single Txn.
+     */
+    public boolean isGroupCommitEnabled() {
+        return isGroupCommitEnabled;
+    }
+
+    /**
+     * How long the first commit of a group waits for others to join it.  If this is zero, commits are instead grouped
+     * only while a previous group is still in flight to etcd, which adds no latency at all.
+     */
+    public Duration getGroupCommitWindow() {
+        return groupCommitWindow;
+    }
+
+    /**
+     * The maximum number of operations in a grouped etcd Txn; this should not exceed the etcd server's --max-txn-ops.
+     */
+    public int getGroupCommitMaxOps() {
+        return groupCommitMaxOps;
+    }
+
+    /**
+     * Whether a data store applies its own commits to its DataTree as soon as etcd has accepted their Txn, instead of
+     * only when they come back through the watch.  The echoed watch events of such commits are then skipped.
+     */
+    public boolean isLocalApplyEnabled() {
+        return isLocalApplyEnabled;
+    }
+
+    /**
+     * The consistency of the new transactions of the data stores, unless one is specified for the transaction.
+     */
+    public ReadConsistency getReadConsistency() {
+        return readConsistency;
+    }
+
+    /**
+     * How many keys are read from etcd per range request when initially loading a data store.
+     */
+    public int getInitialLoadChunkSize() {
+        return initialLoadChunkSize;
+    }
+
+    /**
+     * Directory in which to keep a local snapshot of the data stores, from which they can be restored much faster
+     * on restart than by reading everything back from etcd.  Empty, the default, means no snapshots are taken.
+     */
+    public Optional<Path> getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    /**
+     * How often the local snapshot is saved, if there is a {@link #getSnapshotDirectory()}.
+     */
+    public Duration getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Whether QNames in keys and values are written as the (much shorter) codes of a dictionary kept in etcd, instead
+     * of as strings.  This changes the format of everything written to etcd, so all nodes of a cluster must use the
+     * same setting, and it cannot be changed for existing data.
+     */
+    public boolean isQNameDictionaryEnabled() {
+        return isQNameDictionaryEnabled;
+    }
+
+    /**
+     * Whether values are written to etcd with varints and other more compact encodings.  Values written either way
+     * can always be read, so this can be changed for existing data; but nodes running an older version, which cannot
+     * read compact values, must not be in the same cluster as nodes writing them.  It is therefore off by default,
+     * and safe to enable once all nodes of a cluster have been upgraded, e.g. at the end of a rolling upgrade.  Keys
+     * are never compact.
+     */
+    public boolean isCompactValueEncodingEnabled() {
+        return isCompactValueEncodingEnabled;
+    }
+
+    /**
+     * Whether keys are written to etcd such that the key of each node is a prefix of the keys of all its
+     * descendants, so that deleting a subtree is a single etcd range delete instead of one delete per key.  Keys
+     * written either way can always be read, but the same path must always have the same key, so this cannot be
+     * changed for existing data, and all nodes of a cluster must use the same setting; off by default.
+     */
+    public boolean isPrefixKeyEncodingEnabled() {
+        return isPrefixKeyEncodingEnabled;
+    }
+
+    /**
+     * How values of at least {@link #getValueCompressionThreshold()} bytes are compressed; empty, the default, means
+     * not at all.  Compressed values are readable by all nodes which know the compressor, whether or not they also
+     * compress; the {@link DeflateValueCompressor} is always known.
+     */
+    public Optional<EtcdValueCompressor> getValueCompressor() {
+        return valueCompressor;
+    }
+
+    /**
+     * The minimum size in bytes of values which are compressed, if there is a {@link #getValueCompressor()}.
+     */
+    public int getValueCompressionThreshold() {
+        return valueCompressionThreshold;
+    }
+
+    /**
+     * The maximum number of operations (and of compares) of a transaction's commit which is sent to etcd as a single
+     * Txn; this should not exceed the etcd server's --max-txn-ops.  Larger commits are written in chunks, and then
+     * made visible atomically, see {@link #getMaxTxnBytes()}.
+     */
+    public int getMaxTxnOps() {
+        return maxTxnOps;
+    }
+
+    /**
+     * The maximum size in bytes of the keys and values of a transaction's commit which is sent to etcd as a single
+     * Txn; this should be well below the etcd server's --max-request-bytes.  Larger commits are first written in
+     * chunks of at most this size to a staging area, and then made visible atomically by a small marker Txn; until
+     * they have been moved to their actual keys, other commits of the same data store fail as conflicting.
+     */
+    public int getMaxTxnBytes() {
+        return maxTxnBytes;
+    }
+
+    /**
+     * Which nodes are stored in etcd as one value with their entire subtree; by default, none.  This changes the
+     * format of everything written to etcd, so all nodes of a cluster must use the same one, and it cannot be
+     * changed for existing data.
+     */
+    public EtcdStorageGranularity getStorageGranularity() {
+        return storageGranularity;
+    }
+
+    /**
+     * The names of the shards of top-level nodes which have their own; these take precedence over the
+     * {@link #getModuleShards()}.  Each shard has its own etcd key prefix, DataTree, lock, watch consumer and commit
+     * pipeline, so commits and watch events of different shards are processed in parallel.  Everything else is in
+     * the default shard.  A transaction can read from several shards, but write to only one, as it could not be
+     * committed atomically to several (so writing the root, which spans all of them, fails to commit too).  Changing
+     * the shard of existing data is not supported, as its keys would remain under the prefix of its old shard.
+     */
+    public ImmutableMap<QName, String> getTopLevelNodeShards() {
+        return topLevelNodeShards;
+    }
+
+    /**
+     * The names of the shards of the top-level nodes of modules which have their own, see
+     * {@link #getTopLevelNodeShards()}.
+     */
+    public ImmutableMap<QNameModule, String> getModuleShards() {
+        return moduleShards;
+    }
+
+    /**
+     * How often the revisions which no node needs anymore are compacted in etcd, if at all.  Each node publishes the
+     * oldest revision it still needs (to continue its watch, or to restart from its snapshot) in etcd, and one of them
+     * compacts up to the oldest of those of all nodes.
+     */
+    public Optional<Duration> getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    /**
+     * Start of the daily (local time) window in which the members of the etcd cluster are defragmented, one after the
+     * other, if at all; requires a {@link #getCompactionInterval()}.  Defragmentation frees the space of compacted
+     * revisions, but blocks each member while it runs, so this should be off-peak.
+     */
+    public Optional<LocalTime> getDefragmentationWindowStart() {
+        return defragmentationWindowStart;
+    }
+
+    /**
+     * Length of the defragmentation window, see {@link #getDefragmentationWindowStart()}.
+     */
+    public Duration getDefragmentationWindowLength() {
+        return defragmentationWindowLength;
+    }
+
+    /**
+     * How many watch responses can be received ahead of applying them, before the watch is held back.
+     */
+    public int getWatchQueueCapacity() {
+        return watchQueueCapacity;
+    }
+
+    /**
+     * The memory budget in bytes of the lazy loading mode, if enabled; by default, it's not, and the entire content
+     * is loaded on start-up.  In this mode, each top-level node is loaded from etcd only when it's first accessed, and
+     * those accessed least recently are dropped from memory again (but not from etcd) when the (estimated) size of
+     * all loaded ones exceeds the budget; except those with listeners, which are always kept.  This requires
+     * {@link #isPrefixKeyEncodingEnabled()}, and cannot be combined with a {@link #getSnapshotDirectory()}.
+     */
+    public OptionalLong getLazyLoadingMemoryBudget() {
+        return lazyLoadingMemoryBudget;
+    }
+
+    boolean isSharded() {
+        return !topLevelNodeShards.isEmpty() || !moduleShards.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("isGroupCommitEnabled", isGroupCommitEnabled)
+                .add("groupCommitWindow", groupCommitWindow).add("groupCommitMaxOps", groupCommitMaxOps)
+                .add("isLocalApplyEnabled", isLocalApplyEnabled)
+                .add("readConsistency", readConsistency).add("initialLoadChunkSize", initialLoadChunkSize)
+                .add("snapshotDirectory", snapshotDirectory).add("snapshotInterval", snapshotInterval)
+                .add("isQNameDictionaryEnabled", isQNameDictionaryEnabled)
+                .add("isCompactValueEncodingEnabled", isCompactValueEncodingEnabled)
+                .add("isPrefixKeyEncodingEnabled", isPrefixKeyEncodingEnabled)
+                .add("valueCompressor", valueCompressor).add("valueCompressionThreshold", valueCompressionThreshold)
+                .add("maxTxnOps", maxTxnOps).add("maxTxnBytes", maxTxnBytes)
+                .add("storageGranularity", storageGranularity)
+                .add("topLevelNodeShards", topLevelNodeShards).add("moduleShards", moduleShards)
+                .add("compactionInterval", compactionInterval)
+                .add("defragmentationWindowStart", defragmentationWindowStart)
+                .add("defragmentationWindowLength", defragmentationWindowLength)
+                .add("watchQueueCapacity", watchQueueCapacity)
+                .add("lazyLoadingMemoryBudget", lazyLoadingMemoryBudget)
+                .toString();
+    }
+
+    public static final class Builder {
+
+        private boolean isGroupCommitEnabled = true;
+        private Duration groupCommitWindow = Duration.ZERO;
+        private int groupCommitMaxOps = DEFAULT_MAX_TXN_OPS;
+        private boolean isLocalApplyEnabled = false;
+        private ReadConsistency readConsistency = ReadConsistency.LINEARIZABLE;
+        private int initialLoadChunkSize = DEFAULT_INITIAL_LOAD_CHUNK_SIZE;
+        private Optional<Path> snapshotDirectory = Optional.empty();
+        private Duration snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+        private boolean isQNameDictionaryEnabled = false;
+        private boolean isCompactValueEncodingEnabled;
+        private boolean isPrefixKeyEncodingEnabled;
+        private Optional<EtcdValueCompressor> valueCompressor = Optional.empty();
+        private int valueCompressionThreshold = DEFAULT_VALUE_COMPRESSION_THRESHOLD;
+        private int maxTxnOps = DEFAULT_MAX_TXN_OPS;
+        private int maxTxnBytes = DEFAULT_MAX_TXN_BYTES;
+        private EtcdStorageGranularity storageGranularity = EtcdStorageGranularity.SHALLOW;
+        private final Map<QName, String> topLevelNodeShards = new LinkedHashMap<>();
+        private final Map<QNameModule, String> moduleShards = new LinkedHashMap<>();
+        private Optional<Duration> compactionInterval = Optional.empty();
+        private Optional<LocalTime> defragmentationWindowStart = Optional.empty();
+        private Duration defragmentationWindowLength = Duration.ZERO;
+        private int watchQueueCapacity = DEFAULT_WATCH_QUEUE_CAPACITY;
+        private OptionalLong lazyLoadingMemoryBudget = OptionalLong.empty();
+
+        private Builder() { }
+
+        public Builder withGroupCommit(boolean enabled) {
+            this.isGroupCommitEnabled = enabled;
+            return this;
+        }
+
+        public Builder withGroupCommitWindow(Duration window) {
+            Preconditions.checkArgument(!requireNonNull(window, "window").isNegative(),
+                    "window must not be negative: %s", window);
+            this.groupCommitWindow = window;
+            return this;
+        }
+
+        public Builder withGroupCommitMaxOps(int maxOps) {
+            Preconditions.checkArgument(maxOps > 0, "maxOps must be positive: %s", maxOps);
+            this.groupCommitMaxOps = maxOps;
+            return this;
+        }
+
+        public Builder withLocalApply(boolean enabled) {
+            this.isLocalApplyEnabled = enabled;
+            return this;
+        }
+
+        public Builder withReadConsistency(ReadConsistency consistency) {
+            this.readConsistency = requireNonNull(consistency, "consistency");
+            return this;
+        }
+
+        public Builder withInitialLoadChunkSize(int chunkSize) {
+            Preconditions.checkArgument(chunkSize > 0, "chunkSize must be positive: %s", chunkSize);
+            this.initialLoadChunkSize = chunkSize;
+            return this;
+        }
+
+        public Builder withSnapshotDirectory(Path directory) {
+            this.snapshotDirectory = Optional.of(directory);
+            return this;
+        }
+
+        public Builder withSnapshotInterval(Duration interval) {
+            Preconditions.checkArgument(!requireNonNull(interval, "interval").isNegative() && !interval.isZero(),
+                    "interval must be positive: %s", interval);
+            this.snapshotInterval = interval;
+            return this;
+        }
+
+        public Builder withCompactionInterval(Duration interval) {
+            Preconditions.checkArgument(!requireNonNull(interval, "interval").isNegative() && !interval.isZero(),
+                    "interval must be positive: %s", interval);
+            this.compactionInterval = Optional.of(interval);
+            return this;
+        }
+
+        public Builder withDefragmentationWindow(LocalTime start, Duration length) {
+            Preconditions.checkArgument(!requireNonNull(length, "length").isNegative() && !length.isZero(),
+                    "length must be positive: %s", length);
+            this.defragmentationWindowStart = Optional.of(requireNonNull(start, "start"));
+            this.defragmentationWindowLength = length;
+            return this;
+        }
+
+        public Builder withWatchQueueCapacity(int capacity) {
+            Preconditions.checkArgument(capacity > 0, "capacity must be positive: %s", capacity);
+            this.watchQueueCapacity = capacity;
+            return this;
+        }
+
+        public Builder withLazyLoading(long memoryBudget) {
+            Preconditions.checkArgument(memoryBudget > 0, "memoryBudget must be positive: %s", memoryBudget);
+            this.lazyLoadingMemoryBudget = OptionalLong.of(memoryBudget);
+            return this;
+        }
+
+        public Builder withQNameDictionary(boolean enabled) {
+            this.isQNameDictionaryEnabled = enabled;
+            return this;
+        }
+
+        public Builder withCompactValueEncoding(boolean enabled) {
+            this.isCompactValueEncodingEnabled = enabled;
+            return this;
+        }
+
+        public Builder withPrefixKeyEncoding(boolean enabled) {
+            this.isPrefixKeyEncodingEnabled = enabled;
+            return this;
+        }
+
+        public Builder withValueCompressor(EtcdValueCompressor compressor) {
+            this.valueCompressor = Optional.of(compressor);
+            return this;
+        }
+
+        public Builder withValueCompressionThreshold(int threshold) {
+            Preconditions.checkArgument(threshold > 0, "threshold must be positive: %s", threshold);
+            this.valueCompressionThreshold = threshold;
+            return this;
+        }
+
+        public Builder withMaxTxnOps(int maxOps) {
+            // 2, because a staged commit's marker Txn needs at least one compare besides those of its keys
+            Preconditions.checkArgument(maxOps >= 2, "maxOps must be at least 2: %s", maxOps);
+            this.maxTxnOps = maxOps;
+            return this;
+        }
+
+        public Builder withMaxTxnBytes(int maxBytes) {
+            Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive: %s", maxBytes);
+            this.maxTxnBytes = maxBytes;
+            return this;
+        }
+
+        public Builder withStorageGranularity(EtcdStorageGranularity granularity) {
+            this.storageGranularity = requireNonNull(granularity, "granularity");
+            return this;
+        }
+
+        public Builder withTopLevelNodeShard(QName topLevelNode, String shardName) {
+            topLevelNodeShards.put(requireNonNull(topLevelNode, "topLevelNode"), checkShardName(shardName));
+            return this;
+        }
+
+        public Builder withModuleShard(QNameModule module, String shardName) {
+            moduleShards.put(requireNonNull(module, "module"), checkShardName(shardName));
+            return this;
+        }
+
+        private static String checkShardName(String shardName) {
+            // NUL terminates the name in the etcd key prefix of the shard
+            Preconditions.checkArgument(!requireNonNull(shardName, "shardName").isEmpty()
+                    && shardName.indexOf('\0') < 0, "shardName must be non-empty and without NUL: %s", shardName);
+            return shardName;
+        }
+
+        public EtcdDataStoreConfig build() {
+            Preconditions.checkState(!defragmentationWindowStart.isPresent() || compactionInterval.isPresent(),
+                    "a defragmentation window requires a compaction interval");
+            Preconditions.checkState(!lazyLoadingMemoryBudget.isPresent() || isPrefixKeyEncodingEnabled,
+                    "lazy loading requires prefix key encoding");
+            // a snapshot would only contain what happened to be loaded
+            Preconditions.checkState(!lazyLoadingMemoryBudget.isPresent() || !snapshotDirectory.isPresent(),
+                    "lazy loading cannot be combined with snapshots");
+            return new EtcdDataStoreConfig(this);
+        }
+    }
+}
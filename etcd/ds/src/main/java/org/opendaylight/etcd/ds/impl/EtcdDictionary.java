@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static org.opendaylight.etcd.ds.impl.EtcdDataStore.DICTIONARY_PREFIX;
+
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.PutOption;
+import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchEvent.EventType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.stream.copypaste.dependencies.QNameFactory;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.infrautils.utils.function.CheckedConsumer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cluster wide dictionary of the QNames used in keys and values, which maps them to compact integer codes.
+ *
+ * <p>The dictionary is persisted in etcd under its own reserved prefix, with an entry for each direction, plus a
+ * counter of the next code.  New codes are allocated with a Txn which only succeeds if neither the QName was
+ * concurrently allocated by another node nor the counter changed, so that all nodes always agree on the codes.
+ * Codes are never re-assigned, so they can be cached forever; the cache is filled on start-up, from watch events,
+ * and on demand for codes allocated by other nodes which we have not seen yet.
+ */
+@ThreadSafe
+class EtcdDictionary implements CheckedConsumer<List<WatchEvent>, EtcdException> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdDictionary.class);
+
+    private static final ByteSequence NEXT_CODE_KEY = ByteSequences.append(DICTIONARY_PREFIX, (byte) 'n');
+    private static final byte QNAME_TO_CODE = 'q';
+    private static final byte CODE_TO_QNAME = 'c';
+    private static final ByteSequence CODE_TO_QNAME_PREFIX = ByteSequences.append(DICTIONARY_PREFIX, CODE_TO_QNAME);
+
+    private final String name;
+    private final KV etcd;
+    private final ConcurrentMap<QName, Integer> codes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, QName> qnames = new ConcurrentHashMap<>();
+
+    EtcdDictionary(String name, KV etcd) {
+        this.name = name;
+        this.etcd = requireNonNull(etcd, "etcd");
+    }
+
+    /**
+     * Load all existing entries from etcd into the cache.
+     */
+    void init() throws EtcdException {
+        GetResponse response = EtcdServerUtils.await(
+                etcd.get(CODE_TO_QNAME_PREFIX, GetOption.newBuilder().withPrefix(CODE_TO_QNAME_PREFIX).build()));
+        for (KeyValue kv : response.getKvs()) {
+            cacheFromCodeToQNameEntry(kv);
+        }
+        LOG.info("{} loaded {} dictionary entries", name, qnames.size());
+    }
+
+    int getCode(QName qname) throws EtcdException {
+        Integer code = codes.get(qname);
+        return code != null ? code : allocateCode(qname);
+    }
+
+    QName getQName(int code) throws EtcdException {
+        QName qname = qnames.get(code);
+        if (qname != null) {
+            return qname;
+        }
+        // allocated by another node, and we have not seen the watch event for it yet
+        GetResponse response = EtcdServerUtils.await(etcd.get(codeToQNameKey(code)));
+        if (response.getKvs().isEmpty()) {
+            throw new EtcdException(name + " unknown dictionary code: " + code);
+        }
+        return cacheFromCodeToQNameEntry(response.getKvs().get(0));
+    }
+
+    @Override
+    public void accept(List<WatchEvent> events) {
+        for (WatchEvent event : events) {
+            KeyValue kv = event.getKeyValue();
+            if (event.getEventType() == EventType.PUT && kv.getKey().startsWith(CODE_TO_QNAME_PREFIX)) {
+                cacheFromCodeToQNameEntry(kv);
+            }
+        }
+    }
+
+    private synchronized int allocateCode(QName qname) throws EtcdException {
+        // re-check, as another thread of this node may just have allocated it while we were waiting for the lock
+        Integer cachedCode = codes.get(qname);
+        if (cachedCode != null) {
+            return cachedCode;
+        }
+
+        ByteSequence qnameToCodeKey = qnameToCodeKey(qname);
+        while (true) {
+            List<KeyValue> counter = EtcdServerUtils.await(etcd.get(NEXT_CODE_KEY)).getKvs();
+            int code = counter.isEmpty() ? 0 : Ints.fromByteArray(counter.get(0).getValue().getBytes());
+            Cmp counterUnchanged = new Cmp(NEXT_CODE_KEY, Cmp.Op.EQUAL, counter.isEmpty()
+                    ? CmpTarget.version(0) : CmpTarget.modRevision(counter.get(0).getModRevision()));
+            TxnResponse response = EtcdServerUtils.await(etcd.txn()
+                .If(new Cmp(qnameToCodeKey, Cmp.Op.EQUAL, CmpTarget.version(0)), counterUnchanged)
+                .Then(Op.put(qnameToCodeKey, ByteSequence.from(Ints.toByteArray(code)), PutOption.DEFAULT),
+                      Op.put(codeToQNameKey(code), ByteSequence.from(qname.toString(), UTF_8), PutOption.DEFAULT),
+                      Op.put(NEXT_CODE_KEY, ByteSequence.from(Ints.toByteArray(code + 1)), PutOption.DEFAULT))
+                .Else(Op.get(qnameToCodeKey, GetOption.DEFAULT))
+                .commit());
+
+            if (response.isSucceeded()) {
+                LOG.info("{} allocated dictionary code {} for {}", name, code, qname);
+                cache(code, qname);
+                return code;
+            }
+            List<KeyValue> existing = response.getGetResponses().get(0).getKvs();
+            if (!existing.isEmpty()) {
+                // another node allocated a code for this QName concurrently
+                int existingCode = Ints.fromByteArray(existing.get(0).getValue().getBytes());
+                cache(existingCode, qname);
+                return existingCode;
+            }
+            // else another node allocated a code for another QName concurrently, so just try again
+            LOG.debug("{} dictionary code {} for {} was concurrently taken, retrying", name, code, qname);
+        }
+    }
+
+    private QName cacheFromCodeToQNameEntry(KeyValue kv) {
+        byte[] key = kv.getKey().getBytes();
+        int code = Ints.fromByteArray(Arrays.copyOfRange(key, CODE_TO_QNAME_PREFIX.size(), key.length));
+        QName qname = QNameFactory.create(kv.getValue().toString(UTF_8));
+        cache(code, qname);
+        return qname;
+    }
+
+    private void cache(int code, QName qname) {
+        codes.putIfAbsent(qname, code);
+        qnames.putIfAbsent(code, qname);
+    }
+
+    private static ByteSequence qnameToCodeKey(QName qname) {
+        return ByteSequences.append(DICTIONARY_PREFIX,
+                Bytes.concat(new byte[] { QNAME_TO_CODE }, qname.toString().getBytes(UTF_8)));
+    }
+
+    private static ByteSequence codeToQNameKey(int code) {
+        return ByteSequences.append(CODE_TO_QNAME_PREFIX, Ints.toByteArray(code));
+    }
+}
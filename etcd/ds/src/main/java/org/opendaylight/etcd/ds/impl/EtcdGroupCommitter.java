@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.Op;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.infrautils.utils.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Group commit stage in front of etcd.  This coalesces the Txns of transactions which are ready to commit at the
+ * same time into a single etcd Txn, and completes each of their futures from the shared {@link TxnResponse}.
+ *
+ * <p>A group is sent to etcd when it reaches the maximum number of operations, when its window elapses, or (with a
+ * zero window) as soon as no other group is in flight.  A Txn which touches a key that is already part of the open
+ * group starts a new group, because etcd does not allow modifying the same key twice within one Txn.  The keys
+ * which a Txn compares are treated the same way, so that one member's compare is never evaluated against a key
+ * which another member of the same group modifies.  Neither may another member's keys be within a key range which
+ * a Txn deletes, as etcd rejects a Txn which puts a key that it also range deletes.
+ *
+ * <p>The compares of all members are combined in the group's Txn, so if any of them fails, the whole group fails.
+ * Each member of such a group is then re-sent on its own, so that only the conflicting ones fail.  The same is done
+ * when the group's Txn fails with an exception, e.g. because etcd rejected it, so that one member which etcd does
+ * not accept does not fail the others.
+ *
+ * @see EtcdDataStoreConfig#getGroupCommitWindow()
+ */
+@ThreadSafe
+class EtcdGroupCommitter implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdGroupCommitter.class);
+
+    private final String name;
+    private final KV etcd;
+    private final Duration window;
+    private final int maxOps;
+    private final @Nullable ScheduledExecutorService scheduler;
+
+    @GuardedBy("this") private Group openGroup = new Group();
+    @GuardedBy("this") private int inFlight;
+    @GuardedBy("this") private boolean isClosed;
+
+    EtcdGroupCommitter(String name, KV etcd, Duration window, int maxOps) {
+        this.name = name;
+        this.etcd = requireNonNull(etcd, "etcd");
+        this.window = requireNonNull(window, "window");
+        this.maxOps = maxOps;
+        this.scheduler = window.isZero() ? null : Executors.newSingleThreadScheduledExecutor("EtcdGroupCommit-" + name,
+                LOG);
+    }
+
+    CompletionStage<TxnResponse> commit(List<Op> ops, Set<ByteSequence> keys) {
+        return commit(Collections.emptyList(), ops, keys, Collections.emptySet());
+    }
+
+    /**
+     * Commit a Txn as part of a group.
+     *
+     * @param cmps the compares which must all hold for the ops to be applied
+     * @param ops the operations
+     * @param keys the keys which the ops modify, and those which the cmps compare
+     * @param rangeKeys the prefixes which the ops range delete
+     */
+    CompletionStage<TxnResponse> commit(List<Cmp> cmps, List<Op> ops, Set<ByteSequence> keys,
+            Set<ByteSequence> rangeKeys) {
+        CompletableFuture<TxnResponse> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (isClosed) {
+                future.completeExceptionally(new IllegalStateException(name + " group committer is already closed"));
+                return future;
+            }
+            if (!openGroup.canJoin(cmps, ops, keys, rangeKeys)) {
+                send();
+            }
+            Group group = openGroup;
+            group.join(cmps, ops, keys, rangeKeys, future);
+
+            if (group.ops.size() >= maxOps || window.isZero() && inFlight == 0) {
+                send();
+            } else if (scheduler != null && group.members.size() == 1) {
+                scheduler.schedule(() -> sendIfStillOpen(group), window.toNanos(), NANOSECONDS);
+            }
+        }
+        return future;
+    }
+
+    @Override
+    @PreDestroy
+    public void close() {
+        synchronized (this) {
+            isClosed = true;
+            send();
+        }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    private synchronized void sendIfStillOpen(Group group) {
+        if (openGroup == group) {
+            send();
+        }
+    }
+
+    private synchronized void onGroupCompleted() {
+        inFlight--;
+        if (window.isZero() && inFlight == 0) {
+            send();
+        }
+    }
+
+    @GuardedBy("this")
+    private void send() {
+        Group group = openGroup;
+        if (group.members.isEmpty()) {
+            return;
+        }
+        openGroup = new Group();
+        inFlight++;
+        LOG.debug("{} sending group of {} Txns with {} ops ({} in flight)", name, group.members.size(),
+                group.ops.size(), inFlight);
+        send(group.cmps, group.ops).whenComplete((response, throwable) -> {
+            // the next group waits for the re-sent members, to keep the order of the Txns from this node
+            group.complete(response, throwable).whenComplete((result, failure) -> onGroupCompleted());
+        });
+    }
+
+    private CompletionStage<TxnResponse> send(Collection<Cmp> cmps, List<Op> ops) {
+        Txn txn = etcd.txn();
+        if (!cmps.isEmpty()) {
+            txn.If(cmps.toArray(new Cmp[0]));
+        }
+        return txn.Then(ops.toArray(new Op[0])).commit();
+    }
+
+    private static final class Member {
+        final List<Cmp> cmps;
+        final List<Op> ops;
+        final CompletableFuture<TxnResponse> future;
+
+        Member(List<Cmp> cmps, List<Op> ops, CompletableFuture<TxnResponse> future) {
+            this.cmps = cmps;
+            this.ops = ops;
+            this.future = future;
+        }
+    }
+
+    private class Group {
+        // an identity Set (Cmp has no equals()), because members often share the same compare instance, e.g.
+        // EtcdStagedCommitter's noStagedCommitPending(), which is then only sent once
+        final Set<Cmp> cmps = Collections.newSetFromMap(new IdentityHashMap<>());
+        final List<Op> ops = new ArrayList<>();
+        final Set<ByteSequence> keys = new HashSet<>();
+        final Set<ByteSequence> rangeKeys = new HashSet<>();
+        final List<Member> members = new ArrayList<>();
+
+        boolean canJoin(Collection<Cmp> newCmps, Collection<Op> newOps, Set<ByteSequence> newKeys,
+                Set<ByteSequence> newRangeKeys) {
+            // an empty group always accepts, even a Txn that exceeds maxOps on its own
+            return members.isEmpty()
+                    || ops.size() + newOps.size() <= maxOps && cmps.size() + countNew(newCmps) <= maxOps
+                        && Collections.disjoint(keys, newKeys)
+                        && !isAnyInRange(newKeys, rangeKeys) && !isAnyInRange(keys, newRangeKeys);
+        }
+
+        void join(List<Cmp> newCmps, List<Op> newOps, Set<ByteSequence> newKeys, Set<ByteSequence> newRangeKeys,
+                CompletableFuture<TxnResponse> future) {
+            cmps.addAll(newCmps);
+            ops.addAll(newOps);
+            keys.addAll(newKeys);
+            rangeKeys.addAll(newRangeKeys);
+            members.add(new Member(newCmps, newOps, future));
+        }
+
+        private long countNew(Collection<Cmp> newCmps) {
+            return newCmps.stream().filter(cmp -> !cmps.contains(cmp)).count();
+        }
+
+        private boolean isAnyInRange(Set<ByteSequence> someKeys, Set<ByteSequence> someRangeKeys) {
+            for (ByteSequence rangeKey : someRangeKeys) {
+                for (ByteSequence key : someKeys) {
+                    if (key.startsWith(rangeKey)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Complete the futures of all members.
+         * @return a future which completes once all members are completed, which may require re-sending them
+         */
+        CompletionStage<Void> complete(@Nullable TxnResponse response, @Nullable Throwable throwable) {
+            if (members.size() > 1 && (throwable != null
+                    || response != null && !response.isSucceeded() && !cmps.isEmpty())) {
+                LOG.debug("{} group of {} Txns failed, re-sending them individually", name, members.size(),
+                        throwable);
+                List<CompletableFuture<TxnResponse>> resent = new ArrayList<>(members.size());
+                for (Member member : members) {
+                    CompletableFuture<TxnResponse> future = send(member.cmps, member.ops).toCompletableFuture();
+                    future.whenComplete((memberResponse, memberThrowable) -> complete(member.future,
+                            memberResponse, memberThrowable));
+                    resent.add(future);
+                }
+                return CompletableFuture.allOf(resent.toArray(new CompletableFuture[0]));
+            }
+            for (Member member : members) {
+                complete(member.future, response, throwable);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        private void complete(CompletableFuture<TxnResponse> future, @Nullable TxnResponse response,
+                @Nullable Throwable throwable) {
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+            } else {
+                future.complete(response);
+            }
+        }
+    }
+}
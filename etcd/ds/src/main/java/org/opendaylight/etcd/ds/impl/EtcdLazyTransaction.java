@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.infrautils.utils.function.CheckedFunction;
+import org.opendaylight.mdsal.common.api.OptimisticLockFailedException;
+import org.opendaylight.mdsal.common.api.ReadFailedException;
+import org.opendaylight.mdsal.common.api.TransactionCommitFailedException;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadWriteTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreThreePhaseCommitCohort;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreTransactionChain;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreWriteTransaction;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeSnapshot;
+
+/**
+ * Transaction of an {@link EtcdDataStore} in lazy loading mode, see
+ * {@link EtcdDataStoreConfig#getLazyLoadingMemoryBudget()}.  It opens its actual transaction only on its first
+ * access, once the top-level node of that path is loaded, so that the snapshot which it's based on has it.  Any
+ * other top-level node which was not loaded then is read as of the revision of that snapshot, see
+ * {@link EtcdDataStore#readLazily(Base, YangInstanceIdentifier)}.
+ *
+ * <p>Writing to such a node would not be validated against what it overwrites, so as long as the transaction has
+ * only written, it's reopened on a snapshot which has that node too, and its writes are replayed; once it has read,
+ * it instead fails to commit with an {@link OptimisticLockFailedException}, like on a concurrent modification, and a
+ * retry will find the node loaded.
+ */
+@ThreadSafe
+final class EtcdLazyTransaction implements DOMStoreReadWriteTransaction {
+
+    private final String identifier;
+    private final EtcdDataStore store;
+    private final CheckedFunction<Optional<YangInstanceIdentifier>, Opened, EtcdException> opener;
+    private final @Nullable Chain chain;
+
+    @GuardedBy("this") private @Nullable Opened opened;
+    // the top-level nodes written which were not loaded in the base, so they must be read from the transaction
+    @GuardedBy("this") private final Set<PathArgument> written = new HashSet<>();
+    @GuardedBy("this") private boolean isRootWritten;
+    // the writes so far, to replay them when reopening; null once the transaction has read, and thus can't reopen
+    @GuardedBy("this") private @Nullable List<Consumer<DOMStoreWriteTransaction>> writes = new ArrayList<>();
+    @GuardedBy("this") private @Nullable Exception failure;
+
+    private EtcdLazyTransaction(String identifier, EtcdDataStore store,
+            CheckedFunction<Optional<YangInstanceIdentifier>, Opened, EtcdException> opener, @Nullable Chain chain) {
+        this.identifier = identifier;
+        this.store = store;
+        this.opener = opener;
+        this.chain = chain;
+    }
+
+    EtcdLazyTransaction(String identifier, EtcdDataStore store, Supplier<DOMStoreTransaction> factory) {
+        this(identifier, store, path -> store.openLazily(path, factory), null);
+    }
+
+    @Override
+    public Object getIdentifier() {
+        return identifier;
+    }
+
+    @Override
+    public FluentFuture<Optional<NormalizedNode<?, ?>>> read(YangInstanceIdentifier path) {
+        Base base;
+        synchronized (this) {
+            writes = null;
+            try {
+                DOMStoreReadTransaction transaction = (DOMStoreReadTransaction) open(Optional.of(path)).transaction;
+                if (isInBase(path) || isWritten(path)) {
+                    return transaction.read(path);
+                }
+            } catch (EtcdException e) {
+                return FluentFuture.from(Futures.immediateFailedFuture(
+                        new ReadFailedException(identifier + " failed to load " + path, e)));
+            }
+            base = requireNonNull(opened).base;
+        }
+        try {
+            return FluentFuture.from(Futures.immediateFuture(store.readLazily(base, path)));
+        } catch (EtcdException e) {
+            return FluentFuture.from(Futures.immediateFailedFuture(
+                    new ReadFailedException(identifier + " failed to read " + path + " at revision " + base.revision,
+                            e)));
+        }
+    }
+
+    @Override
+    public FluentFuture<Boolean> exists(YangInstanceIdentifier path) {
+        return read(path).transform(Optional::isPresent, directExecutor());
+    }
+
+    @Override
+    public void write(YangInstanceIdentifier path, NormalizedNode<?, ?> data) {
+        modify(path, transaction -> transaction.write(path, data));
+    }
+
+    @Override
+    public void merge(YangInstanceIdentifier path, NormalizedNode<?, ?> data) {
+        modify(path, transaction -> transaction.merge(path, data));
+    }
+
+    @Override
+    public void delete(YangInstanceIdentifier path) {
+        modify(path, transaction -> transaction.delete(path));
+    }
+
+    private synchronized void modify(YangInstanceIdentifier path, Consumer<DOMStoreWriteTransaction> write) {
+        try {
+            open(Optional.of(path));
+            if (!isInBase(path) && !reopen(path)) {
+                markWritten(path);
+                fail(new OptimisticLockFailedException(identifier + " wrote to " + path
+                        + ", which was not loaded when it started reading; it has been loaded now, so retry"));
+                store.ensureLoaded(path);
+            }
+        } catch (EtcdException e) {
+            markWritten(path);
+            fail(new TransactionCommitFailedException(identifier + " failed to load " + path, e));
+        }
+        if (writes != null) {
+            writes.add(write);
+        }
+        write.accept(writeTransaction());
+    }
+
+    @Override
+    public synchronized DOMStoreThreePhaseCommitCohort ready() {
+        @Var DOMStoreThreePhaseCommitCohort cohort = writeTransaction().ready();
+        Exception readyFailure = failure;
+        if (readyFailure != null) {
+            cohort = new FailedCommitCohort(cohort, readyFailure);
+        }
+        return chain != null ? chain.inFlight(cohort) : cohort;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (opened != null) {
+            opened.transaction.close();
+        }
+    }
+
+    @GuardedBy("this")
+    private Opened open(Optional<YangInstanceIdentifier> path) throws EtcdException {
+        if (opened == null) {
+            opened = opener.apply(path);
+        }
+        return opened;
+    }
+
+    @GuardedBy("this")
+    private DOMStoreWriteTransaction writeTransaction() {
+        if (opened == null) {
+            try {
+                // no path, so this does not load anything, and can't fail
+                opened = opener.apply(Optional.empty());
+            } catch (EtcdException e) {
+                throw new EtcdRuntimeException(identifier + " failed to open", e);
+            }
+        }
+        return (DOMStoreWriteTransaction) opened.transaction;
+    }
+
+    /**
+     * Reopens this transaction, which has only written so far, on a snapshot which has the top-level node of the
+     * path loaded, and replays its writes.
+     *
+     * @return whether that worked out, i.e. the new snapshot also still has everything which was written before
+     */
+    @GuardedBy("this")
+    private boolean reopen(YangInstanceIdentifier path) throws EtcdException {
+        List<Consumer<DOMStoreWriteTransaction>> replayedWrites = writes;
+        if (replayedWrites == null || failure != null) {
+            return false;
+        }
+        Opened old = requireNonNull(opened);
+        old.transaction.close();
+        opened = null;
+        Opened reopened = open(Optional.of(path));
+        DOMStoreWriteTransaction transaction = (DOMStoreWriteTransaction) reopened.transaction;
+        replayedWrites.forEach(write -> write.accept(transaction));
+        // unless something which was written before has been evicted meanwhile
+        return reopened.base.containsAll(old.base) && isInBase(path);
+    }
+
+    @GuardedBy("this")
+    private void fail(Exception exception) {
+        if (failure == null) {
+            failure = exception;
+        }
+    }
+
+    @GuardedBy("this")
+    private boolean isInBase(YangInstanceIdentifier path) {
+        return requireNonNull(opened).base.contains(path);
+    }
+
+    @GuardedBy("this")
+    private boolean isWritten(YangInstanceIdentifier path) {
+        return isRootWritten || !path.getPathArguments().isEmpty() && written.contains(path.getPathArguments().get(0));
+    }
+
+    @GuardedBy("this")
+    private void markWritten(YangInstanceIdentifier path) {
+        if (path.getPathArguments().isEmpty()) {
+            isRootWritten = true;
+        } else {
+            written.add(path.getPathArguments().get(0));
+        }
+    }
+
+    /**
+     * The snapshot of the DataTree which a transaction is based on, with the etcd revision and the top-level nodes
+     * which it has.
+     */
+    @Immutable
+    static final class Base {
+        final DataTreeSnapshot snapshot;
+        final long revision;
+        private final boolean isAllLoaded;
+        private final ImmutableSet<PathArgument> loaded;
+
+        Base(DataTreeSnapshot snapshot, long revision, boolean isAllLoaded, ImmutableSet<PathArgument> loaded) {
+            this.snapshot = snapshot;
+            this.revision = revision;
+            this.isAllLoaded = isAllLoaded;
+            this.loaded = loaded;
+        }
+
+        boolean contains(YangInstanceIdentifier path) {
+            return isAllLoaded || !path.getPathArguments().isEmpty() && loaded.contains(path.getPathArguments().get(0));
+        }
+
+        boolean containsAll(Base other) {
+            return isAllLoaded || !other.isAllLoaded && loaded.containsAll(other.loaded);
+        }
+    }
+
+    /**
+     * An actual transaction, and the base of its snapshot.
+     */
+    static final class Opened {
+        final DOMStoreTransaction transaction;
+        final Base base;
+
+        Opened(DOMStoreTransaction transaction, Base base) {
+            this.transaction = transaction;
+            this.base = base;
+        }
+    }
+
+    /**
+     * Transaction chain of an {@link EtcdDataStore} in lazy loading mode.  A transaction of a chain is based on the
+     * modification of the previous one while that one is still in flight, and thus on the snapshot which that one (or
+     * the first one in flight) was based on; only once none is in flight anymore, on a new snapshot.
+     */
+    @ThreadSafe
+    static final class Chain implements DOMStoreTransactionChain {
+
+        private final EtcdDataStore store;
+        private final DOMStoreTransactionChain delegate;
+
+        @GuardedBy("this") private int inFlightCount;
+        @GuardedBy("this") private @Nullable Base base;
+
+        Chain(EtcdDataStore store, DOMStoreTransactionChain delegate) {
+            this.store = store;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public DOMStoreReadTransaction newReadOnlyTransaction() {
+            return newTransaction(delegate::newReadOnlyTransaction);
+        }
+
+        @Override
+        public DOMStoreWriteTransaction newWriteOnlyTransaction() {
+            return newTransaction(delegate::newWriteOnlyTransaction);
+        }
+
+        @Override
+        public DOMStoreReadWriteTransaction newReadWriteTransaction() {
+            return newTransaction(delegate::newReadWriteTransaction);
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+
+        private EtcdLazyTransaction newTransaction(Supplier<DOMStoreTransaction> factory) {
+            return new EtcdLazyTransaction(store.nextLazyIdentifier(), store, path -> open(path, factory), this);
+        }
+
+        private synchronized Opened open(Optional<YangInstanceIdentifier> path, Supplier<DOMStoreTransaction> factory)
+                throws EtcdException {
+            Base chainBase = base;
+            if (inFlightCount == 0 || chainBase == null) {
+                Opened opened = store.openLazily(path, factory);
+                base = opened.base;
+                return opened;
+            }
+            if (path.isPresent()) {
+                // for later transactions; this one's snapshot won't have it anyway
+                store.ensureLoaded(path.get());
+            }
+            return new Opened(factory.get(), chainBase);
+        }
+
+        synchronized DOMStoreThreePhaseCommitCohort inFlight(DOMStoreThreePhaseCommitCohort cohort) {
+            inFlightCount++;
+            return new InFlightCommitCohort(cohort);
+        }
+
+        private synchronized void landed() {
+            inFlightCount--;
+        }
+
+        /**
+         * A transaction of the chain is in flight until it's committed or aborted; the chain bases the next one on a
+         * new snapshot already as soon as it's committed, not only once that has completed.
+         */
+        private final class InFlightCommitCohort implements DOMStoreThreePhaseCommitCohort {
+            private final DOMStoreThreePhaseCommitCohort cohort;
+            private final AtomicBoolean isLanded = new AtomicBoolean();
+
+            InFlightCommitCohort(DOMStoreThreePhaseCommitCohort cohort) {
+                this.cohort = cohort;
+            }
+
+            @Override
+            public ListenableFuture<Boolean> canCommit() {
+                return cohort.canCommit();
+            }
+
+            @Override
+            public ListenableFuture<Void> preCommit() {
+                return cohort.preCommit();
+            }
+
+            @Override
+            public ListenableFuture<Void> abort() {
+                land();
+                return cohort.abort();
+            }
+
+            @Override
+            public ListenableFuture<Void> commit() {
+                land();
+                return cohort.commit();
+            }
+
+            private void land() {
+                if (isLanded.compareAndSet(false, true)) {
+                    landed();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fails all phases but abort, which it passes on to the actual cohort.
+     */
+    private static final class FailedCommitCohort implements DOMStoreThreePhaseCommitCohort {
+        private final DOMStoreThreePhaseCommitCohort cohort;
+        private final Exception failure;
+
+        FailedCommitCohort(DOMStoreThreePhaseCommitCohort cohort, Exception failure) {
+            this.cohort = cohort;
+            this.failure = failure;
+        }
+
+        @Override
+        public ListenableFuture<Boolean> canCommit() {
+            return Futures.immediateFailedFuture(failure);
+        }
+
+        @Override
+        public ListenableFuture<Void> preCommit() {
+            return Futures.immediateFailedFuture(failure);
+        }
+
+        @Override
+        public ListenableFuture<Void> abort() {
+            return cohort.abort();
+        }
+
+        @Override
+        public ListenableFuture<Void> commit() {
+            return Futures.immediateFailedFuture(failure);
+        }
+    }
+}
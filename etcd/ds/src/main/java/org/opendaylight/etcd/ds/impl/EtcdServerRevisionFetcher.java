@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import io.etcd.jetcd.KV;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Obtains the current revision of the etcd server, coalescing concurrent requests for it.
+ *
+ * <p>Callers asking while no request is in flight send one, and all other callers which ask while that request is
+ * in flight share the next one, which is sent as soon as the current one completes.  They cannot share the in flight
+ * request, because it may have been answered by the server before they even asked, and they would then miss
+ * revisions which were committed in between; this is the same reasoning as Raft's ReadIndex batching.  There are
+ * thus never more than 2 outstanding requests, no matter how many callers there are.
+ *
+ * <p>For {@link ReadConsistency#boundedStaleness(long, Duration)} only, a previously fetched revision can be
+ * re-used for a limited time, if slightly stale data is an acceptable trade-off for saving the round trip to etcd
+ * altogether; never for {@link ReadConsistency#LINEARIZABLE}.
+ */
+@ThreadSafe
+class EtcdServerRevisionFetcher {
+
+    private final KV etcd;
+
+    @GuardedBy("this") private @Nullable CompletableFuture<Long> inFlight;
+    @GuardedBy("this") private @Nullable CompletableFuture<Long> next;
+    @GuardedBy("this") private long lastRevision;
+    @GuardedBy("this") private long lastRevisionRequestNanos;
+
+    EtcdServerRevisionFetcher(KV etcd) {
+        this.etcd = requireNonNull(etcd, "etcd");
+    }
+
+    /**
+     * Fetch the revision which a new transaction of the given consistency must await: the etcd server's current one
+     * for {@link ReadConsistency#LINEARIZABLE}, a recent one minus the allowed lag for bounded staleness, and 0 (so
+     * nothing, without asking etcd) for {@link ReadConsistency#LOCAL}.
+     */
+    @SuppressWarnings("checkstyle:MissingSwitchDefault") // http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+    CompletableFuture<Long> fetchRevisionToAwait(ReadConsistency consistency) {
+        switch (consistency.getLevel()) {
+            case LINEARIZABLE:
+                return fetch();
+
+            case BOUNDED_STALENESS:
+                return fetch(consistency.getMaxStaleness())
+                        .thenApply(revision -> Math.max(0, revision - consistency.getMaxRevisionLag()));
+
+            case LOCAL:
+                return CompletableFuture.completedFuture(0L);
+
+            // no default, as error-prone protects us, see http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+        }
+        throw new IllegalArgumentException("Unknown level: " + consistency.getLevel());
+    }
+
+    /**
+     * Fetch the etcd server's current revision.  The returned revision is at least as high as the server's revision
+     * at the time of this call, as it's only ever shared with callers of a request which was sent after this call.
+     */
+    CompletableFuture<Long> fetch() {
+        return fetch(0);
+    }
+
+    /**
+     * Fetch the etcd server's current revision, or re-use one which is not older than the given max. age.
+     */
+    CompletableFuture<Long> fetch(Duration maxAge) {
+        return fetch(maxAge.toNanos());
+    }
+
+    private synchronized CompletableFuture<Long> fetch(long allowedAgeNanos) {
+        if (allowedAgeNanos > 0 && lastRevision > 0
+                && System.nanoTime() - lastRevisionRequestNanos <= allowedAgeNanos) {
+            return CompletableFuture.completedFuture(lastRevision);
+        }
+        if (inFlight == null) {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            send(future);
+            return future;
+        }
+        if (next == null) {
+            next = new CompletableFuture<>();
+        }
+        return next;
+    }
+
+    @GuardedBy("this")
+    private void send(CompletableFuture<Long> future) {
+        inFlight = future;
+        long requestNanos = System.nanoTime();
+        EtcdServerUtils.getServerHeaderAsync(etcd).whenComplete((header, throwable) -> {
+            synchronized (this) {
+                if (throwable == null && header.getRevision() > lastRevision) {
+                    lastRevision = header.getRevision();
+                    // conservatively measure the age from when we asked, not from when we got the answer
+                    lastRevisionRequestNanos = requestNanos;
+                }
+                inFlight = null;
+                CompletableFuture<Long> nextFuture = next;
+                if (nextFuture != null) {
+                    next = null;
+                    send(nextFuture);
+                }
+            }
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+            } else {
+                future.complete(header.getRevision());
+            }
+        });
+    }
+}
@@ -12,9 +12,13 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.KV;
 import io.etcd.jetcd.Response.Header;
+import io.etcd.jetcd.kv.GetResponse;
 import io.etcd.jetcd.options.GetOption;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Small utility methods related to the etcd server.
@@ -27,6 +31,8 @@ final class EtcdServerUtils {
     private static final ByteSequence ANY_KEY = EtcdDataStore.CONFIGURATION_PREFIX;
     private static final GetOption MINIMAL_GET_OPTION = GetOption.newBuilder().withKeysOnly(true).withLimit(0).build();
 
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdServerUtils.class);
+
     private EtcdServerUtils() { }
 
     public static long getServerRevision(KV etcdKV) throws EtcdException {
@@ -34,8 +40,34 @@ final class EtcdServerUtils {
     }
 
     public static Header getServerHeader(KV etcdKV) throws EtcdException {
+        return await(getServerHeaderAsync(etcdKV));
+    }
+
+    public static CompletableFuture<Header> getServerHeaderAsync(KV etcdKV) {
+        return etcdKV.get(ANY_KEY, MINIMAL_GET_OPTION).thenApply(GetResponse::getHeader);
+    }
+
+    /**
+     * Checks whether the etcd server can still serve reads (and watches) at the given revision, i.e. that it has not
+     * yet compacted it away.  The revision must not be higher than the server's current revision.
+     */
+    public static boolean isRevisionAvailable(KV etcdKV, long rev) throws EtcdException {
+        GetOption option = GetOption.newBuilder().withCountOnly(true).withRevision(rev).build();
+        try {
+            etcdKV.get(ANY_KEY, option).get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            // typically "mvcc: required revision has been compacted"
+            LOG.info("revision {} is not available anymore", rev, e);
+            return false;
+        } catch (InterruptedException | TimeoutException e) {
+            throw new EtcdException("failed to connect (in time) to etcd server", e);
+        }
+    }
+
+    static <T> T await(CompletableFuture<T> future) throws EtcdException {
         try {
-            return etcdKV.get(ANY_KEY, MINIMAL_GET_OPTION).get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS).getHeader();
+            return future.get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS);
         } catch (InterruptedException | ExecutionException | TimeoutException e) {
             throw new EtcdException("failed to connect (in time) to etcd server", e);
         }
@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.errorprone.annotations.Var;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.mdsal.common.api.TransactionCommitFailedException;
+import org.opendaylight.mdsal.dom.api.DOMDataTreeChangeListener;
+import org.opendaylight.mdsal.dom.spi.store.DOMStore;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadWriteTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreThreePhaseCommitCohort;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreTransactionChain;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreTreeChangePublisher;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreWriteTransaction;
+import org.opendaylight.yangtools.concepts.AbstractListenerRegistration;
+import org.opendaylight.yangtools.concepts.ListenerRegistration;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.common.QNameModule;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.AugmentationIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+import org.opendaylight.yangtools.yang.data.api.schema.ContainerNode;
+import org.opendaylight.yangtools.yang.data.api.schema.DataContainerChild;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.builder.impl.ImmutableContainerNodeBuilder;
+
+/**
+ * {@link DOMStore} of one logical data store type which is made up of several {@link EtcdDataStore} shards, each for
+ * some top-level nodes.  Transactions are routed to the shard of the top-level node of each path they access; they
+ * open a transaction on a shard only when they first access it.  The root path is split among (for reads: merged
+ * from) all shards.
+ *
+ * <p>A transaction can only write to one shard; one which writes to several (which includes any write or delete of
+ * the root path) fails to commit with a {@link TransactionCommitFailedException}, because each shard commits in its
+ * own etcd Txn, so it could not be committed atomically.  Listeners of the root path are notified by each shard
+ * separately.
+ *
+ * @see EtcdDataStoreConfig#getTopLevelNodeShards()
+ */
+@ThreadSafe
+class EtcdShardedDOMStore implements DOMStore, DOMStoreTreeChangePublisher {
+
+    private final String name;
+    private final EtcdDataStore defaultShard;
+    private final ImmutableMap<QName, EtcdDataStore> topLevelNodeShards;
+    private final ImmutableMap<QNameModule, EtcdDataStore> moduleShards;
+    // the default shard first
+    private final ImmutableList<EtcdDataStore> shards;
+    private final AtomicLong txCounter = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param shardFactory creates the shard of the given name; null for the default shard
+     */
+    EtcdShardedDOMStore(String name, EtcdDataStoreConfig config, Function<String, EtcdDataStore> shardFactory) {
+        this.name = requireNonNull(name, "name");
+        this.defaultShard = shardFactory.apply(null);
+        Map<String, EtcdDataStore> shardsByName = new LinkedHashMap<>();
+        ImmutableMap.Builder<QName, EtcdDataStore> nodeShards = ImmutableMap.builder();
+        config.getTopLevelNodeShards().forEach((node, shardName) ->
+                nodeShards.put(node, shardsByName.computeIfAbsent(shardName, shardFactory)));
+        this.topLevelNodeShards = nodeShards.build();
+        ImmutableMap.Builder<QNameModule, EtcdDataStore> modShards = ImmutableMap.builder();
+        config.getModuleShards().forEach((module, shardName) ->
+                modShards.put(module, shardsByName.computeIfAbsent(shardName, shardFactory)));
+        this.moduleShards = modShards.build();
+        this.shards = ImmutableList.<EtcdDataStore>builder().add(defaultShard).addAll(shardsByName.values()).build();
+    }
+
+    /**
+     * All shards, the default one first.
+     */
+    ImmutableList<EtcdDataStore> getShards() {
+        return shards;
+    }
+
+    /**
+     * The DOMStore to use: this, if there are several shards, else the default shard itself, without any routing.
+     */
+    DOMStore asDOMStore() {
+        return shards.size() > 1 ? this : defaultShard;
+    }
+
+    void init(long rev) throws Exception {
+        for (EtcdDataStore shard : shards) {
+            shard.init(rev);
+        }
+    }
+
+    /**
+     * Initialize each shard from its root in a local snapshot, at the revision of that root.
+     * @throws EtcdException if the snapshot has no root for a shard, or it could not be applied
+     */
+    void init(EtcdSnapshotFile.Snapshot snapshot) throws EtcdException {
+        for (EtcdDataStore shard : shards) {
+            EtcdSnapshotFile.RevisionedRoot root = snapshot.getRoot(shard.getIdentifier()).orElseThrow(
+                () -> new EtcdException(shard.getIdentifier() + " has no root in the snapshot"));
+            shard.init(root.getRevision(), root.getRoot());
+        }
+    }
+
+    void resync(long rev) throws EtcdException {
+        for (EtcdDataStore shard : shards) {
+            shard.resync(rev);
+        }
+    }
+
+    /**
+     * The root of each shard, with the revision it reflects, by the identifier of the shard.
+     */
+    Map<String, EtcdSnapshotFile.RevisionedRoot> readRevisionedRoots() {
+        Map<String, EtcdSnapshotFile.RevisionedRoot> roots = new LinkedHashMap<>();
+        for (EtcdDataStore shard : shards) {
+            roots.put(shard.getIdentifier(), shard.readRevisionedRoot());
+        }
+        return roots;
+    }
+
+    void close() {
+        for (EtcdDataStore shard : shards) {
+            shard.close();
+        }
+    }
+
+    @Override
+    public DOMStoreReadTransaction newReadOnlyTransaction() {
+        return new ShardedTransaction(EtcdDataStore::newReadOnlyTransaction);
+    }
+
+    @Override
+    public DOMStoreWriteTransaction newWriteOnlyTransaction() {
+        return new ShardedTransaction(EtcdDataStore::newWriteOnlyTransaction);
+    }
+
+    @Override
+    public DOMStoreReadWriteTransaction newReadWriteTransaction() {
+        return new ShardedTransaction(EtcdDataStore::newReadWriteTransaction);
+    }
+
+    @Override
+    public DOMStoreTransactionChain createTransactionChain() {
+        return new ShardedTransactionChain();
+    }
+
+    @Override
+    public <L extends DOMDataTreeChangeListener> ListenerRegistration<L> registerTreeChangeListener(
+            YangInstanceIdentifier treeId, L listener) {
+        if (!isRoot(treeId)) {
+            return shardOf(treeId).registerTreeChangeListener(treeId, listener);
+        }
+        List<ListenerRegistration<L>> registrations = new ArrayList<>(shards.size());
+        for (EtcdDataStore shard : shards) {
+            registrations.add(shard.registerTreeChangeListener(treeId, listener));
+        }
+        return new AbstractListenerRegistration<L>(listener) {
+            @Override
+            protected void removeRegistration() {
+                registrations.forEach(ListenerRegistration::close);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + shards.size() + " shards";
+    }
+
+    private static boolean isRoot(YangInstanceIdentifier path) {
+        return path.getPathArguments().isEmpty();
+    }
+
+    private EtcdDataStore shardOf(YangInstanceIdentifier path) {
+        return shardOf(path.getPathArguments().get(0));
+    }
+
+    private EtcdDataStore shardOf(PathArgument topLevel) {
+        if (topLevel instanceof AugmentationIdentifier) {
+            // because an AugmentationIdentifier has no node type QName (and cannot be top-level anyway)
+            return defaultShard;
+        }
+        QName nodeType = topLevel.getNodeType();
+        EtcdDataStore nodeShard = topLevelNodeShards.get(nodeType);
+        if (nodeShard != null) {
+            return nodeShard;
+        }
+        return moduleShards.getOrDefault(nodeType.getModule(), defaultShard);
+    }
+
+    /**
+     * Splits a root node into one for each shard, with only the top-level nodes of that shard.
+     */
+    private Map<EtcdDataStore, ContainerNode> split(NormalizedNode<?, ?> root) {
+        if (!(root instanceof ContainerNode)) {
+            throw new IllegalArgumentException(name + " root is not a ContainerNode: " + root);
+        }
+        ContainerNode rootContainer = (ContainerNode) root;
+        Map<EtcdDataStore, List<DataContainerChild<? extends PathArgument, ?>>> children = new HashMap<>();
+        for (EtcdDataStore shard : shards) {
+            children.put(shard, new ArrayList<>());
+        }
+        for (DataContainerChild<? extends PathArgument, ?> child : rootContainer.getValue()) {
+            children.get(shardOf(child.getIdentifier())).add(child);
+        }
+        Map<EtcdDataStore, ContainerNode> shardRoots = new HashMap<>();
+        children.forEach((shard, shardChildren) -> shardRoots.put(shard, ImmutableContainerNodeBuilder.create()
+                .withNodeIdentifier(rootContainer.getIdentifier()).withValue(shardChildren).build()));
+        return shardRoots;
+    }
+
+    /**
+     * Merges the root nodes of all shards, in the order of {@link #shards}, into one.
+     */
+    private Optional<NormalizedNode<?, ?>> merge(List<Optional<NormalizedNode<?, ?>>> shardRoots) {
+        ContainerNode defaultRoot = (ContainerNode) shardRoots.get(0)
+                .orElseThrow(() -> new IllegalStateException(name + " default shard has no root node"));
+        List<DataContainerChild<? extends PathArgument, ?>> children = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            EtcdDataStore shard = shards.get(i);
+            shardRoots.get(i).ifPresent(shardRoot -> {
+                for (DataContainerChild<? extends PathArgument, ?> child : ((ContainerNode) shardRoot).getValue()) {
+                    // skip anything of another shard, e.g. written to the default one before that was configured
+                    if (shardOf(child.getIdentifier()) == shard) {
+                        children.add(child);
+                    }
+                }
+            });
+        }
+        return Optional.of(ImmutableContainerNodeBuilder.create().withNodeIdentifier(defaultRoot.getIdentifier())
+                .withValue(children).build());
+    }
+
+    private final class ShardedTransaction implements DOMStoreReadWriteTransaction {
+
+        private final String identifier = name + "-" + txCounter.getAndIncrement();
+        private final Function<EtcdDataStore, DOMStoreTransaction> factory;
+
+        // in the order in which they were opened
+        @GuardedBy("this") private final Map<EtcdDataStore, DOMStoreTransaction> subTransactions
+                = new LinkedHashMap<>();
+        @GuardedBy("this") private final Set<EtcdDataStore> writtenShards = new LinkedHashSet<>();
+
+        ShardedTransaction(Function<EtcdDataStore, DOMStoreTransaction> factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public Object getIdentifier() {
+            return identifier;
+        }
+
+        private synchronized DOMStoreTransaction on(EtcdDataStore shard) {
+            return subTransactions.computeIfAbsent(shard, factory);
+        }
+
+        private DOMStoreReadTransaction readOn(EtcdDataStore shard) {
+            return (DOMStoreReadTransaction) on(shard);
+        }
+
+        private synchronized DOMStoreWriteTransaction writeOn(EtcdDataStore shard) {
+            writtenShards.add(shard);
+            return (DOMStoreWriteTransaction) on(shard);
+        }
+
+        @Override
+        public FluentFuture<Optional<NormalizedNode<?, ?>>> read(YangInstanceIdentifier path) {
+            if (!isRoot(path)) {
+                return readOn(shardOf(path)).read(path);
+            }
+            List<ListenableFuture<Optional<NormalizedNode<?, ?>>>> shardRoots = new ArrayList<>(shards.size());
+            for (EtcdDataStore shard : shards) {
+                shardRoots.add(readOn(shard).read(path));
+            }
+            return FluentFuture.from(Futures.allAsList(shardRoots)).transform(EtcdShardedDOMStore.this::merge,
+                    directExecutor());
+        }
+
+        @Override
+        public FluentFuture<Boolean> exists(YangInstanceIdentifier path) {
+            return readOn(isRoot(path) ? defaultShard : shardOf(path)).exists(path);
+        }
+
+        @Override
+        public void write(YangInstanceIdentifier path, NormalizedNode<?, ?> data) {
+            if (!isRoot(path)) {
+                writeOn(shardOf(path)).write(path, data);
+                return;
+            }
+            // every shard, because writing the root replaces whatever there was
+            split(data).forEach((shard, shardRoot) -> writeOn(shard).write(path, shardRoot));
+        }
+
+        @Override
+        public void merge(YangInstanceIdentifier path, NormalizedNode<?, ?> data) {
+            if (!isRoot(path)) {
+                writeOn(shardOf(path)).merge(path, data);
+                return;
+            }
+            split(data).forEach((shard, shardRoot) -> {
+                if (!shardRoot.getValue().isEmpty()) {
+                    writeOn(shard).merge(path, shardRoot);
+                }
+            });
+        }
+
+        @Override
+        public void delete(YangInstanceIdentifier path) {
+            if (!isRoot(path)) {
+                writeOn(shardOf(path)).delete(path);
+                return;
+            }
+            for (EtcdDataStore shard : shards) {
+                writeOn(shard).delete(path);
+            }
+        }
+
+        @Override
+        public synchronized DOMStoreThreePhaseCommitCohort ready() {
+            if (writtenShards.size() > 1) {
+                close();
+                return new ImmediateCommitCohort(new TransactionCommitFailedException(identifier + " wrote to "
+                        + writtenShards.size() + " shards, but can only be committed atomically to one"));
+            }
+            @Var DOMStoreThreePhaseCommitCohort cohort = new ImmediateCommitCohort(null);
+            for (Map.Entry<EtcdDataStore, DOMStoreTransaction> subTransaction : subTransactions.entrySet()) {
+                if (writtenShards.contains(subTransaction.getKey())) {
+                    cohort = ((DOMStoreWriteTransaction) subTransaction.getValue()).ready();
+                } else {
+                    // only read from, so there is nothing to commit
+                    subTransaction.getValue().close();
+                }
+            }
+            return cohort;
+        }
+
+        @Override
+        public synchronized void close() {
+            subTransactions.values().forEach(DOMStoreTransaction::close);
+        }
+    }
+
+    private final class ShardedTransactionChain implements DOMStoreTransactionChain {
+
+        @GuardedBy("this") private final Map<EtcdDataStore, DOMStoreTransactionChain> chains = new HashMap<>();
+
+        private synchronized DOMStoreTransactionChain chainOf(EtcdDataStore shard) {
+            return chains.computeIfAbsent(shard, EtcdDataStore::createTransactionChain);
+        }
+
+        @Override
+        public DOMStoreReadTransaction newReadOnlyTransaction() {
+            return new ShardedTransaction(shard -> chainOf(shard).newReadOnlyTransaction());
+        }
+
+        @Override
+        public DOMStoreWriteTransaction newWriteOnlyTransaction() {
+            return new ShardedTransaction(shard -> chainOf(shard).newWriteOnlyTransaction());
+        }
+
+        @Override
+        public DOMStoreReadWriteTransaction newReadWriteTransaction() {
+            return new ShardedTransaction(shard -> chainOf(shard).newReadWriteTransaction());
+        }
+
+        @Override
+        public synchronized void close() {
+            chains.values().forEach(DOMStoreTransactionChain::close);
+        }
+    }
+
+    /**
+     * Cohort of a transaction which has nothing to commit, or which failed already; so all phases but abort complete
+     * immediately, successfully or with that failure.
+     */
+    private static final class ImmediateCommitCohort implements DOMStoreThreePhaseCommitCohort {
+
+        private final @Nullable TransactionCommitFailedException failure;
+
+        ImmediateCommitCohort(@Nullable TransactionCommitFailedException failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public ListenableFuture<Boolean> canCommit() {
+            return failure != null ? Futures.immediateFailedFuture(failure) : Futures.immediateFuture(Boolean.TRUE);
+        }
+
+        @Override
+        public ListenableFuture<Void> preCommit() {
+            return phase();
+        }
+
+        @Override
+        public ListenableFuture<Void> abort() {
+            return Futures.immediateFuture(null);
+        }
+
+        @Override
+        public ListenableFuture<Void> commit() {
+            return phase();
+        }
+
+        private ListenableFuture<Void> phase() {
+            return failure != null ? Futures.immediateFailedFuture(failure) : Futures.immediateFuture(null);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeInputOutput;
+import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
+import org.opendaylight.etcd.utils.ByteBufferDataInput;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local on-disk snapshot of the content of the data stores of a node, each together with the etcd revision it
+ * reflects.
+ *
+ * <p>The file contains a small header, followed by the identifier, revision and root node of each data store, the
+ * latter written with the (deep) {@link NormalizedNodeInputOutput} codec.  It is written to a temporary file which
+ * then atomically replaces the previous snapshot, so that a crash while saving never leaves a corrupt snapshot
+ * behind; it is read back through a memory mapped buffer.
+ */
+@ThreadSafe
+class EtcdSnapshotFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdSnapshotFile.class);
+
+    private static final int MAGIC = 0x4F444C53; // "ODLS"
+    private static final short FORMAT_VERSION = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The root node of one data store, and the etcd revision which it reflects.
+     */
+    @Immutable
+    static final class RevisionedRoot {
+        private final long revision;
+        private final NormalizedNode<?, ?> root;
+
+        RevisionedRoot(long revision, NormalizedNode<?, ?> root) {
+            this.revision = revision;
+            this.root = requireNonNull(root, "root");
+        }
+
+        long getRevision() {
+            return revision;
+        }
+
+        NormalizedNode<?, ?> getRoot() {
+            return root;
+        }
+    }
+
+    @Immutable
+    static final class Snapshot {
+        private final ImmutableMap<String, RevisionedRoot> roots;
+
+        Snapshot(Map<String, RevisionedRoot> roots) {
+            this.roots = ImmutableMap.copyOf(roots);
+        }
+
+        /**
+         * The oldest revision of all data stores, after which the (shared) watch has to continue.
+         */
+        long getRevision() {
+            return roots.values().stream().mapToLong(RevisionedRoot::getRevision).min().orElse(0);
+        }
+
+        /**
+         * The newest revision of all data stores.
+         */
+        long getLatestRevision() {
+            return roots.values().stream().mapToLong(RevisionedRoot::getRevision).max().orElse(0);
+        }
+
+        /**
+         * The root of a data store.
+         * @param dataStoreId the identifier of the data store, see {@link EtcdDataStore#getIdentifier()}
+         */
+        Optional<RevisionedRoot> getRoot(String dataStoreId) {
+            return Optional.ofNullable(roots.get(dataStoreId));
+        }
+    }
+
+    private final Path file;
+    private final Path tempFile;
+
+    EtcdSnapshotFile(Path directory, String nodeName) {
+        String fileName = (nodeName.isEmpty() ? "" : nodeName + "-") + "etcd-datastores.snapshot";
+        this.file = requireNonNull(directory, "directory").resolve(fileName);
+        this.tempFile = directory.resolve(fileName + ".tmp");
+    }
+
+    /**
+     * Save the roots of the data stores.
+     * @param roots by the identifier of their data store, see {@link EtcdDataStore#getIdentifier()}
+     */
+    synchronized void save(Map<String, RevisionedRoot> roots) throws IOException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(tempFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            output.writeInt(MAGIC);
+            output.writeShort(FORMAT_VERSION);
+            output.writeInt(roots.size());
+            for (Map.Entry<String, RevisionedRoot> root : roots.entrySet()) {
+                output.writeUTF(root.getKey());
+                output.writeLong(root.getValue().getRevision());
+                try (NormalizedNodeDataOutput nodeOutput = NormalizedNodeInputOutput.newCompactDataOutput(output)) {
+                    nodeOutput.writeNormalizedNode(root.getValue().getRoot());
+                }
+            }
+            // trailing marker, to detect truncated files
+            output.writeInt(MAGIC);
+            output.flush();
+            channel.force(true);
+        }
+        Files.move(tempFile, file, ATOMIC_MOVE, REPLACE_EXISTING);
+        LOG.info("Saved snapshot of {} to {} ({} bytes) in {}", roots.keySet(), file, Files.size(file), stopwatch);
+    }
+
+    synchronized Optional<Snapshot> load() throws IOException {
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            // NB: map() fails with an IllegalArgumentException for files larger than 2 GB
+            ByteBufferDataInput input = new ByteBufferDataInput(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            short formatVersion = input.readShort();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported snapshot format version " + formatVersion + ": " + file);
+            }
+            int count = input.readInt();
+            ImmutableMap.Builder<String, RevisionedRoot> roots = ImmutableMap.builder();
+            for (int i = 0; i < count; i++) {
+                String dataStoreId = input.readUTF();
+                long revision = input.readLong();
+                NormalizedNode<?, ?> root = NormalizedNodeInputOutput.newDataInput(input).readNormalizedNode();
+                if (root == null) {
+                    throw new IOException("Snapshot file has no root node for " + dataStoreId + ": " + file);
+                }
+                roots.put(dataStoreId, new RevisionedRoot(revision, root));
+            }
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Snapshot file is truncated: " + file);
+            }
+            Snapshot snapshot = new Snapshot(roots.build());
+            LOG.info("Loaded snapshot of revisions {} to {} from {} in {}", snapshot.getRevision(),
+                    snapshot.getLatestRevision(), file, stopwatch);
+            return Optional.of(snapshot);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EtcdSnapshotFile: " + file;
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.DeleteOption;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.PutOption;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.etcd.utils.Varints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Commits the changes of transactions which are too big for a single etcd Txn, see
+ * {@link EtcdDataStoreConfig#getMaxTxnOps()} and {@link EtcdDataStoreConfig#getMaxTxnBytes()}.  This is done in
+ * several steps:
+ *
+ * <ol>
+ * <li>the changes are written, in chunks which each fit into a request, to staging keys, which are not data;
+ * <li>a small marker Txn, which includes the transaction's compares, makes them visible atomically: when its watch
+ *     event arrives, the data store reads the chunks and applies all of their changes at once;
+ * <li>the changes are then "rolled forward" to their actual keys, in as many Txns as required;
+ * <li>finally the chunks and the marker are deleted again.
+ * </ol>
+ *
+ * <p>The marker Txn also creates a lock key of the data store, which all other commits to it require to be absent.
+ * This way nothing else can change between the marker and the end of the roll forward, so the data store can skip
+ * the watch events of the roll forward, an initial load can apply the changes of a pending staged commit on top of
+ * what it read, and at most one staged commit per data store is ever pending.  If a node fails in the middle of the
+ * roll forward, the lock remains until another node finishes it, see {@link #recover()}.  A staged commit with more
+ * compares than fit into its marker Txn takes the lock first, checks them while holding it, and only then puts its
+ * marker.
+ *
+ * <p>The staging keys are under the data store's prefix, followed by a byte which is never the first byte of an
+ * encoded YangInstanceIdentifier (that starts with its path argument count, as an int, or with
+ * {@link EtcdYangKV#PREFIX_KEY_MARKER}); they therefore can never clash with data, nor be range deleted with it, and
+ * sort after all of it.
+ */
+@ThreadSafe
+class EtcdStagedCommitter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdStagedCommitter.class);
+
+    static final byte STAGING = (byte) 0xFF;
+
+    private static final byte CHUNK = 'c';
+    private static final byte MARKER = 'm';
+    private static final byte LOCK = 'l';
+
+    private static final int TX_ID_LENGTH = 16;
+
+    // an approximation of the bytes which a Cmp takes in a request, besides its key
+    private static final int CMP_OVERHEAD = 16;
+
+    private final String name;
+    private final KV etcd;
+    private final int maxTxnOps;
+    private final int maxTxnBytes;
+    private final ByteSequence prefix;
+    private final ByteSequence stagingPrefix;
+    private final ByteSequence chunkPrefix;
+    private final ByteSequence markerPrefix;
+    private final ByteSequence lockKey;
+    private final Cmp noStagedCommitPending;
+
+    EtcdStagedCommitter(String name, KV etcd, ByteSequence prefix, int maxTxnOps, int maxTxnBytes) {
+        this.name = name;
+        this.etcd = requireNonNull(etcd, "etcd");
+        this.maxTxnOps = maxTxnOps;
+        this.maxTxnBytes = maxTxnBytes;
+        this.prefix = prefix;
+        this.stagingPrefix = ByteSequences.append(prefix, STAGING);
+        this.chunkPrefix = ByteSequences.append(stagingPrefix, CHUNK);
+        this.markerPrefix = ByteSequences.append(stagingPrefix, MARKER);
+        this.lockKey = ByteSequences.append(stagingPrefix, LOCK);
+        this.noStagedCommitPending = new Cmp(lockKey, Cmp.Op.EQUAL, CmpTarget.version(0));
+    }
+
+    boolean isStagingKey(ByteSequence key) {
+        return key.startsWith(stagingPrefix);
+    }
+
+    boolean isMarkerKey(ByteSequence key) {
+        return key.startsWith(markerPrefix);
+    }
+
+    /**
+     * The compare which every commit to the data store which is not a staged commit must include.
+     */
+    Cmp noStagedCommitPending() {
+        return noStagedCommitPending;
+    }
+
+    /**
+     * Whether a Txn of the given size can be sent as is, instead of through {@link #commit(List, List)}.
+     */
+    boolean fitsIntoOneTxn(int ops, int cmps, long bytes) {
+        // +1 for the noStagedCommitPending() compare
+        return ops <= maxTxnOps && cmps + 1 <= maxTxnOps && bytes <= maxTxnBytes;
+    }
+
+    /**
+     * An approximation of how many bytes a compare of the given key takes in a request.
+     */
+    static int sizeOfCmp(ByteSequence key) {
+        return key.size() + CMP_OVERHEAD;
+    }
+
+    /**
+     * Commit changes in several steps, as described above.
+     *
+     * @param cmps the compares which must all hold for the changes to be applied; if there are more of them than fit
+     *        into the marker Txn, the lock is taken first, and they are checked while holding it
+     * @param changes the changes
+     * @return the response of the marker Txn (or of the first Txn whose compares did not hold), which is successful if
+     *         (and only if) the changes were committed
+     */
+    CompletionStage<TxnResponse> commit(List<Cmp> cmps, List<Change> changes) {
+        byte[] txId = newTxId();
+        ByteSequence txIdSequence = ByteSequences.fromBytes(txId);
+        List<ByteSequence> chunks = encodeChunks(changes);
+        LOG.info("{} staging commit of {} changes in {} chunks", name, changes.size(), chunks.size());
+
+        List<CompletableFuture<?>> chunkPuts = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            chunkPuts.add(etcd.put(chunkKey(txId, i), chunks.get(i)));
+        }
+
+        // the chunks are only ever deleted all at once, so if the first one is still there, all of them are; this
+        // keeps a marker Txn which is (still) in flight from succeeding after cleanUpUnmarked() deleted its chunks
+        List<Cmp> chunksPresent = chunks.isEmpty() ? Collections.emptyList()
+                : Collections.singletonList(new Cmp(chunkKey(txId, 0), Cmp.Op.GREATER, CmpTarget.version(0)));
+        Op putMarker = Op.put(markerKey(txId), ByteSequences.fromBytes(Ints.toByteArray(chunks.size())),
+                PutOption.DEFAULT);
+        CompletableFuture<Void> chunksPut = CompletableFuture.allOf(chunkPuts.toArray(new CompletableFuture[0]));
+
+        CompletionStage<TxnResponse> marker;
+        if (1 + chunksPresent.size() + cmps.size() <= maxTxnOps) {
+            List<Cmp> markerCmps = new ArrayList<>(1 + chunksPresent.size() + cmps.size());
+            markerCmps.add(noStagedCommitPending);
+            markerCmps.addAll(chunksPresent);
+            markerCmps.addAll(cmps);
+            marker = chunksPut.thenCompose(puts -> etcd.txn().If(markerCmps.toArray(new Cmp[0]))
+                    .Then(putMarker, Op.put(lockKey, txIdSequence, PutOption.DEFAULT)).commit());
+        } else {
+            LOG.info("{} staged commit has {} compares, checking them while holding the lock", name, cmps.size());
+            List<Cmp> markerCmps = new ArrayList<>(1 + chunksPresent.size());
+            markerCmps.add(isLocked(txIdSequence));
+            markerCmps.addAll(chunksPresent);
+            marker = chunksPut.thenCompose(puts -> lockAndCompare(txIdSequence, cmps))
+                .thenCompose(locked -> locked.isSucceeded()
+                        ? etcd.txn().If(markerCmps.toArray(new Cmp[0])).Then(putMarker).commit()
+                        : CompletableFuture.completedFuture(locked));
+        }
+
+        return marker.thenCompose(markerResponse -> {
+            if (!markerResponse.isSucceeded()) {
+                LOG.info("{} staged commit conflicted in etcd with a concurrent modification", name);
+                return cleanUpUnmarked(txId).thenApply(cleanUp -> markerResponse);
+            }
+            return rollForward(txIdSequence, changes).thenCompose(rolledForward -> cleanUp(txId))
+                    .thenApply(cleanUp -> markerResponse);
+        }).whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                LOG.warn("{} staged commit failed", name, throwable);
+                // if it failed before it got its marker, it never will, and its chunks would be left over forever;
+                // if it failed after, cleanUpUnmarked() does nothing, and recover() will finish it
+                cleanUpUnmarked(txId);
+            }
+        });
+    }
+
+    /**
+     * Takes the lock with the first of the compares, and then checks the others, in as many Txns as required.  As
+     * nothing else can be committed to the data store while the lock is held, they all hold (or not) as of the same
+     * revision, just as if they had all been checked by the marker Txn.
+     *
+     * @return the response of the first Txn whose compares did not hold, else of the one which took the lock
+     */
+    private CompletionStage<TxnResponse> lockAndCompare(ByteSequence txId, List<Cmp> cmps) {
+        int cmpsPerTxn = maxTxnOps - 1;
+        List<Cmp> lockCmps = new ArrayList<>(cmpsPerTxn + 1);
+        lockCmps.add(noStagedCommitPending);
+        lockCmps.addAll(cmps.subList(0, Math.min(cmpsPerTxn, cmps.size())));
+        Cmp isLocked = isLocked(txId);
+        return etcd.txn().If(lockCmps.toArray(new Cmp[0])).Then(Op.put(lockKey, txId, PutOption.DEFAULT)).commit()
+            .thenCompose(locked -> {
+                if (!locked.isSucceeded() || cmps.size() <= cmpsPerTxn) {
+                    return CompletableFuture.completedFuture(locked);
+                }
+                List<CompletableFuture<TxnResponse>> checks = new ArrayList<>();
+                for (int from = cmpsPerTxn; from < cmps.size(); from += cmpsPerTxn) {
+                    List<Cmp> checkCmps = new ArrayList<>(cmpsPerTxn + 1);
+                    checkCmps.add(isLocked);
+                    checkCmps.addAll(cmps.subList(from, Math.min(from + cmpsPerTxn, cmps.size())));
+                    checks.add(etcd.txn().If(checkCmps.toArray(new Cmp[0])).commit());
+                }
+                return CompletableFuture.allOf(checks.toArray(new CompletableFuture[0]))
+                        .thenApply(all -> checks.stream().map(CompletableFuture::join)
+                                .filter(check -> !check.isSucceeded()).findFirst().orElse(locked));
+            });
+    }
+
+    /**
+     * Reads the changes of a staged commit, as of the revision of its marker.
+     */
+    List<Change> readChanges(KeyValue marker) throws EtcdException {
+        byte[] txId = txIdOfMarker(marker.getKey());
+        ByteSequence txChunkPrefix = ByteSequences.append(chunkPrefix, txId);
+        GetResponse response = EtcdServerUtils.await(etcd.get(txChunkPrefix, GetOption.newBuilder()
+                .withPrefix(txChunkPrefix).withRevision(marker.getModRevision()).build()));
+        return decodeChunks(marker, response.getKvs());
+    }
+
+    /**
+     * Finds the changes of a staged commit which was pending at the time of a read of all keys of the data store.
+     *
+     * @param stagingKeyValues all staging keys and values which the read returned
+     * @return the changes, if a staged commit was pending
+     */
+    Optional<List<Change>> findPendingChanges(List<KeyValue> stagingKeyValues) throws EtcdException {
+        for (KeyValue kv : stagingKeyValues) {
+            if (isMarkerKey(kv.getKey())) {
+                ByteSequence txChunkPrefix = ByteSequences.append(chunkPrefix, txIdOfMarker(kv.getKey()));
+                List<KeyValue> chunks = new ArrayList<>();
+                for (KeyValue chunk : stagingKeyValues) {
+                    if (chunk.getKey().startsWith(txChunkPrefix)) {
+                        chunks.add(chunk);
+                    }
+                }
+                return Optional.of(decodeChunks(kv, chunks));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Finishes the roll forward of a staged commit which was left pending, e.g. because the node which committed it
+     * failed; the data store cannot be committed to by anybody until that is done.  This can safely be done even if
+     * the staged commit is actually still in progress (the roll forward is then simply done twice).
+     */
+    void recover() throws EtcdException {
+        List<KeyValue> locks = EtcdServerUtils.await(etcd.get(lockKey)).getKvs();
+        if (locks.isEmpty()) {
+            return;
+        }
+        byte[] txId = locks.get(0).getValue().getBytes();
+        List<KeyValue> markers = EtcdServerUtils.await(etcd.get(markerKey(txId))).getKvs();
+        if (markers.isEmpty()) {
+            // a staged commit with more compares than fit into its marker Txn took the lock to check them, and then
+            // failed, or is still checking them; releasing the lock makes its marker Txn fail, if it's still coming
+            LOG.warn("{} found staged commit lock without marker, releasing it", name);
+            EtcdServerUtils.await(cleanUpUnmarked(txId).toCompletableFuture());
+            return;
+        }
+        LOG.warn("{} found pending staged commit, finishing its roll forward", name);
+        List<Change> changes = readChanges(markers.get(0));
+        EtcdServerUtils.await(rollForward(locks.get(0).getValue(), changes)
+                .thenCompose(rolledForward -> cleanUp(txId)).toCompletableFuture());
+    }
+
+    private CompletionStage<Void> rollForward(ByteSequence txId, List<Change> changes) {
+        // only while the lock is still ours, in case of a concurrent recover() which already finished
+        Cmp isStillLocked = isLocked(txId);
+        List<CompletableFuture<TxnResponse>> txns = new ArrayList<>();
+        List<Op> ops = new ArrayList<>();
+        @Var long bytes = 0;
+        for (Change change : changes) {
+            if (!ops.isEmpty() && (ops.size() == maxTxnOps || bytes + change.size() > maxTxnBytes)) {
+                txns.add(etcd.txn().If(isStillLocked).Then(ops.toArray(new Op[0])).commit());
+                ops.clear();
+                bytes = 0;
+            }
+            ops.add(change.toOp(prefix));
+            bytes += change.size();
+        }
+        if (!ops.isEmpty()) {
+            txns.add(etcd.txn().If(isStillLocked).Then(ops.toArray(new Op[0])).commit());
+        }
+        return CompletableFuture.allOf(txns.toArray(new CompletableFuture[0]));
+    }
+
+    private CompletionStage<Void> cleanUp(byte[] txId) {
+        return logFailure(etcd.txn().If(isLocked(ByteSequences.fromBytes(txId)))
+                .Then(deleteChunks(txId), Op.delete(markerKey(txId), DeleteOption.DEFAULT),
+                        Op.delete(lockKey, DeleteOption.DEFAULT)).commit());
+    }
+
+    /**
+     * Deletes the chunks of a staged commit which did not (and, because they're gone, now never will) get its marker,
+     * and then releases the lock, if that staged commit holds it.
+     */
+    private CompletionStage<Void> cleanUpUnmarked(byte[] txId) {
+        Cmp isUnmarked = new Cmp(markerKey(txId), Cmp.Op.EQUAL, CmpTarget.version(0));
+        Cmp isLocked = isLocked(ByteSequences.fromBytes(txId));
+        return logFailure(etcd.txn().If(isUnmarked).Then(deleteChunks(txId)).commit()
+                .thenCompose(deleted -> etcd.txn().If(isUnmarked, isLocked)
+                        .Then(Op.delete(lockKey, DeleteOption.DEFAULT)).commit()));
+    }
+
+    private CompletionStage<Void> logFailure(CompletionStage<TxnResponse> cleanUp) {
+        return cleanUp.handle((response, throwable) -> {
+            if (throwable != null) {
+                LOG.warn("{} failed to clean up staged commit", name, throwable);
+            }
+            return null;
+        });
+    }
+
+    private Op deleteChunks(byte[] txId) {
+        ByteSequence txChunkPrefix = ByteSequences.append(chunkPrefix, txId);
+        return Op.delete(txChunkPrefix, DeleteOption.newBuilder().withPrefix(txChunkPrefix).build());
+    }
+
+    private Cmp isLocked(ByteSequence txId) {
+        return new Cmp(lockKey, Cmp.Op.EQUAL, CmpTarget.value(txId));
+    }
+
+    @VisibleForTesting
+    List<ByteSequence> encodeChunks(List<Change> changes) {
+        List<ByteSequence> chunks = new ArrayList<>();
+        @Var ByteArrayDataOutput chunk = ByteStreams.newDataOutput();
+        @Var int chunkSize = 0;
+        try {
+            for (Change change : changes) {
+                if (chunkSize > 0 && chunkSize + change.size() > maxTxnBytes) {
+                    chunks.add(ByteSequences.fromBytes(chunk.toByteArray()));
+                    chunk = ByteStreams.newDataOutput();
+                    chunkSize = 0;
+                }
+                change.writeTo(chunk);
+                chunkSize += change.size();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("ByteArrayDataOutput cannot fail", e);
+        }
+        if (chunkSize > 0) {
+            chunks.add(ByteSequences.fromBytes(chunk.toByteArray()));
+        }
+        return chunks;
+    }
+
+    private List<Change> decodeChunks(KeyValue marker, List<KeyValue> chunks) throws EtcdException {
+        int expectedChunks = Ints.fromByteArray(marker.getValue().getBytes());
+        if (chunks.size() != expectedChunks) {
+            throw new EtcdException(name + " staged commit has " + chunks.size() + " instead of " + expectedChunks
+                    + " chunks: " + ByteSequences.asString(marker.getKey()));
+        }
+        // etcd returns keys sorted, and the chunk index is a big endian int, so the chunks are in the right order
+        List<Change> changes = new ArrayList<>();
+        try {
+            for (KeyValue chunk : chunks) {
+                changes.addAll(decodeChunk(chunk.getValue()));
+            }
+        } catch (IOException e) {
+            throw new EtcdException(name + " staged commit has corrupt chunks: "
+                    + ByteSequences.asString(marker.getKey()), e);
+        }
+        return changes;
+    }
+
+    @VisibleForTesting
+    static List<Change> decodeChunk(ByteSequence chunk) throws IOException {
+        List<Change> changes = new ArrayList<>();
+        ByteArrayInputStream bytes = new ByteArrayInputStream(chunk.getBytes());
+        DataInput input = new DataInputStream(bytes);
+        while (bytes.available() > 0) {
+            changes.add(Change.readFrom(input));
+        }
+        return changes;
+    }
+
+    private ByteSequence chunkKey(byte[] txId, int index) {
+        return ByteSequences.append(chunkPrefix, Bytes.concat(txId, Ints.toByteArray(index)));
+    }
+
+    private ByteSequence markerKey(byte[] txId) {
+        return ByteSequences.append(markerPrefix, txId);
+    }
+
+    private byte[] txIdOfMarker(ByteSequence markerKey) {
+        byte[] key = markerKey.getBytes();
+        return Arrays.copyOfRange(key, markerPrefix.size(), key.length);
+    }
+
+    private static byte[] newTxId() {
+        UUID uuid = UUID.randomUUID();
+        return ByteBuffer.allocate(TX_ID_LENGTH).putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits()).array();
+    }
+
+    /**
+     * A put (with a value) or delete (without) of a key.
+     */
+    @Immutable
+    static final class Change {
+        private final ByteSequence key;
+        private final @Nullable ByteSequence value;
+
+        Change(ByteSequence key, @Nullable ByteSequence value) {
+            this.key = requireNonNull(key, "key");
+            this.value = value;
+        }
+
+        ByteSequence getKey() {
+            return key;
+        }
+
+        @Nullable ByteSequence getValue() {
+            return value;
+        }
+
+        int size() {
+            return key.size() + (value != null ? value.size() : 0);
+        }
+
+        Op toOp(ByteSequence prefix) {
+            return value != null ? Op.put(key, value, PutOption.DEFAULT) : EtcdYangKV.newDeleteOp(prefix, key);
+        }
+
+        void writeTo(ByteArrayDataOutput output) throws IOException {
+            Varints.writeUnsignedVarInt(output, key.size());
+            output.write(key.getBytes());
+            // 0 for a delete, else the length of the value + 1
+            Varints.writeUnsignedVarInt(output, value != null ? value.size() + 1 : 0);
+            if (value != null) {
+                output.write(value.getBytes());
+            }
+        }
+
+        static Change readFrom(DataInput input) throws IOException {
+            byte[] key = new byte[Varints.readUnsignedVarInt(input)];
+            input.readFully(key);
+            int valueLength = Varints.readUnsignedVarInt(input);
+            if (valueLength == 0) {
+                return new Change(ByteSequences.fromBytes(key), null);
+            }
+            byte[] value = new byte[valueLength - 1];
+            input.readFully(value);
+            return new Change(ByteSequences.fromBytes(key), ByteSequences.fromBytes(value));
+        }
+    }
+}
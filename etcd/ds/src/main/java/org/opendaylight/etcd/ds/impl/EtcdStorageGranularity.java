@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import com.google.common.base.Preconditions;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.MapEntryNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+
+/**
+ * Policy of which nodes are stored in etcd as a single value with their entire subtree, instead of each of their
+ * descendants under its own key.  Fewer, larger values mean fewer operations per Txn and fewer watch events, but
+ * changing anything in such a subtree rewrites all of it.
+ *
+ * <p>The first node on the way from the root to a leaf which this policy chooses is the one stored with its
+ * subtree; the policy is not asked about any of its descendants.  All nodes of a cluster must use the same policy,
+ * and it cannot be changed for existing data (which would leave descendants stored both ways).
+ *
+ * <p>Implementations must be thread safe.
+ */
+public interface EtcdStorageGranularity {
+
+    /**
+     * Every node under its own key; this is the default.
+     */
+    EtcdStorageGranularity SHALLOW = (path, node) -> false;
+
+    /**
+     * Each entry of a (keyed) YANG list as one value.
+     */
+    EtcdStorageGranularity LIST_ENTRIES = (path, node) -> node instanceof MapEntryNode;
+
+    /**
+     * Each node at the given depth (e.g. 2 for the children of the top-level containers) as one value.
+     */
+    static EtcdStorageGranularity atDepth(int depth) {
+        Preconditions.checkArgument(depth > 0, "depth must be positive: %s", depth);
+        return (path, node) -> path.getPathArguments().size() >= depth;
+    }
+
+    /**
+     * Whether the node, which is not below any node for which this returned true, is stored with its subtree.
+     *
+     * @param path the path of the node
+     * @param node the node; when it's deleted, as it was before
+     */
+    boolean isStoredWithSubtree(YangInstanceIdentifier path, NormalizedNode<?, ?> node);
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import java.io.IOException;
+
+/**
+ * Compression of values written to etcd.
+ *
+ * <p>Compressed values are marked with the {@link #getId()} of the compressor which compressed them, so that they
+ * can be decompressed again by a node with that compressor, even if it would itself not compress (any more).
+ *
+ * <p>Implementations must be thread safe.
+ */
+public interface EtcdValueCompressor {
+
+    /**
+     * Unique identifier of this compressor, stored with each value it compressed; must never change.
+     * Values from 0 to 15 are reserved for the compressors of this project, see {@link DeflateValueCompressor}.
+     */
+    byte getId();
+
+    /**
+     * Compress.
+     *
+     * @param bytes buffer with the uncompressed value
+     * @param offset where in the buffer the uncompressed value starts
+     * @param length the length of the uncompressed value
+     * @return the compressed value
+     */
+    byte[] compress(byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * Decompress.
+     *
+     * @param bytes buffer with the compressed value
+     * @param offset where in the buffer the compressed value starts
+     * @param length the length of the compressed value
+     * @param uncompressedLength the length of the value before it was compressed
+     * @return the uncompressed value
+     */
+    byte[] decompress(byte[] bytes, int offset, int length, int uncompressedLength) throws IOException;
+}
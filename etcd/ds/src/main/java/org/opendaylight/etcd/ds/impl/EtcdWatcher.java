@@ -8,17 +8,29 @@
 package org.opendaylight.etcd.ds.impl;
 
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
 import io.etcd.jetcd.Watch;
 import io.etcd.jetcd.Watch.Watcher;
+import io.etcd.jetcd.common.exception.CompactedException;
 import io.etcd.jetcd.options.WatchOption;
 import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchResponse;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
 import org.opendaylight.etcd.utils.KeyValues;
 import org.opendaylight.infrautils.utils.concurrent.Executors;
 import org.opendaylight.infrautils.utils.function.CheckedBiConsumer;
@@ -28,34 +40,83 @@ import org.slf4j.LoggerFactory;
 /**
  * Utility with background thread to continuously watch for changes from etcd.
  *
+ * <p>The watch is supervised: if it fails (e.g. because the connection to etcd broke) or is completed by the server,
+ * it is restarted after the last revision whose events were consumed, so that none are missed.  If that is not
+ * possible because etcd has already compacted it, or the consumer failed to consume some events, the watch is
+ * restarted after a {@link Resync} instead.  Restarts are retried with an exponential back-off until they succeed.
+ *
+ * <p>Watch responses are handed off from the gRPC thread to a thread of our own, which applies them, through a bounded
+ * queue.  When the queue is full, the gRPC thread is held back until there is room again; gRPC's flow control then
+ * stops etcd from sending more, instead of buffering them in the client without bound.
+ *
  * @author Michael Vorburger.ch
  */
 class EtcdWatcher implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(EtcdWatcher.class);
 
+    private static final long MIN_RETRY_DELAY_MS = 100;
+    private static final long MAX_RETRY_DELAY_MS = 10_000;
+    // how often a gRPC thread held back by a full queue checks whether we were closed meanwhile
+    private static final long OFFER_TIMEOUT_MS = 500;
+    // beyond this many events, a batch of watch responses is applied even if more are queued
+    private static final int MAX_BATCH_EVENTS = 10_000;
+
+    /**
+     * Brings the consumer up to date when the watch cannot continue where it stopped.
+     */
+    @FunctionalInterface
+    interface Resync {
+        /**
+         * Makes everything up to the current revision consumed, without the watch events.
+         * @return the revision up to which everything has been consumed, after which the watch must continue
+         */
+        long resync() throws EtcdException;
+    }
+
     private final Watch etcdWatch;
-    private final ListeningExecutorService executor;
+    private final ScheduledExecutorService executor;
+    private final ListeningExecutorService applyExecutor;
+    private final BlockingQueue<QueuedResponse> queue;
     private final String name;
     private final AtomicBoolean isOpen = new AtomicBoolean(true);
 
     private final ByteSequence prefix;
     private final CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> consumer;
+    private final Resync resync;
+
+    // serializes consuming watch events with restarting the watch, and with resyncing
+    private final Object lock = new Object();
+    // incremented when the watch is restarted, so that anything still arriving from the previous one is ignored
+    @GuardedBy("lock") private long generation;
+    // the (modification) revision of the last watch event consumed
+    @GuardedBy("lock") private long lastRevision;
+    @GuardedBy("lock") private int consecutiveFailures;
+    @GuardedBy("lock") private Watcher theWatcher;
 
-    private Watcher theWatcher;
+    // the header revisions of the latest watch response received, and of the latest one applied
+    private final AtomicLong receivedServerRevision = new AtomicLong();
+    private volatile long appliedServerRevision;
 
     EtcdWatcher(String name, Client client, ByteSequence prefix,
-            CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> consumer) {
+            CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> consumer, Resync resync, int queueCapacity) {
         this.name = name;
         this.prefix = prefix;
         this.consumer = consumer;
+        this.resync = requireNonNull(resync, "resync");
         this.etcdWatch = requireNonNull(client, "client").getWatchClient();
 
-        this.executor = Executors.newListeningSingleThreadExecutor("EtcdWatcher-" + name, LOG);
+        this.executor = Executors.newSingleThreadScheduledExecutor("EtcdWatcher-" + name, LOG);
+        this.applyExecutor = Executors.newListeningSingleThreadExecutor("EtcdWatcher-apply-" + name, LOG);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
     }
 
     public void start(long revision) {
-        this.theWatcher = watch(revision);
+        applyExecutor.execute(this::applyQueued);
+        synchronized (lock) {
+            lastRevision = revision - 1;
+            theWatcher = watch(generation, revision);
+        }
     }
 
     @Override
@@ -64,28 +125,207 @@ class EtcdWatcher implements AutoCloseable {
         // do not etcdWatch.close(); as that will happen when the Client gets closed
         isOpen.set(false);
         executor.shutdownNow(); // intentionally NOT Executors.shutdownAndAwaitTermination(executor);
-        if (theWatcher != null) {
-            theWatcher.close();
+        applyExecutor.shutdownNow();
+        Watcher watcher;
+        synchronized (lock) {
+            generation++;
+            watcher = theWatcher;
+        }
+        if (watcher != null) {
+            watcher.close();
         }
         LOG.info("{} closed.", name);
     }
 
-    private Watcher watch(long revision) {
-        Watch.Listener listener = Watch.listener(response -> {
-            List<WatchEvent> events = response.getEvents();
-            for (WatchEvent event : events) {
-                LOG.info("{} watch: eventType={}, KV={}", name, event.getEventType(),
-                        KeyValues.toStringable(event.getKeyValue()));
+    /**
+     * Number of watch responses received but not yet applied.
+     */
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * How many revisions the applied watch responses are behind the latest one received, as far as we know.
+     */
+    long getRevisionLag() {
+        return Math.max(0, receivedServerRevision.get() - appliedServerRevision);
+    }
+
+    @VisibleForTesting
+    long getLastRevision() {
+        synchronized (lock) {
+            return lastRevision;
+        }
+    }
+
+    private Watcher watch(long watchGeneration, long revision) {
+        Watch.Listener listener = new Watch.Listener() {
+            @Override
+            public void onNext(WatchResponse response) {
+                enqueue(watchGeneration, response);
             }
-            try {
-                consumer.accept(response.getHeader().getRevision(), events);
-            } catch (EtcdException e) {
-                LOG.error("watch consumer accept failed", e);
+
+            @Override
+            public void onError(Throwable throwable) {
+                if (throwable instanceof CompactedException) {
+                    LOG.warn("{} watch from revision {} failed, because etcd has compacted up to revision {}",
+                            name, revision, ((CompactedException) throwable).getCompactedRevision());
+                    scheduleRestart(watchGeneration, true);
+                } else {
+                    LOG.warn("{} watch failed", name, throwable);
+                    scheduleRestart(watchGeneration, false);
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                LOG.info("{} watch completed by etcd", name);
+                scheduleRestart(watchGeneration, false);
             }
-        });
+        };
         Watcher watcher = etcdWatch.watch(prefix,
                 WatchOption.newBuilder().withPrefix(prefix).withRevision(revision).build(), listener);
         // TODO is .withRange(prefix + 1) needed?!
+        LOG.info("{} watching from revision {}", name, revision);
         return watcher;
     }
+
+    private void enqueue(long watchGeneration, WatchResponse response) {
+        receivedServerRevision.accumulateAndGet(response.getHeader().getRevision(), Math::max);
+        QueuedResponse queued = new QueuedResponse(watchGeneration, response);
+        if (queue.offer(queued)) {
+            return;
+        }
+        LOG.debug("{} watch apply queue is full, holding back the watch until there is room", name);
+        try {
+            while (!queue.offer(queued, OFFER_TIMEOUT_MS, MILLISECONDS)) {
+                if (!isOpen.get()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("{} interrupted while waiting for room in the watch apply queue", name, e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Applies the queued watch responses.  All those which arrived while the previous ones were being applied are
+     * applied together, as one batch of events (up to a limit), so that the data stores apply them as one
+     * modification, and notify their listeners once.
+     */
+    private void applyQueued() {
+        try {
+            while (isOpen.get()) {
+                QueuedResponse queued = queue.take();
+                List<WatchEvent> batch = new ArrayList<>(queued.response.getEvents());
+                @Var long batchRevision = queued.response.getHeader().getRevision();
+                while (batch.size() < MAX_BATCH_EVENTS) {
+                    QueuedResponse next = queue.peek();
+                    if (next == null || next.generation != queued.generation) {
+                        break;
+                    }
+                    queue.remove();
+                    batch.addAll(next.response.getEvents());
+                    batchRevision = Math.max(batchRevision, next.response.getHeader().getRevision());
+                }
+                consume(queued.generation, batch, batchRevision);
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("{} watch apply stopped", name, e);
+        }
+    }
+
+    @SuppressWarnings("checkstyle:IllegalCatch") // anything not caught here would stop applying altogether
+    private void consume(long watchGeneration, List<WatchEvent> events, long serverRevision) {
+        synchronized (lock) {
+            if (watchGeneration != generation) {
+                LOG.debug("{} ignoring {} events of a watch which has been restarted", name, events.size());
+                return;
+            }
+            @Var long maxModRevision = lastRevision;
+            for (WatchEvent event : events) {
+                LOG.info("{} watch: eventType={}, KV={}", name, event.getEventType(),
+                        KeyValues.toStringable(event.getKeyValue()));
+                maxModRevision = Math.max(maxModRevision, event.getKeyValue().getModRevision());
+            }
+            try {
+                consumer.accept(serverRevision, events);
+            } catch (EtcdException | RuntimeException e) {
+                // the events are lost for the consumer now, which is thus out of date until it's resynced
+                LOG.error("{} watch consumer accept failed, will resync", name, e);
+                scheduleRestart(watchGeneration, true);
+                return;
+            }
+            lastRevision = maxModRevision;
+            consecutiveFailures = 0;
+        }
+        appliedServerRevision = serverRevision;
+    }
+
+    private void scheduleRestart(long failedGeneration, boolean isResyncNeeded) {
+        if (!isOpen.get()) {
+            return;
+        }
+        long delay;
+        synchronized (lock) {
+            if (failedGeneration != generation) {
+                // this watch has already been restarted
+                return;
+            }
+            // don't let the failed watch deliver anything else (e.g. more events, after the ones which failed)
+            generation++;
+            delay = consecutiveFailures == 0 ? 0
+                    : Math.min(MAX_RETRY_DELAY_MS, MIN_RETRY_DELAY_MS << Math.min(consecutiveFailures - 1, 16));
+            consecutiveFailures++;
+        }
+        try {
+            executor.schedule(() -> restart(failedGeneration + 1, isResyncNeeded), delay, MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("{} not restarting watch, because closed", name);
+        }
+    }
+
+    @SuppressWarnings("checkstyle:IllegalCatch") // a resync which failed in any way has to be retried
+    private void restart(long restartGeneration, boolean isResyncNeeded) {
+        Watcher failedWatcher;
+        synchronized (lock) {
+            failedWatcher = theWatcher;
+            theWatcher = null;
+        }
+        // closed outside of our lock, because the watch may be delivering to us (waiting for it) holding its own
+        if (failedWatcher != null) {
+            failedWatcher.close();
+        }
+
+        synchronized (lock) {
+            if (!isOpen.get() || restartGeneration != generation) {
+                return;
+            }
+            @Var long fromRevision = lastRevision + 1;
+            if (isResyncNeeded) {
+                try {
+                    LOG.info("{} resyncing, after revision {}", name, lastRevision);
+                    lastRevision = resync.resync();
+                    fromRevision = lastRevision + 1;
+                    appliedServerRevision = Math.max(appliedServerRevision, lastRevision);
+                } catch (EtcdException | RuntimeException e) {
+                    LOG.error("{} resync failed, will retry", name, e);
+                    scheduleRestart(restartGeneration, true);
+                    return;
+                }
+            }
+            theWatcher = watch(restartGeneration, fromRevision);
+        }
+    }
+
+    private static final class QueuedResponse {
+        final long generation;
+        final WatchResponse response;
+
+        QueuedResponse(long generation, WatchResponse response) {
+            this.generation = generation;
+            this.response = response;
+        }
+    }
 }
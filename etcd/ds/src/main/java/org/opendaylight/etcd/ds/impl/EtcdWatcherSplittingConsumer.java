@@ -7,63 +7,203 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
-import static com.google.common.collect.ImmutableMap.builderWithExpectedSize;
-
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMap.Builder;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableList;
+import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.watch.WatchEvent;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import org.opendaylight.etcd.utils.ByteSequences;
 import org.opendaylight.infrautils.utils.function.CheckedBiConsumer;
 import org.opendaylight.infrautils.utils.function.CheckedConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Consumer suitable for EtcdWatcher which "splits" watch events by prefix.
- * NB: Events not matching any prefixes are silently (!) dropped.
+ * Events not matching any prefix are dropped, but counted, see {@link #getUnmatchedEventsCount()}.
+ *
+ * <p>Events are dispatched through a byte trie of the prefixes, so in time proportional to the length of the
+ * matching prefix, and not to the number of prefixes.  An event whose key starts with several (nested) prefixes goes
+ * to all of their consumers.  The lists of events passed to the consumers are re-used for the next watch response,
+ * so consumers must not keep them beyond returning from their accept method.
+ *
+ * <p>The consumers are called in the order of their prefixes.  With an executor, the consumers of all but the first
+ * prefix are called in parallel instead, after the first one; e.g. the data store shards, after the dictionary.
+ * Either way, this only returns once all consumers are done with the events.
  *
  * @author Michael Vorburger.ch
  */
 class EtcdWatcherSplittingConsumer implements CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> {
 
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdWatcherSplittingConsumer.class);
+
     private final Optional<RevAwaiter> revAwaiter;
-    private final ImmutableMap<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> splitConsumers;
+    // in the order of their prefixes; the trie references them by their index in this list
+    private final ImmutableList<CheckedConsumer<List<WatchEvent>, EtcdException>> consumers;
+    private final TrieNode trie;
+    private final @Nullable Executor parallelExecutor;
+    private final LongAdder unmatchedEvents = new LongAdder();
+
+    // the lists of events for each consumer, re-used for each watch response
+    @GuardedBy("this") private final List<List<WatchEvent>> buffers;
 
     EtcdWatcherSplittingConsumer(Optional<RevAwaiter> revAwaiter,
             Map<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> splitConsumers) {
+        this(revAwaiter, splitConsumers, null);
+    }
+
+    EtcdWatcherSplittingConsumer(Optional<RevAwaiter> revAwaiter,
+            Map<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> splitConsumers,
+            @Nullable Executor parallelExecutor) {
         this.revAwaiter = revAwaiter;
-        this.splitConsumers = ImmutableMap.copyOf(splitConsumers);
+        this.consumers = ImmutableList.copyOf(splitConsumers.values());
+        this.parallelExecutor = parallelExecutor;
+        this.trie = new TrieNode();
+        this.buffers = new ArrayList<>(consumers.size());
+        @Var int index = 0;
+        for (ByteSequence keyPrefix : splitConsumers.keySet()) {
+            trie.insert(keyPrefix.getBytes(), index++);
+            buffers.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Number of watch events so far which matched none of the prefixes, and were thus dropped.
+     */
+    long getUnmatchedEventsCount() {
+        return unmatchedEvents.sum();
     }
 
     @Override
-    public void accept(Long revision, List<WatchEvent> allWatchEvents) throws EtcdException {
-        Builder<ByteSequence, List<WatchEvent>> listsBuilder = builderWithExpectedSize(splitConsumers.size());
-        ImmutableSet<ByteSequence> prefixes = splitConsumers.keySet();
-        for (ByteSequence keyPrefix : prefixes) {
-            listsBuilder.put(keyPrefix, new ArrayList<WatchEvent>());
+    public synchronized void accept(Long revision, List<WatchEvent> allWatchEvents) throws EtcdException {
+        try {
+            for (WatchEvent watchEvent : allWatchEvents) {
+                dispatch(watchEvent);
+            }
+            callConsumers();
+        } finally {
+            for (List<WatchEvent> buffer : buffers) {
+                buffer.clear();
+            }
         }
-        ImmutableMap<ByteSequence, List<WatchEvent>> lists = listsBuilder.build();
 
-        for (WatchEvent watchEvent : allWatchEvents) {
-            for (ByteSequence keyPrefix : prefixes) {
-                if (watchEvent.getKeyValue().getKey().startsWith(keyPrefix)) {
-                    lists.get(keyPrefix).add(watchEvent);
-                }
+        revAwaiter.ifPresent(revAwait -> revAwait.update(revision));
+    }
+
+    @GuardedBy("this")
+    private void dispatch(WatchEvent watchEvent) {
+        byte[] key = watchEvent.getKeyValue().getKey().getBytes();
+        @Var boolean isMatched = false;
+        @Var TrieNode node = trie;
+        for (int i = 0; ; i++) {
+            if (node.consumerIndex >= 0) {
+                buffers.get(node.consumerIndex).add(watchEvent);
+                isMatched = true;
+            }
+            if (i == key.length) {
+                break;
+            }
+            TrieNode child = node.child(key[i]);
+            if (child == null) {
+                break;
             }
+            node = child;
         }
+        if (!isMatched) {
+            unmatchedEvents.increment();
+            LOG.debug("watch event matches no prefix, dropping it: {}", ByteSequences.toStringable(
+                    watchEvent.getKeyValue().getKey()));
+        }
+    }
 
-        for (Map.Entry<ByteSequence, List<WatchEvent>> list: lists.entrySet()) {
-            List<WatchEvent> eventsList = list.getValue();
+    @GuardedBy("this")
+    private void callConsumers() throws EtcdException {
+        List<CompletableFuture<Void>> parallel = new ArrayList<>();
+        for (int i = 0; i < consumers.size(); i++) {
+            List<WatchEvent> eventsList = buffers.get(i);
+            CheckedConsumer<List<WatchEvent>, EtcdException> consumer = consumers.get(i);
             // Important optimization, because with separate Oper/Config, one or the other is typically empty
-            if (!eventsList.isEmpty()) {
-                splitConsumers.get(list.getKey()).accept(eventsList);
+            if (eventsList.isEmpty()) {
+                continue;
+            }
+            if (parallelExecutor == null || i == 0) {
+                consumer.accept(eventsList);
+            } else {
+                parallel.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        consumer.accept(eventsList);
+                    } catch (EtcdException e) {
+                        throw new CompletionException(e);
+                    }
+                }, parallelExecutor));
+            }
+        }
+        if (!parallel.isEmpty()) {
+            try {
+                CompletableFuture.allOf(parallel.toArray(new CompletableFuture[0])).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof EtcdException) {
+                    throw (EtcdException) e.getCause();
+                }
+                throw e;
             }
         }
-
-        revAwaiter.ifPresent(revAwait -> revAwait.update(revision));
     }
 
+    /**
+     * Node of the prefix trie, with its children sorted by their byte for a binary search; built once, only read
+     * afterwards.
+     */
+    private static final class TrieNode {
+        private byte[] childBytes = new byte[0];
+        private TrieNode[] children = new TrieNode[0];
+        // index of the consumer of the prefix ending at this node, or -1
+        private int consumerIndex = -1;
+
+        void insert(byte[] prefix, int index) {
+            @Var TrieNode node = this;
+            for (byte b : prefix) {
+                node = node.childOrNew(b);
+            }
+            if (node.consumerIndex >= 0) {
+                throw new IllegalArgumentException("duplicate prefix: " + Arrays.toString(prefix));
+            }
+            node.consumerIndex = index;
+        }
+
+        @Nullable TrieNode child(byte childByte) {
+            int pos = Arrays.binarySearch(childBytes, childByte);
+            return pos >= 0 ? children[pos] : null;
+        }
+
+        private TrieNode childOrNew(byte childByte) {
+            int pos = Arrays.binarySearch(childBytes, childByte);
+            if (pos >= 0) {
+                return children[pos];
+            }
+            int insertAt = -pos - 1;
+            TrieNode child = new TrieNode();
+            byte[] newChildBytes = new byte[childBytes.length + 1];
+            TrieNode[] newChildren = new TrieNode[children.length + 1];
+            System.arraycopy(childBytes, 0, newChildBytes, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            newChildBytes[insertAt] = childByte;
+            newChildren[insertAt] = child;
+            System.arraycopy(childBytes, insertAt, newChildBytes, insertAt + 1, childBytes.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            childBytes = newChildBytes;
+            children = newChildren;
+            return child;
+        }
+    }
 }
@@ -8,41 +8,66 @@
 package org.opendaylight.etcd.ds.impl;
 
 import static java.util.Objects.requireNonNull;
-import static java.util.concurrent.CompletableFuture.completedFuture;
 import static org.opendaylight.etcd.utils.ByteSequences.toStringable;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.io.ByteArrayDataInput;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
+import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
 import io.etcd.jetcd.KV;
 import io.etcd.jetcd.KeyValue;
 import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.GetResponse;
 import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
 import io.etcd.jetcd.op.Op;
 import io.etcd.jetcd.options.DeleteOption;
 import io.etcd.jetcd.options.GetOption;
 import io.etcd.jetcd.options.PutOption;
-import java.io.ByteArrayInputStream;
+import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchEvent.EventType;
+import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
+import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.function.Function;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import javax.annotation.CheckReturnValue;
+import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
 import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.stream.copypaste.TokenTypes;
 import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataInput;
 import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
+import org.opendaylight.etcd.utils.ByteBufferDataInput;
 import org.opendaylight.etcd.utils.ByteSequences;
 import org.opendaylight.etcd.utils.LoggingKV;
+import org.opendaylight.etcd.utils.Varints;
 import org.opendaylight.infrautils.utils.concurrent.CompletableFutures;
 import org.opendaylight.infrautils.utils.function.CheckedCallable;
 import org.opendaylight.infrautils.utils.function.CheckedConsumer;
@@ -52,6 +77,7 @@ import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.AugmentationIdentifier;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
 import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNodeContainer;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeModification;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,22 +99,73 @@ class EtcdYangKV implements AutoCloseable {
     // TODO make this a configuration option (perhaps in upstream jetcd-osgi?)
     static final long TIMEOUT_MS = 3000;
 
+    // first byte of compressed values; never the first byte of an uncompressed one (a node type, or COMPACT_MARKER)
+    static final byte COMPRESSED_MARKER = (byte) 0xC3;
+
+    // first byte after the prefix of keys in the prefix key format; never the first byte of one in the original
+    // format (which starts with the int count of path arguments), nor of a staging key (EtcdStagedCommitter.STAGING)
+    static final byte PREFIX_KEY_MARKER = (byte) 0xC4;
+
+    // below this many keys in a batch, parallel decoding costs more than it saves
+    @VisibleForTesting
+    static final int PARALLEL_DECODE_THRESHOLD = 256;
+
+    // Parallel decoding runs in its own pool, not the common ForkJoinPool: with the QName dictionary, decoding a code
+    // which is not cached yet blocks on reading it from etcd, which must not stall the unrelated users of the common
+    // pool.  Its threads are daemons, as those of any ForkJoinPool, and idle ones terminate, so it needs no closing.
+    private static final ForkJoinPool DECODE_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+        pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("EtcdYangKV-decode-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+
     // TODO remove (make optional) the use of the controller.cluster
     // NormalizedNodeDataOutput & Co. extra SIGNATURE_MARKER byte
     // this isn't a problem at this early stage, but as that is added for *EVERY*
     // key *AND* value, we could (eventually) remove it
 
+    // re-used by all encodings of a thread, instead of allocating (and copying out of) new streams for each one
+    private static final ThreadLocal<EncodeBuffer> ENCODE_BUFFERS = ThreadLocal.withInitial(EncodeBuffer::new);
+
     private final KV etcd;
     private final byte[] prefixByteArray;
     private final ByteSequence prefixByteSequence;
     private final String name;
+    private final @Nullable EtcdGroupCommitter groupCommitter;
+    private final int readChunkSize;
+    private final @Nullable EtcdDictionary dictionary;
+    private final boolean isCompactValueEncodingEnabled;
+    private final boolean isPrefixKeyEncodingEnabled;
+    private final @Nullable EtcdValueCompressor valueCompressor;
+    private final int valueCompressionThreshold;
+    private final ImmutableMap<Byte, EtcdValueCompressor> decompressors;
+    private final EtcdStagedCommitter stagedCommitter;
 
     EtcdYangKV(String name, Client client, ByteSequence prefix) {
+        this(name, client, prefix, EtcdDataStoreConfig.DEFAULT, null, null);
+    }
+
+    EtcdYangKV(String name, Client client, ByteSequence prefix, EtcdDataStoreConfig config,
+            @Nullable EtcdGroupCommitter groupCommitter, @Nullable EtcdDictionary dictionary) {
         // TODO make the LoggingKV a configuration option (for performance)
         this.name = name;
         this.etcd = new LoggingKV(name + " ", requireNonNull(client, "client").getKVClient());
         this.prefixByteArray = prefix.getBytes();
         this.prefixByteSequence = prefix;
+        this.groupCommitter = groupCommitter;
+        this.readChunkSize = config.getInitialLoadChunkSize();
+        this.dictionary = dictionary;
+        this.isCompactValueEncodingEnabled = config.isCompactValueEncodingEnabled();
+        this.isPrefixKeyEncodingEnabled = config.isPrefixKeyEncodingEnabled();
+        this.valueCompressor = config.getValueCompressor().orElse(null);
+        this.valueCompressionThreshold = config.getValueCompressionThreshold();
+        Map<Byte, EtcdValueCompressor> knownCompressors = new HashMap<>();
+        knownCompressors.put(DeflateValueCompressor.ID, DeflateValueCompressor.INSTANCE);
+        config.getValueCompressor().ifPresent(compressor -> knownCompressors.put(compressor.getId(), compressor));
+        this.decompressors = ImmutableMap.copyOf(knownCompressors);
+        this.stagedCommitter = new EtcdStagedCommitter(name, etcd, prefix, config.getMaxTxnOps(),
+                config.getMaxTxnBytes());
     }
 
     @Override
@@ -128,12 +205,21 @@ class EtcdYangKV implements AutoCloseable {
                 })), e -> new ReadFailedException("Failed to read from etcd: " + path, e));
     }
 */
-    public void applyDelete(DataTreeModification dataTree, ByteSequence key) throws EtcdException {
-        YangInstanceIdentifier path = fromByteSequenceToYangInstanceIdentifier(key);
-        dataTree.delete(path);
+    DecodedChange decodeDelete(ByteSequence key) throws EtcdException {
+        return decodeDelete(key, 0, false);
+    }
+
+    DecodedChange decodePut(ByteSequence key, ByteSequence value) throws EtcdException {
+        return decodePut(key, value, 0, false);
+    }
+
+    private DecodedChange decodeDelete(ByteSequence key, long modRevision, boolean isStaged) throws EtcdException {
+        return new DecodedChange(key, fromByteSequenceToYangInstanceIdentifier(key), null, key.size(), modRevision,
+                isStaged);
     }
 
-    public void applyPut(DataTreeModification dataTree, ByteSequence key, ByteSequence value) throws EtcdException {
+    private DecodedChange decodePut(ByteSequence key, ByteSequence value, long modRevision, boolean isStaged)
+            throws EtcdException {
         try {
             YangInstanceIdentifier path = fromByteSequenceToYangInstanceIdentifier(key);
             PathArgument pathArgument = path.getLastPathArgument();
@@ -141,28 +227,357 @@ class EtcdYangKV implements AutoCloseable {
                     // because an AugmentationIdentifier has no node type QName
                     ? fromByteSequenceToNormalizedNode(value)
                     : fromByteSequenceToNormalizedNode(value, pathArgument.getNodeType());
-            // TODO when to write and when to merge, that is the question ...
-            dataTree.write(path, data);
+            return new DecodedChange(key, path, data, key.size() + value.size(), modRevision, isStaged);
         } catch (IllegalArgumentException e) {
-            // LOG.error("readAllInto write failed: {} ➠ {}", ByteSequences.asString(kv.getKey()),
-            //        ByteSequences.asString(kv.getValue()), e);
-            throw new EtcdException("readAllInto write failed: " + ByteSequences.asString(key)
+            throw new EtcdException("decode failed: " + ByteSequences.asString(key)
                     + " ➠ " + ByteSequences.asString(value), e);
         }
     }
 
-    public void readAllInto(long rev, DataTreeModification dataTree) throws EtcdException {
+    /**
+     * Decodes watch events (which must all be PUT or DELETE) into changes, in parallel if there are many of them.
+     * The returned list is in the same order as the events, which is the order in which they must be applied.  The
+     * marker of a staged commit is replaced by all of its changes, and all other staging keys are skipped, as are
+     * the DELETE events of the descendants of range deleted subtrees.
+     */
+    List<DecodedChange> decodeAll(List<WatchEvent> allEvents) throws EtcdException {
+        List<WatchEvent> events = withoutRangeDeletedDescendants(allEvents);
+        List<DecodedChange> changes = new ArrayList<>(events.size());
+        @Var int from = 0;
+        for (int i = 0; i < events.size(); i++) {
+            KeyValue kv = events.get(i).getKeyValue();
+            if (stagedCommitter.isStagingKey(kv.getKey())) {
+                changes.addAll(decodeAll(events.subList(from, i), this::decodeEvent));
+                from = i + 1;
+                if (events.get(i).getEventType() == EventType.PUT && stagedCommitter.isMarkerKey(kv.getKey())) {
+                    changes.addAll(decodeAll(stagedCommitter.readChanges(kv),
+                        change -> decodeStaged(change, kv.getModRevision())));
+                }
+            }
+        }
+        changes.addAll(decodeAll(events.subList(from, events.size()), this::decodeEvent));
+        return changes;
+    }
+
+    /**
+     * Drops the DELETE events of the descendants of a node whose key, in the prefix key format, was deleted in the
+     * same revision, because applying the delete of the node already removes its entire subtree.  A range delete
+     * emits the events of all keys it deletes in key order, so those of the descendants directly follow the node's
+     * own, whose key is a prefix of theirs.
+     */
+    private List<WatchEvent> withoutRangeDeletedDescendants(List<WatchEvent> events) {
+        @Var List<WatchEvent> result = null;
+        @Var ByteSequence rangeKey = null;
+        @Var long rangeRevision = 0;
+        for (int i = 0; i < events.size(); i++) {
+            WatchEvent event = events.get(i);
+            KeyValue kv = event.getKeyValue();
+            if (event.getEventType() != EventType.DELETE) {
+                rangeKey = null;
+            } else if (rangeKey != null && kv.getModRevision() == rangeRevision && kv.getKey().startsWith(rangeKey)) {
+                if (result == null) {
+                    result = new ArrayList<>(events.subList(0, i));
+                }
+                continue;
+            } else if (isPrefixKey(prefixByteSequence, kv.getKey())) {
+                rangeKey = kv.getKey();
+                rangeRevision = kv.getModRevision();
+            } else {
+                rangeKey = null;
+            }
+            if (result != null) {
+                result.add(event);
+            }
+        }
+        if (result != null) {
+            LOG.debug("{} applying {} DELETE events of range deleted subtrees as the deletes of their roots", name,
+                    events.size() - result.size());
+            return result;
+        }
+        return events;
+    }
+
+    private DecodedChange decodeEvent(WatchEvent event) throws EtcdException {
+        KeyValue kv = event.getKeyValue();
+        return event.getEventType() == EventType.DELETE
+                ? decodeDelete(kv.getKey(), kv.getModRevision(), false)
+                : decodePut(kv.getKey(), kv.getValue(), kv.getModRevision(), false);
+    }
+
+    private DecodedChange decodeStaged(EtcdStagedCommitter.Change change, long markerRevision)
+            throws EtcdException {
+        ByteSequence value = change.getValue();
+        return value == null ? decodeDelete(change.getKey(), markerRevision, true)
+                : decodePut(change.getKey(), value, markerRevision, true);
+    }
+
+    private static <T> List<DecodedChange> decodeAll(List<T> items,
+            CheckedFunction<T, DecodedChange, EtcdException> decoder) throws EtcdException {
+        if (items.size() < PARALLEL_DECODE_THRESHOLD) {
+            List<DecodedChange> changes = new ArrayList<>(items.size());
+            for (T item : items) {
+                changes.add(decoder.apply(item));
+            }
+            return changes;
+        }
+
+        // Decoding is mostly CPU bound and independent for each item; a parallel stream started from within the
+        // DECODE_POOL runs in it, and collecting the ordered stream into a List keeps the order of the items, so that
+        // we can then apply in order.
         try {
-            GetOption getOpt = GetOption.newBuilder().withRevision(rev).withPrefix(prefixByteSequence).build();
-            read(prefixByteSequence, getOpt, kvs -> {
+            return DECODE_POOL.submit(() -> items.parallelStream().map(item -> {
+                try {
+                    return decoder.apply(item);
+                } catch (EtcdException e) {
+                    throw new EtcdRuntimeException("parallel decode failed", e);
+                }
+            }).collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EtcdException("parallel decode interrupted", e);
+        } catch (ExecutionException e) {
+            // the ForkJoinPool may wrap the exception thrown by the task into a copy of it, so look for its cause
+            for (@Var Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof EtcdException) {
+                    throw (EtcdException) cause;
+                }
+            }
+            throw new EtcdException("parallel decode failed", e.getCause());
+        }
+    }
+
+    /**
+     * Reads all keys of our prefix as of the given revision into the DataTreeModification.  This is done in chunks
+     * of limited size (each with its own timeout), all pinned to the same revision, so that memory use and the
+     * duration of each single request do not grow with the size of the data store.  The next chunk is requested
+     * before the current one is decoded, so that fetching and decoding overlap.  The changes of a staged commit which
+     * was pending at the given revision are applied on top, after everything else.
+     *
+     * @return the keys of the changes of a pending staged commit, if any, whose roll forward is still to come
+     */
+    public Set<ByteSequence> readAllInto(long rev, DataTreeModification dataTree) throws EtcdException {
+        return readAllInto(rev, dataTree, change -> { });
+    }
+
+    /**
+     * Reads all keys like {@link #readAllInto(long, DataTreeModification)}, and passes each change read (except
+     * those of a pending staged commit) to the given consumer, once it's applied.
+     */
+    Set<ByteSequence> readAllInto(long rev, DataTreeModification dataTree, Consumer<DecodedChange> applied)
+            throws EtcdException {
+        List<KeyValue> stagingKeyValues = new ArrayList<>();
+        readRangeInto("readAllInto", rev, prefixByteSequence, dataTree, stagingKeyValues, applied);
+        return applyPendingStagedChanges(stagingKeyValues, rev, dataTree);
+    }
+
+    /**
+     * Reads the keys of the subtree of a path as of the given revision into the DataTreeModification, in chunks
+     * like {@link #readAllInto(long, DataTreeModification)}.  This requires the prefix key format, in which the keys
+     * of a subtree are a range.  The changes of a pending staged commit are not applied, only those rolled forward.
+     *
+     * @return the total size of the keys and values read, as an estimate of the memory which the subtree takes
+     * @see EtcdDataStoreConfig#isPrefixKeyEncodingEnabled()
+     */
+    long readSubtreeInto(long rev, YangInstanceIdentifier path, DataTreeModification dataTree)
+            throws EtcdException {
+        if (!isPrefixKeyEncodingEnabled) {
+            throw new IllegalStateException(name + " reading a subtree requires the prefix key format");
+        }
+        return readRangeInto("readSubtreeInto", rev, toByteSequence(path), dataTree, new ArrayList<>(), change -> { });
+    }
+
+    private long readRangeInto(String operation, long rev, ByteSequence rangePrefix, DataTreeModification dataTree,
+            List<KeyValue> stagingKeyValues, Consumer<DecodedChange> applied) throws EtcdException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        @Var long keysCount = 0;
+        @Var long bytesCount = 0;
+        @Var int chunksCount = 0;
+        try {
+            @Var CompletableFuture<GetResponse> nextChunk = readChunk(rev, rangePrefix, rangePrefix, false);
+            @Var boolean hasMore = true;
+            while (hasMore) {
+                GetResponse chunk = nextChunk.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                List<KeyValue> kvs = chunk.getKvs();
+                hasMore = chunk.isMore() && !kvs.isEmpty();
+                if (hasMore) {
+                    // the smallest key after the last one we got
+                    nextChunk = readChunk(rev, rangePrefix,
+                            ByteSequences.append(kvs.get(kvs.size() - 1).getKey(), (byte) 0), false);
+                }
+                @Var List<KeyValue> dataKeyValues = kvs;
+                if (!kvs.isEmpty() && stagedCommitter.isStagingKey(kvs.get(kvs.size() - 1).getKey())) {
+                    // staging keys sort after all data keys, so they can only be at the end
+                    dataKeyValues = new ArrayList<>(kvs.size());
+                    for (KeyValue kv : kvs) {
+                        if (stagedCommitter.isStagingKey(kv.getKey())) {
+                            stagingKeyValues.add(kv);
+                        } else {
+                            dataKeyValues.add(kv);
+                        }
+                    }
+                }
+                for (DecodedChange change : decodeAll(dataKeyValues, kv -> decodePut(kv.getKey(), kv.getValue()))) {
+                    change.applyTo(dataTree);
+                    applied.accept(change);
+                    bytesCount += change.getSize();
+                }
+                keysCount += kvs.size();
+                chunksCount++;
+                LOG.debug("{} {}: {} keys in {} chunks read so far, after {}", name, operation, keysCount,
+                        chunksCount, stopwatch);
+            }
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new EtcdException(operation + "() failed, after " + keysCount + " keys in " + chunksCount
+                    + " chunks", e);
+        }
+        LOG.info("{} {}: read {} keys ({} bytes) in {} chunks at revision {}, in {}", name, operation, keysCount,
+                bytesCount, chunksCount, rev, stopwatch);
+        return bytesCount;
+    }
+
+    /**
+     * Brings a DataTree whose content reflects everything up to revision {@code since} to the content as of revision
+     * {@code rev}, by applying only what differs, e.g. after the watch missed the events in between because etcd has
+     * compacted them.  Only the keys (and their revisions) of our prefix are read, in chunks like in
+     * {@link #readAllInto(long, DataTreeModification)}; the values only of those keys modified after {@code since}.
+     * Nodes whose keys no longer exist are deleted from the DataTree.
+     *
+     * @param localRoot the current content of the DataTree
+     * @param isAlreadyApplied whether the change of a key at a revision after {@code since} has already been applied
+     *        anyway (e.g. locally)
+     * @return the keys of the changes of a pending staged commit, if any, whose roll forward is still to come
+     */
+    public Set<ByteSequence> resyncInto(long since, long rev, NormalizedNode<?, ?> localRoot,
+            EtcdStorageGranularity storageGranularity, BiPredicate<ByteSequence, Long> isAlreadyApplied,
+            DataTreeModification dataTree) throws EtcdException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        Set<ByteSequence> etcdKeys = new HashSet<>();
+        List<ByteSequence> modifiedKeys = new ArrayList<>();
+        List<ByteSequence> stagingKeys = new ArrayList<>();
+        try {
+            @Var CompletableFuture<GetResponse> nextChunk
+                    = readChunk(rev, prefixByteSequence, prefixByteSequence, true);
+            @Var boolean hasMore = true;
+            while (hasMore) {
+                GetResponse chunk = nextChunk.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                List<KeyValue> kvs = chunk.getKvs();
+                hasMore = chunk.isMore() && !kvs.isEmpty();
+                if (hasMore) {
+                    nextChunk = readChunk(rev, prefixByteSequence,
+                            ByteSequences.append(kvs.get(kvs.size() - 1).getKey(), (byte) 0), true);
+                }
                 for (KeyValue kv : kvs) {
-                    applyPut(dataTree, kv.getKey(), kv.getValue());
+                    ByteSequence key = kv.getKey();
+                    if (stagedCommitter.isStagingKey(key)) {
+                        stagingKeys.add(key);
+                    } else {
+                        etcdKeys.add(key);
+                        if (kv.getModRevision() > since && !isAlreadyApplied.test(key, kv.getModRevision())) {
+                            modifiedKeys.add(key);
+                        }
+                    }
                 }
-                return completedFuture(null);
-            }).toCompletableFuture().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
         } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            throw new EtcdException("readAllInto() failed", e);
+            throw new EtcdException("resyncInto() failed to read keys, after " + etcdKeys.size() + " keys", e);
         }
+
+        int deletedCount = deleteMissing(YangInstanceIdentifier.EMPTY, localRoot, etcdKeys, storageGranularity,
+                dataTree);
+        // in the order of their keys, which is that of their paths, so parents are merged before their children
+        for (DecodedChange change : decodeAll(readValues(rev, modifiedKeys),
+                kv -> decodePut(kv.getKey(), kv.getValue()))) {
+            change.applyTo(dataTree, storageGranularity);
+        }
+        LOG.info("{} resyncInto: {} keys at revision {}, of which {} modified after revision {}, and {} nodes deleted, "
+                + "in {}", name, etcdKeys.size(), rev, modifiedKeys.size(), since, deletedCount, stopwatch);
+        return applyPendingStagedChanges(readValues(rev, stagingKeys), rev, dataTree);
+    }
+
+    /**
+     * Deletes the nodes which are in the DataTree but whose keys are not in etcd; does not descend into those, nor
+     * into nodes which are stored with their subtree.
+     *
+     * @return how many nodes were deleted
+     */
+    private int deleteMissing(YangInstanceIdentifier path, NormalizedNode<?, ?> node, Set<ByteSequence> etcdKeys,
+            EtcdStorageGranularity storageGranularity, DataTreeModification dataTree) throws EtcdException {
+        // the root has no key of its own
+        if (!path.getPathArguments().isEmpty()) {
+            if (!etcdKeys.contains(toByteSequence(path))) {
+                dataTree.delete(path);
+                return 1;
+            }
+            if (storageGranularity.isStoredWithSubtree(path, node)) {
+                return 0;
+            }
+        }
+        @Var int deletedCount = 0;
+        if (node instanceof NormalizedNodeContainer) {
+            for (NormalizedNode<?, ?> child : ((NormalizedNodeContainer<?, ?, ?>) node).getValue()) {
+                deletedCount += deleteMissing(path.node(child.getIdentifier()), child, etcdKeys, storageGranularity,
+                        dataTree);
+            }
+        }
+        return deletedCount;
+    }
+
+    /**
+     * Reads the values of the given keys as of a revision, all concurrently, but at most a chunk at a time.
+     */
+    private List<KeyValue> readValues(long rev, List<ByteSequence> keys) throws EtcdException {
+        List<KeyValue> kvs = new ArrayList<>(keys.size());
+        GetOption getOpt = GetOption.newBuilder().withRevision(rev).build();
+        try {
+            for (List<ByteSequence> chunk : Lists.partition(keys, readChunkSize)) {
+                List<CompletableFuture<GetResponse>> responses = new ArrayList<>(chunk.size());
+                for (ByteSequence key : chunk) {
+                    responses.add(etcd.get(key, getOpt));
+                }
+                for (CompletableFuture<GetResponse> response : responses) {
+                    kvs.addAll(response.get(TIMEOUT_MS, TimeUnit.MILLISECONDS).getKvs());
+                }
+            }
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new EtcdException("readValues() failed, after " + kvs.size() + " of " + keys.size() + " keys", e);
+        }
+        return kvs;
+    }
+
+    /**
+     * Applies the changes of a staged commit which was pending at the given revision, if there is one among the given
+     * staging keys and values.
+     *
+     * @return the keys of the changes applied, whose roll forward is still to come
+     */
+    private Set<ByteSequence> applyPendingStagedChanges(List<KeyValue> stagingKeyValues, long rev,
+            DataTreeModification dataTree) throws EtcdException {
+        Optional<List<EtcdStagedCommitter.Change>> pendingChanges =
+                stagedCommitter.findPendingChanges(stagingKeyValues);
+        if (!pendingChanges.isPresent()) {
+            return Collections.emptySet();
+        }
+        LOG.info("{} applying {} changes of pending staged commit", name, pendingChanges.get().size());
+        Set<ByteSequence> stagedKeys = new HashSet<>();
+        for (DecodedChange change : decodeAll(pendingChanges.get(), change -> decodeStaged(change, rev))) {
+            change.applyTo(dataTree);
+            stagedKeys.add(change.getKey());
+        }
+        return stagedKeys;
+    }
+
+    /**
+     * Finishes a staged commit which was left pending, see {@link EtcdStagedCommitter#recover()}.
+     */
+    void recoverStagedCommit() throws EtcdException {
+        stagedCommitter.recover();
+    }
+
+    private CompletableFuture<GetResponse> readChunk(long rev, ByteSequence rangePrefix, ByteSequence fromKey,
+            boolean isKeysOnly) {
+        GetOption getOpt = GetOption.newBuilder().withRevision(rev).withPrefix(rangePrefix)
+                .withLimit(readChunkSize).withKeysOnly(isKeysOnly).build();
+        return etcd.get(fromKey, getOpt);
     }
 
     private @CheckReturnValue <T> CompletionStage<T> read(ByteSequence key, GetOption option,
@@ -180,110 +595,406 @@ class EtcdYangKV implements AutoCloseable {
         }
     }
 
-    private static NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence)
+    private NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence)
             throws EtcdException {
-        return fromByteSequenceToNormalizedNode(byteSequence,
-            dataInput -> new ShallowNormalizedNodeInputStreamReader(dataInput));
+        return fromByteSequenceToNormalizedNode(byteSequence, null);
     }
 
-    private static NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence, QName qname)
+    private NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence, @Nullable QName qname)
             throws EtcdException {
-        return fromByteSequenceToNormalizedNode(byteSequence,
-            dataInput -> new ShallowNormalizedNodeInputStreamReader(dataInput, qname));
-    }
-
-    private static NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence,
-            Function<DataInputStream, NormalizedNodeDataInput> nodeDataInputProvider) throws EtcdException {
-        try (ByteArrayInputStream bais = new ByteArrayInputStream(byteSequence.getBytes())) {
-            try (DataInputStream dataInput = new DataInputStream(bais)) {
-                return nodeDataInputProvider.apply(dataInput).readNormalizedNode();
-            }
+        ByteBuffer buffer;
+        try {
+            // getBytes() is the one copy which jetcd's API does not let us avoid; we then read straight from that array
+            buffer = decompressIfNeeded(byteSequence.getBytes());
+        } catch (IOException e) {
+            throw new EtcdException("byte[] decompression failed", e);
+        }
+        // values of the compact version start with a marker, which values of the original version never do
+        boolean isCompact = buffer.hasRemaining() && buffer.get(buffer.position()) == TokenTypes.COMPACT_MARKER;
+        if (isCompact) {
+            buffer.get();
+        }
+        DataInput dataInput = new ByteBufferDataInput(buffer);
+        NormalizedNodeDataInput nodeDataInput = qname != null
+                ? new ShallowNormalizedNodeInputStreamReader(dataInput, qname, dictionary, isCompact)
+                : new ShallowNormalizedNodeInputStreamReader(dataInput, dictionary, isCompact);
+        try {
+            return nodeDataInput.readNormalizedNode();
         } catch (IOException e) {
             throw new EtcdException("byte[] -> NormalizedNode failed", e);
         }
     }
 
-    @VisibleForTesting
-    YangInstanceIdentifier fromByteSequenceToYangInstanceIdentifier(ByteSequence byteSequence) throws EtcdException {
-        ByteArrayDataInput dataInput = ByteStreams.newDataInput(byteSequence.getBytes());
-        for (byte prefix : prefixByteArray) {
-            byte readPrefix = dataInput.readByte();
-            if (readPrefix != prefix) {
-                throw new EtcdException(
-                        "The read prefix does not match the expected prefix: " + readPrefix + " -VS- " + prefix);
-            }
+    private ByteBuffer decompressIfNeeded(byte[] bytes) throws IOException {
+        if (bytes.length == 0 || bytes[0] != COMPRESSED_MARKER) {
+            return ByteBuffer.wrap(bytes);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+        ByteBufferDataInput header = new ByteBufferDataInput(buffer);
+        byte compressorId = header.readByte();
+        int uncompressedLength = Varints.readUnsignedVarInt(header);
+        EtcdValueCompressor decompressor = decompressors.get(compressorId);
+        if (decompressor == null) {
+            throw new IOException("Value compressed with unknown compressor ID " + compressorId);
         }
+        return ByteBuffer.wrap(decompressor.decompress(bytes, buffer.position(), buffer.remaining(),
+                uncompressedLength));
+    }
 
+    /**
+     * Whether the key (under the given prefix) is in the prefix key format.
+     * @see EtcdDataStoreConfig#isPrefixKeyEncodingEnabled()
+     */
+    static boolean isPrefixKey(ByteSequence prefix, ByteSequence key) {
+        return key.size() > prefix.size() && key.getBytes()[prefix.size()] == PREFIX_KEY_MARKER;
+    }
+
+    /**
+     * Creates the operation which deletes the node of the key; for a key in the prefix key format, that is a range
+     * delete of its entire subtree.
+     */
+    static Op newDeleteOp(ByteSequence prefix, ByteSequence key) {
+        return isPrefixKey(prefix, key) ? Op.delete(key, DeleteOption.newBuilder().withPrefix(key).build())
+                : Op.delete(key, DeleteOption.DEFAULT);
+    }
+
+    @VisibleForTesting
+    YangInstanceIdentifier fromByteSequenceToYangInstanceIdentifier(ByteSequence byteSequence) throws EtcdException {
         try {
-            NormalizedNodeDataInput nodeDataInput = new ShallowNormalizedNodeInputStreamReader(dataInput);
-            return nodeDataInput.readYangInstanceIdentifier();
+            ByteBuffer buffer = ByteBuffer.wrap(byteSequence.getBytes());
+            DataInput dataInput = new ByteBufferDataInput(buffer);
+            for (byte prefix : prefixByteArray) {
+                byte readPrefix = dataInput.readByte();
+                if (readPrefix != prefix) {
+                    throw new EtcdException(
+                            "The read prefix does not match the expected prefix: " + readPrefix + " -VS- " + prefix);
+                }
+            }
+            // keys are never compact, as the same path must always have the same key
+            NormalizedNodeDataInput nodeDataInput
+                    = new ShallowNormalizedNodeInputStreamReader(dataInput, dictionary, false);
+            if (!buffer.hasRemaining() || buffer.get(buffer.position()) != PREFIX_KEY_MARKER) {
+                return nodeDataInput.readYangInstanceIdentifier();
+            }
+            // the prefix key format has no count of path arguments, they simply go until the end of the key
+            buffer.get();
+            List<PathArgument> pathArguments = new ArrayList<>();
+            while (buffer.hasRemaining()) {
+                pathArguments.add(nodeDataInput.readPathArgument());
+            }
+            return YangInstanceIdentifier.create(pathArguments);
         } catch (IOException e) {
             throw new EtcdException("byte[] -> YangInstanceIdentifier failed", e);
         }
     }
 
-    private ByteSequence toByteSequence(boolean writePrefix,
+    private ByteSequence toByteSequence(boolean writePrefix, boolean isCompact, boolean isShallow,
             CheckedConsumer<NormalizedNodeDataOutput, IOException> consumer) throws IOException {
-        // TODO Is there any advantage converting this to use Guava's I/O ?
-        // ByteArrayDataOutput dataOutput = ByteStreams.newDataOutput();
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            try (DataOutputStream dataOutput = new DataOutputStream(baos)) {
-                if (writePrefix) {
-                    dataOutput.write(prefixByteArray, 0, prefixByteArray.length);
-                }
-                try (NormalizedNodeDataOutput nodeDataOutput = new ShallowNormalizedNodeDataOutputWriter(dataOutput)) {
-                    consumer.accept(nodeDataOutput);
-                    dataOutput.flush();
-                    return ByteSequence.from(baos.toByteArray());
-                }
+        EncodeBuffer buffer = ENCODE_BUFFERS.get();
+        buffer.reset();
+        try {
+            if (writePrefix) {
+                buffer.write(prefixByteArray, 0, prefixByteArray.length);
+            }
+            try (NormalizedNodeDataOutput nodeDataOutput
+                    = new ShallowNormalizedNodeDataOutputWriter(buffer.dataOutput, dictionary, isCompact, isShallow)) {
+                consumer.accept(nodeDataOutput);
             }
+            // only values are compressed, as keys must stay comparable
+            if (!writePrefix && valueCompressor != null && buffer.size() >= valueCompressionThreshold) {
+                return buffer.toCompressedByteSequence(valueCompressor);
+            }
+            return buffer.toByteSequence();
+        } finally {
+            buffer.release();
         }
     }
 
     @VisibleForTesting
     ByteSequence toByteSequence(YangInstanceIdentifier path) throws EtcdException {
         try {
-            return toByteSequence(true, nodeDataOutput -> nodeDataOutput.writeYangInstanceIdentifier(path));
+            return toByteSequence(true, false, true, nodeDataOutput -> {
+                if (isPrefixKeyEncodingEnabled) {
+                    // without the count of path arguments, which the original format starts with, the key of each
+                    // path is a prefix of the keys of all paths below it (as encoding path arguments is prefix-free)
+                    nodeDataOutput.writeByte(PREFIX_KEY_MARKER);
+                    for (PathArgument pathArgument : path.getPathArguments()) {
+                        nodeDataOutput.writePathArgument(pathArgument);
+                    }
+                } else {
+                    nodeDataOutput.writeYangInstanceIdentifier(path);
+                }
+            });
         } catch (IOException e) {
             throw new EtcdException("YangInstanceIdentifier toByteSequence failed: " + path.toString(), e);
         }
     }
 
-    private ByteSequence toByteSequence(NormalizedNode<?, ?> node) throws EtcdException {
+    @VisibleForTesting
+    ByteSequence toByteSequence(NormalizedNode<?, ?> node) throws EtcdException {
+        return toByteSequence(node, false);
+    }
+
+    /**
+     * Encode a node as value.
+     * @param withSubtree whether to include its entire subtree, see {@link EtcdStorageGranularity}
+     */
+    @VisibleForTesting
+    ByteSequence toByteSequence(NormalizedNode<?, ?> node, boolean withSubtree) throws EtcdException {
         try {
-            return toByteSequence(false, nodeDataOutput -> nodeDataOutput.writeNormalizedNode(node));
+            return toByteSequence(false, isCompactValueEncodingEnabled, !withSubtree,
+                nodeDataOutput -> nodeDataOutput.writeNormalizedNode(node));
         } catch (IOException e) {
             throw new EtcdException("NormalizedNode toByteSequence failed: " + node.toString(), e);
         }
     }
 
+    /**
+     * Growable buffer which is re-used for encoding, and from which a {@link ByteSequence} is created with a single
+     * copy.  A buffer which had to grow unusually large is dropped after use, so that one huge value does not keep
+     * its memory allocated forever.
+     */
+    private static final class EncodeBuffer extends ByteArrayOutputStream {
+
+        private static final int INITIAL_SIZE = 1024;
+        private static final int MAX_RETAINED_SIZE = 256 * 1024;
+        // marker, compressor ID, and uncompressed length varint
+        private static final int MAX_COMPRESSED_HEADER_SIZE = 1 + 1 + 5;
+
+        final DataOutputStream dataOutput = new DataOutputStream(this);
+
+        EncodeBuffer() {
+            super(INITIAL_SIZE);
+        }
+
+        ByteSequence toByteSequence() throws IOException {
+            dataOutput.flush();
+            return ByteSequence.from(ByteString.copyFrom(buf, 0, count));
+        }
+
+        ByteSequence toCompressedByteSequence(EtcdValueCompressor compressor) throws IOException {
+            dataOutput.flush();
+            byte[] compressed = compressor.compress(buf, 0, count);
+            if (compressed.length + MAX_COMPRESSED_HEADER_SIZE >= count) {
+                // not worth it, e.g. because the value was already compressed binary data
+                return toByteSequence();
+            }
+            ByteArrayDataOutput output = ByteStreams.newDataOutput(compressed.length + MAX_COMPRESSED_HEADER_SIZE);
+            output.writeByte(COMPRESSED_MARKER);
+            output.writeByte(compressor.getId());
+            Varints.writeUnsignedVarInt(output, count);
+            output.write(compressed);
+            return ByteSequence.from(output.toByteArray());
+        }
+
+        void release() {
+            if (buf.length > MAX_RETAINED_SIZE) {
+                ENCODE_BUFFERS.remove();
+            }
+        }
+    }
+
+    /**
+     * A decoded etcd key (and value, unless it's a delete), ready to be applied to a DataTreeModification.
+     */
+    static final class DecodedChange {
+
+        private final ByteSequence key;
+        private final YangInstanceIdentifier path;
+        private final @Nullable NormalizedNode<?, ?> data;
+        private final int size;
+        private final long modRevision;
+        private final boolean isStaged;
+
+        DecodedChange(ByteSequence key, YangInstanceIdentifier path, @Nullable NormalizedNode<?, ?> data, int size,
+                long modRevision, boolean isStaged) {
+            this.key = key;
+            this.path = path;
+            this.data = data;
+            this.size = size;
+            this.modRevision = modRevision;
+            this.isStaged = isStaged;
+        }
+
+        ByteSequence getKey() {
+            return key;
+        }
+
+        YangInstanceIdentifier getPath() {
+            return path;
+        }
+
+        /**
+         * The size of the encoded key and value, as stored in etcd.
+         */
+        int getSize() {
+            return size;
+        }
+
+        /**
+         * The etcd revision of the change; for a staged commit, that of its marker.
+         */
+        long getModRevision() {
+            return modRevision;
+        }
+
+        /**
+         * Whether this change is part of a staged commit, and thus will be followed by a watch event of its key
+         * when it's rolled forward.
+         */
+        boolean isStaged() {
+            return isStaged;
+        }
+
+        @VisibleForTesting
+        @Nullable NormalizedNode<?, ?> getData() {
+            return data;
+        }
+
+        /**
+         * Applies this change like {@link #applyTo(DataTreeModification)}, except that a node which is not stored
+         * with its subtree is merged instead of written, so that the children it already has in the DataTree are kept.
+         */
+        void applyTo(DataTreeModification dataTree, EtcdStorageGranularity storageGranularity) throws EtcdException {
+            if (data != null && !storageGranularity.isStoredWithSubtree(path, data)) {
+                try {
+                    dataTree.merge(path, data);
+                } catch (IllegalArgumentException e) {
+                    throw new EtcdException("apply failed: " + ByteSequences.asString(key) + " ➠ " + path, e);
+                }
+            } else {
+                applyTo(dataTree);
+            }
+        }
+
+        void applyTo(DataTreeModification dataTree) throws EtcdException {
+            try {
+                if (data == null) {
+                    dataTree.delete(path);
+                } else {
+                    // TODO when to write and when to merge, that is the question ...
+                    dataTree.write(path, data);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new EtcdException("apply failed: " + ByteSequences.asString(key) + " ➠ " + path, e);
+            }
+        }
+    }
+
     public class EtcdTxn {
 
-        private final Txn txn;
         private final List<Op> opsList;
+        private final List<Cmp> cmpList;
+        private final Set<ByteSequence> keys;
+        private final Set<ByteSequence> comparedKeys;
+        private final Set<ByteSequence> rangeDeletedKeys;
+        // the same as the opsList, for a staged commit, because an Op does not expose its key and value
+        private final List<EtcdStagedCommitter.Change> changes;
+        private long bytes;
 
         EtcdTxn() {
-            txn = etcd.txn();
-            // TODO txn.If();
             opsList = new ArrayList<>();
+            cmpList = new ArrayList<>();
+            keys = new HashSet<>();
+            comparedKeys = new HashSet<>();
+            rangeDeletedKeys = new HashSet<>();
+            changes = new ArrayList<>();
         }
 
-        public void put(YangInstanceIdentifier path, NormalizedNode<?, ?> data) throws EtcdException {
+        /**
+         * Put data.
+         * @return the etcd key of the path, e.g. for {@link #ifUnmodifiedSince(ByteSequence, long, boolean)}
+         */
+        public ByteSequence put(YangInstanceIdentifier path, NormalizedNode<?, ?> data) throws EtcdException {
+            return put(path, data, false);
+        }
+
+        /**
+         * Put data, optionally with its entire subtree as one value.
+         * @return the etcd key of the path, e.g. for {@link #ifUnmodifiedSince(ByteSequence, long, boolean)}
+         * @see EtcdStorageGranularity
+         */
+        public ByteSequence put(YangInstanceIdentifier path, NormalizedNode<?, ?> data, boolean withSubtree)
+                throws EtcdException {
             ByteSequence key = toByteSequence(path);
-            ByteSequence value = toByteSequence(data);
+            ByteSequence value = toByteSequence(data, withSubtree);
             opsList.add(Op.put(key, value, PutOption.DEFAULT));
+            keys.add(key);
+            changes.add(new EtcdStagedCommitter.Change(key, value));
+            bytes += key.size() + value.size();
             // TODO remove logging here once LoggingKV can correctly support txn() [missing getters]
             LOG.info("{} TXN put: {} ➠ {}", name, toStringable(key), toStringable(value));
+            return key;
         }
 
-        public void delete(YangInstanceIdentifier path) throws EtcdException {
+        /**
+         * Delete data.  With {@link EtcdDataStoreConfig#isPrefixKeyEncodingEnabled()}, this deletes the entire
+         * subtree below the path as well, with a single range delete.
+         * @return the etcd key of the path, e.g. for {@link #ifUnmodifiedSince(ByteSequence, long, boolean)}
+         */
+        public ByteSequence delete(YangInstanceIdentifier path) throws EtcdException {
             ByteSequence key = toByteSequence(path);
-            opsList.add(Op.delete(key, DeleteOption.DEFAULT));
+            opsList.add(newDeleteOp(prefixByteSequence, key));
+            keys.add(key);
+            if (isPrefixKey(prefixByteSequence, key)) {
+                rangeDeletedKeys.add(key);
+            }
+            changes.add(new EtcdStagedCommitter.Change(key, null));
+            bytes += key.size();
             // TODO remove logging here once LoggingKV can correctly support txn() [missing getters]
             LOG.info("{} TXN delete: {}", name, toStringable(key));
+            return key;
+        }
+
+        /**
+         * The etcd key of a path, which this Txn neither puts nor deletes, but which it may compare.
+         * @return the etcd key of the path, e.g. for {@link #ifUnmodifiedSince(ByteSequence, long, boolean)}
+         */
+        public ByteSequence keyOf(YangInstanceIdentifier path) throws EtcdException {
+            return toByteSequence(path);
+        }
+
+        /**
+         * Makes this Txn fail, instead of applying any of its operations, if the key was modified in etcd after the
+         * given revision, or if it existed then but was deleted since.  A Txn which failed this way completes
+         * normally, but with a response which is not {@link TxnResponse#isSucceeded()}.
+         *
+         * @param key the etcd key
+         * @param revision the etcd revision which the caller based its changes on
+         * @param existed whether the key existed at that revision
+         */
+        public void ifUnmodifiedSince(ByteSequence key, long revision, boolean existed) {
+            cmpList.add(new Cmp(key, Cmp.Op.LESS, CmpTarget.modRevision(revision + 1)));
+            bytes += EtcdStagedCommitter.sizeOfCmp(key);
+            if (existed) {
+                cmpList.add(new Cmp(key, Cmp.Op.GREATER, CmpTarget.version(0)));
+                bytes += EtcdStagedCommitter.sizeOfCmp(key);
+            }
+            comparedKeys.add(key);
+        }
+
+        /**
+         * The keys which this Txn puts or deletes.
+         */
+        public Set<ByteSequence> getKeys() {
+            return Collections.unmodifiableSet(keys);
         }
 
+        /**
+         * Commit.  If this is too big for a single etcd Txn, it's done by the {@link EtcdStagedCommitter}; else
+         * it's one Txn (possibly grouped with others), which fails if a staged commit is pending.
+         */
         public @CheckReturnValue CompletionStage<TxnResponse> commit() {
+            if (!stagedCommitter.fitsIntoOneTxn(opsList.size(), cmpList.size(), bytes)) {
+                return stagedCommitter.commit(cmpList, changes);
+            }
+            cmpList.add(stagedCommitter.noStagedCommitPending());
+            if (groupCommitter != null) {
+                // the lock key is not among the keys, because no commit which can be grouped modifies it
+                return groupCommitter.commit(cmpList, opsList, Sets.union(keys, comparedKeys), rangeDeletedKeys);
+            }
+            Txn txn = etcd.txn();
+            txn.If(cmpList.toArray(new Cmp[cmpList.size()]));
             txn.Then(opsList.toArray(new Op[opsList.size()]));
             return txn.commit();
         }
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+
+/**
+ * The top-level nodes which a data store in lazy loading mode has loaded, with their estimated sizes, in the order of
+ * their last access, and which of them are pinned, i.e. must not be evicted, because they have listeners.  Once
+ * everything is loaded (e.g. for a read of the root), any top-level node counts as loaded, including those which
+ * don't exist yet; until one is evicted.
+ *
+ * @see EtcdDataStoreConfig#getLazyLoadingMemoryBudget()
+ */
+@NotThreadSafe
+class LoadedTopLevelNodes {
+
+    private final long memoryBudget;
+    private final Map<PathArgument, Long> sizes = new HashMap<>();
+    // least recently accessed first
+    private final LinkedHashSet<PathArgument> accessOrder = new LinkedHashSet<>();
+    private final Map<PathArgument, Integer> pins = new HashMap<>();
+    private int rootPins;
+    private boolean isAllLoaded;
+    private long totalSize;
+
+    LoadedTopLevelNodes(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    boolean isAllLoaded() {
+        return isAllLoaded;
+    }
+
+    boolean isLoaded(PathArgument topLevelNode) {
+        return isAllLoaded || sizes.containsKey(topLevelNode);
+    }
+
+    /**
+     * The top-level nodes loaded so far which exist; if {@link #isAllLoaded()}, the others are loaded as well.
+     */
+    ImmutableSet<PathArgument> getLoaded() {
+        return ImmutableSet.copyOf(sizes.keySet());
+    }
+
+    long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * A top-level node was loaded; as the most recently accessed one, unless it was reloaded.
+     */
+    void loaded(PathArgument topLevelNode, long size) {
+        Long oldSize = sizes.put(topLevelNode, size);
+        if (oldSize != null) {
+            totalSize -= oldSize;
+        } else {
+            accessOrder.add(topLevelNode);
+        }
+        totalSize += size;
+    }
+
+    /**
+     * Everything was loaded, with the given sizes of the top-level nodes which exist.
+     */
+    void allLoaded(Map<PathArgument, Long> topLevelNodeSizes) {
+        sizes.clear();
+        accessOrder.clear();
+        totalSize = 0;
+        topLevelNodeSizes.forEach(this::loaded);
+        isAllLoaded = true;
+    }
+
+    void accessed(PathArgument topLevelNode) {
+        if (accessOrder.remove(topLevelNode)) {
+            accessOrder.add(topLevelNode);
+        }
+    }
+
+    /**
+     * A loaded top-level node was changed (by the watch, which does not count as an access), and so (probably) grew.
+     * Sizes only ever grow, until reloaded, so they are an overestimate rather than an underestimate.
+     */
+    void changed(PathArgument topLevelNode, long size) {
+        Long oldSize = sizes.get(topLevelNode);
+        if (oldSize != null) {
+            sizes.put(topLevelNode, oldSize + size);
+            totalSize += size;
+        } else if (isAllLoaded) {
+            // one which did not exist when everything was loaded
+            loaded(topLevelNode, size);
+        }
+    }
+
+    void remove(PathArgument topLevelNode) {
+        Long oldSize = sizes.remove(topLevelNode);
+        if (oldSize != null) {
+            accessOrder.remove(topLevelNode);
+            totalSize -= oldSize;
+        }
+    }
+
+    void pin(PathArgument topLevelNode) {
+        pins.merge(topLevelNode, 1, Integer::sum);
+    }
+
+    void unpin(PathArgument topLevelNode) {
+        pins.computeIfPresent(topLevelNode, (node, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * The top-level nodes which are pinned; if {@link #isAllPinned()}, the others are pinned as well.
+     */
+    ImmutableSet<PathArgument> getPinned() {
+        return ImmutableSet.copyOf(pins.keySet());
+    }
+
+    boolean isAllPinned() {
+        return rootPins > 0;
+    }
+
+    void pinAll() {
+        rootPins++;
+    }
+
+    void unpinAll() {
+        rootPins--;
+    }
+
+    /**
+     * Removes the least recently accessed top-level nodes which are not pinned, until the total size is within the
+     * memory budget again (or there are no more which could be removed).  Nothing is evicted while everything is
+     * pinned, i.e. while there are listeners of the root.
+     *
+     * @param keep a top-level node which must be kept in any case, e.g. because it was just loaded to be accessed
+     * @return the top-level nodes to remove from the DataTree
+     */
+    List<PathArgument> evict(@Nullable PathArgument keep) {
+        List<PathArgument> evicted = new ArrayList<>();
+        if (rootPins > 0) {
+            return evicted;
+        }
+        Iterator<PathArgument> leastRecentlyAccessed = accessOrder.iterator();
+        while (totalSize > memoryBudget && leastRecentlyAccessed.hasNext()) {
+            PathArgument topLevelNode = leastRecentlyAccessed.next();
+            if (!topLevelNode.equals(keep) && !pins.containsKey(topLevelNode)) {
+                leastRecentlyAccessed.remove();
+                totalSize -= sizes.remove(topLevelNode);
+                evicted.add(topLevelNode);
+            }
+        }
+        if (!evicted.isEmpty()) {
+            isAllLoaded = false;
+        }
+        return evicted;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import java.time.Duration;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * How up-to-date the data seen by a new transaction of an {@link EtcdDataStore} has to be.
+ */
+@Immutable
+public final class ReadConsistency {
+
+    public enum Level {
+        /**
+         * Await all changes committed anywhere in the cluster before the transaction was created.
+         */
+        LINEARIZABLE,
+
+        /**
+         * Await changes committed before the transaction was created, but accept lagging behind by a bounded number
+         * of revisions, and/or re-use a recently observed server revision instead of asking etcd for it.
+         */
+        BOUNDED_STALENESS,
+
+        /**
+         * Don't await anything, but immediately use whatever data this node has already received from etcd.
+         */
+        LOCAL
+    }
+
+    public static final ReadConsistency LINEARIZABLE = new ReadConsistency(Level.LINEARIZABLE, 0, Duration.ZERO);
+
+    public static final ReadConsistency LOCAL = new ReadConsistency(Level.LOCAL, 0, Duration.ZERO);
+
+    private final Level level;
+    private final long maxRevisionLag;
+    private final Duration maxStaleness;
+
+    private ReadConsistency(Level level, long maxRevisionLag, Duration maxStaleness) {
+        this.level = level;
+        this.maxRevisionLag = maxRevisionLag;
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * Bounded staleness consistency.
+     *
+     * @param maxRevisionLag by how many revisions the data may be behind the etcd server's current revision
+     * @param maxStaleness   how old the etcd server revision used as reference may be
+     */
+    public static ReadConsistency boundedStaleness(long maxRevisionLag, Duration maxStaleness) {
+        Preconditions.checkArgument(maxRevisionLag >= 0, "maxRevisionLag must not be negative: %s", maxRevisionLag);
+        Preconditions.checkArgument(!requireNonNull(maxStaleness, "maxStaleness").isNegative(),
+                "maxStaleness must not be negative: %s", maxStaleness);
+        return new ReadConsistency(Level.BOUNDED_STALENESS, maxRevisionLag, maxStaleness);
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public long getMaxRevisionLag() {
+        return maxRevisionLag;
+    }
+
+    public Duration getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    @Override
+    public String toString() {
+        MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this).addValue(level);
+        if (level == Level.BOUNDED_STALENESS) {
+            helper.add("maxRevisionLag", maxRevisionLag).add("maxStaleness", maxStaleness);
+        }
+        return helper.toString();
+    }
+}
@@ -7,38 +7,68 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
-import com.google.errorprone.annotations.Var;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 import java.time.Duration;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.infrautils.utils.concurrent.Executors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Concurrency utility to await availability of certain revisions.
  *
+ * <p>Waiters are kept in a skip list ordered by the revision they await, so that an {@link #update(long)} completes
+ * (and removes) the k waiters it satisfies in O(k log n), without any locking, and without touching the others.
+ * Waiters which time out are removed as well.
+ *
+ * <p>etcd revisions are signed 64 bit integers which start at 1 and only ever increase, so they cannot realistically
+ * overflow; we do not use any revision arithmetic here (only comparisons), and reject negative revisions in
+ * {@link #update(long)}, which is what an overflow would produce.  Awaiting revisions below 1 returns immediately.
+ *
  * @author Michael Vorburger.ch
  */
 @ThreadSafe
-class RevAwaiter {
-
-    // TODO This must take possible long overflow of the long revision into account...
-
-    // TODO is it better to use java.util.concurrent.locks.Condition instead of Object.wait() - why?
+class RevAwaiter implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(RevAwaiter.class);
 
-    private static final AwaitableRev[] EMPTY_ARRAY = new AwaitableRev[0];
-
-    private static class AwaitableRev {
+    private static final class WaiterKey implements Comparable<WaiterKey> {
         final long rev;
+        final long seq;
 
-        AwaitableRev(long rev) {
+        WaiterKey(long rev, long seq) {
             this.rev = rev;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(WaiterKey other) {
+            int revComparison = Long.compare(rev, other.rev);
+            return revComparison != 0 ? revComparison : Long.compare(seq, other.seq);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof WaiterKey && compareTo((WaiterKey) obj) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(rev) * 31 + Long.hashCode(seq);
         }
 
         @Override
@@ -48,19 +78,25 @@ class RevAwaiter {
     }
 
     private final AtomicLong currentRev = new AtomicLong();
-    private final Queue<AwaitableRev> pq = new PriorityQueue<>((o1, o2) -> Long.compare(o1.rev, o2.rev));
+    private final AtomicLong waiterSequence = new AtomicLong();
+    private final ConcurrentNavigableMap<WaiterKey, CompletableFuture<Void>> waiters = new ConcurrentSkipListMap<>();
+    private final AtomicBoolean isClosed = new AtomicBoolean();
     private final String nodeName;
 
+    // only created on the first awaitAsync(), as the blocking await() does not need it
+    @GuardedBy("this") private ScheduledExecutorService timeoutScheduler;
+
     RevAwaiter(String nodeName) {
         this.nodeName = nodeName;
     }
 
-    // shut up FindBugs, I'm a grown up knowing what I'm doing here - I hope! ;-)
-    @SuppressFBWarnings({ "NO_NOTIFY_NOT_NOTIFYALL", "NN_NAKED_NOTIFY" })
     void update(long rev) {
         // Testing here is for debugging problems during development.
         // This IllegalStateException is not expected to ever happen in production,
         // if there are no logical design errors made in the code using this.
+        if (rev < 0) {
+            throw new IllegalArgumentException(nodeName + " update must not be negative (overflow?): " + rev);
+        }
         currentRev.getAndUpdate(previous -> {
             if (rev <= previous) {
                 throw new IllegalStateException(
@@ -70,49 +106,119 @@ class RevAwaiter {
             }
         });
 
-        AwaitableRev[] pqCopy;
-        synchronized (pq) {
-            pqCopy = pq.toArray(EMPTY_ARRAY);
-        }
-        for (AwaitableRev awaitable : pqCopy) {
-            if (rev >= awaitable.rev) {
-                synchronized (awaitable) {
-                    awaitable.notify();
-                }
-            } else {
-                break;
+        for (Map.Entry<WaiterKey, CompletableFuture<Void>> first = waiters.firstEntry();
+                first != null && first.getKey().rev <= rev; first = waiters.firstEntry()) {
+            // remove() can fail if the waiter concurrently timed out, or was completed by registration re-check
+            if (waiters.remove(first.getKey(), first.getValue())) {
+                first.getValue().complete(null);
             }
         }
 
         LOG.info("{} update: {}", nodeName, rev);
     }
 
+    /**
+     * The current revision; all revisions up to and including it have been reached.
+     */
+    long getCurrentRevision() {
+        return currentRev.get();
+    }
+
+    /**
+     * Await a revision, asynchronously.
+     *
+     * @param rev the revision to await
+     * @param maxWaitTime after how long to fail the returned future with a {@link TimeoutException}
+     * @return a future which completes as soon as the revision has been reached
+     */
+    CompletionStage<Void> awaitAsync(long rev, Duration maxWaitTime) {
+        if (currentRev.get() >= rev) {
+            return CompletableFuture.completedFuture(null);
+        }
+        WaiterKey key = new WaiterKey(rev, waiterSequence.incrementAndGet());
+        CompletableFuture<Void> future = register(key);
+        if (!future.isDone()) {
+            ScheduledFuture<?> timeout = getTimeoutScheduler().schedule(() -> {
+                if (waiters.remove(key, future)) {
+                    future.completeExceptionally(new TimeoutException(
+                            nodeName + " timed out awaiting revision " + rev + " (current: " + currentRev + ")"));
+                }
+            }, toNanosSaturated(maxWaitTime), NANOSECONDS);
+            future.whenComplete((result, throwable) -> timeout.cancel(false));
+        }
+        return future;
+    }
+
+    /**
+     * Await a revision, blocking the calling thread.
+     *
+     * @param rev the revision to await
+     * @param maxWaitTime how long to block at most
+     * @throws TimeoutException if the revision was not reached within maxWaitTime
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
     void await(long rev, Duration maxWaitTime) throws TimeoutException, InterruptedException {
         if (currentRev.get() >= rev) {
             return;
         }
-        AwaitableRev awaitable = new AwaitableRev(rev);
-        synchronized (pq) {
-            pq.add(awaitable);
-        }
-        synchronized (awaitable) {
-            // account for possible spurious wake up
-            @Var long now = System.nanoTime();
-            long deadline = now + maxWaitTime.toNanos();
-            while (currentRev.get() < rev && now < deadline) {
-                // http://errorprone.info/bugpattern/WaitNotInLoop
-                awaitable.wait((deadline - now) / 1000000);
-                now = System.nanoTime();
+        WaiterKey key = new WaiterKey(rev, waiterSequence.incrementAndGet());
+        CompletableFuture<Void> future = register(key);
+        try {
+            future.get(toNanosSaturated(maxWaitTime), NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(nodeName + " await failed for revision " + rev, e.getCause());
+        } finally {
+            // only has an effect on timeout or interruption
+            waiters.remove(key, future);
+        }
+    }
+
+    private CompletableFuture<Void> register(WaiterKey key) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        waiters.put(key, future);
+        // re-check, because an update() (or close) could have happened between the caller's check and our put()
+        if (currentRev.get() >= key.rev) {
+            if (waiters.remove(key, future)) {
+                future.complete(null);
             }
-            if (now >= deadline) {
-                throw new TimeoutException();
+        } else if (isClosed.get() && waiters.remove(key, future)) {
+            future.completeExceptionally(new IllegalStateException(nodeName + " RevAwaiter is closed"));
+        }
+        return future;
+    }
+
+    private synchronized ScheduledExecutorService getTimeoutScheduler() {
+        if (timeoutScheduler == null) {
+            timeoutScheduler = Executors.newSingleThreadScheduledExecutor("RevAwaiter-" + nodeName, LOG);
+        }
+        return timeoutScheduler;
+    }
+
+    private static long toNanosSaturated(Duration duration) {
+        try {
+            return duration.toNanos();
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    @Override
+    @PreDestroy
+    public void close() {
+        isClosed.set(true);
+        for (Map.Entry<WaiterKey, CompletableFuture<Void>> waiter = waiters.pollFirstEntry(); waiter != null;
+                waiter = waiters.pollFirstEntry()) {
+            waiter.getValue().completeExceptionally(new IllegalStateException(nodeName + " RevAwaiter is closed"));
+        }
+        synchronized (this) {
+            if (timeoutScheduler != null) {
+                timeoutScheduler.shutdownNow();
             }
-            // else it's a real awaitable.notify(), not spurious nor timeout, and we return to caller.
         }
     }
 
     @Override
     public String toString() {
-        return "RevAwaiter: currentRev=" + currentRev;
+        return "RevAwaiter: currentRev=" + currentRev + ", waiters=" + waiters.size();
     }
 }
@@ -9,11 +9,14 @@ package org.opendaylight.etcd.ds.impl;
 
 import java.io.DataOutput;
 import java.io.IOException;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeOutputStreamWriter;
 import org.opendaylight.etcd.ds.stream.copypaste.TokenTypes;
 import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
+import org.opendaylight.etcd.utils.Varints;
 import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.AugmentationIdentifier;
 import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 import org.opendaylight.yangtools.yang.data.api.schema.stream.NormalizedNodeWriter;
 
@@ -29,22 +32,46 @@ import org.opendaylight.yangtools.yang.data.api.schema.stream.NormalizedNodeWrit
 @NotThreadSafe
 class ShallowNormalizedNodeDataOutputWriter extends NormalizedNodeOutputStreamWriter {
 
+    private final @Nullable EtcdDictionary dictionary;
+    private final boolean isShallow;
+    private boolean isCompactMarkerWritten;
+    private boolean isRootNodeStarted;
+
     ShallowNormalizedNodeDataOutputWriter(DataOutput output) {
-        super(output);
+        this(output, null, false, true);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param isShallow whether to skip children (the default), or to write the entire subtree; either way, the
+     *                  QName of the root node is not written, and both can be read by the
+     *                  {@link ShallowNormalizedNodeInputStreamReader}
+     */
+    ShallowNormalizedNodeDataOutputWriter(DataOutput output, @Nullable EtcdDictionary dictionary, boolean isCompact,
+            boolean isShallow) {
+        super(output, isCompact);
+        this.dictionary = dictionary;
+        this.isShallow = isShallow;
     }
 
     @Override
     protected NormalizedNodeWriter newNormalizedNodeWriter() {
-        return new ShallowNormalizedNodeWriter(this);
+        return isShallow ? new ShallowNormalizedNodeWriter(this) : NormalizedNodeWriter.forStreamWriter(this);
     }
 
     /**
      * Does not write out any version header!
      * If we ever do need this, we'll do it globally stored once, instead of wasting 3 bytes in EVERY value.
      * See also {@link ShallowNormalizedNodeInputStreamReader#readSignatureMarkerAndVersionIfNeeded()}.
+     * The only exception is the single {@link TokenTypes#COMPACT_MARKER} byte, if compact.
      */
     @Override
-    protected void ensureHeaderWritten() {
+    protected void ensureHeaderWritten() throws IOException {
+        if (isCompact() && !isCompactMarkerWritten) {
+            isCompactMarkerWritten = true;
+            writeByte(TokenTypes.COMPACT_MARKER);
+        }
     }
 
     @Override
@@ -54,16 +81,49 @@ class ShallowNormalizedNodeDataOutputWriter extends NormalizedNodeOutputStreamWr
         // TODO when re-integrating, make stringCodeMap compression a configuration option
         if (string != null) {
             writeByte(TokenTypes.IS_STRING_VALUE);
-            writeUTF(string);
+            writeStringValue(string);
         } else {
             writeByte(TokenTypes.IS_NULL_VALUE);
         }
     }
 
+    @Override
+    protected void writeQName(QName qname) throws IOException {
+        if (dictionary == null) {
+            super.writeQName(qname);
+            return;
+        }
+        try {
+            int code = dictionary.getCode(qname);
+            writeByte(TokenTypes.IS_QNAME_CODE);
+            Varints.writeUnsignedVarInt(this, code);
+        } catch (EtcdException e) {
+            throw new IOException("QName dictionary code lookup failed: " + qname, e);
+        }
+    }
+
     @Override
     protected void startNode(byte nodeType, QName qname) throws IOException {
-        // ditch the QName (startNode variant with only nodeType added in copypaste parent)
+        if (isShallow || !isRootNodeStarted) {
+            // ditch the QName (startNode variant with only nodeType added in copypaste parent), as the reader
+            // gets that of the root node from the path of its key
+            super.startNode(nodeType);
+        } else {
+            super.startNode(nodeType, qname);
+        }
+    }
+
+    @Override
+    protected void startNode(byte nodeType) throws IOException {
         super.startNode(nodeType);
+        isRootNodeStarted = true;
+    }
+
+    @Override
+    public void startAugmentationNode(AugmentationIdentifier identifier) throws IOException {
+        super.startAugmentationNode(identifier);
+        // augmentations do not go through startNode(), but their children are not the root node either
+        isRootNodeStarted = true;
     }
 
 }
@@ -9,8 +9,11 @@ package org.opendaylight.etcd.ds.impl;
 
 import java.io.DataInput;
 import java.io.IOException;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeInputStreamReader;
+import org.opendaylight.etcd.ds.stream.copypaste.TokenTypes;
+import org.opendaylight.etcd.utils.Varints;
 import org.opendaylight.yangtools.yang.common.QName;
 import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 
@@ -24,15 +27,32 @@ import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 @NotThreadSafe
 class ShallowNormalizedNodeInputStreamReader extends NormalizedNodeInputStreamReader {
 
+    private final @Nullable EtcdDictionary dictionary;
     private QName firstQName;
 
     ShallowNormalizedNodeInputStreamReader(DataInput input, QName firstQName) {
-        this(input);
+        this(input, firstQName, null, false);
+    }
+
+    ShallowNormalizedNodeInputStreamReader(DataInput input, QName firstQName, @Nullable EtcdDictionary dictionary,
+            boolean isCompact) {
+        this(input, dictionary, isCompact);
         this.firstQName = firstQName;
     }
 
     ShallowNormalizedNodeInputStreamReader(DataInput input) {
-        super(input, false);
+        this(input, null, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param isCompact whether the input was written compact; the {@link TokenTypes#COMPACT_MARKER} must already
+     *                  have been read, if there was one
+     */
+    ShallowNormalizedNodeInputStreamReader(DataInput input, @Nullable EtcdDictionary dictionary, boolean isCompact) {
+        super(input, true, isCompact);
+        this.dictionary = dictionary;
     }
 
     /**
@@ -48,8 +68,19 @@ class ShallowNormalizedNodeInputStreamReader extends NormalizedNodeInputStreamRe
             QName theFirstQName = firstQName;
             firstQName = null;
             return theFirstQName;
-        } else {
-            return super.readQName();
+        }
+        byte valueType = readByte();
+        if (valueType != TokenTypes.IS_QNAME_CODE) {
+            return readQName(valueType);
+        }
+        int code = Varints.readUnsignedVarInt(this);
+        if (dictionary == null) {
+            throw new IOException("Read QName dictionary code " + code + ", but the QName dictionary is not enabled");
+        }
+        try {
+            return dictionary.getQName(code);
+        } catch (EtcdException e) {
+            throw new IOException("QName dictionary lookup failed: " + code, e);
         }
     }
 }
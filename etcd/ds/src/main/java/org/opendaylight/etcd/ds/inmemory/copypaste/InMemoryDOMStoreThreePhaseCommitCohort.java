@@ -119,8 +119,7 @@ class InMemoryDOMStoreThreePhaseCommitCohort implements DOMStoreThreePhaseCommit
          * The commit has to occur atomically with regard to listener
          * registrations.
          */
-        store.commit(candidate);
-        return SUCCESSFUL_FUTURE;
+        return store.commit(candidate);
     }
 }
 
@@ -10,7 +10,8 @@
  * org.opendaylight.mdsal.dom.store.inmemory. It's basically unmodified except
  * for https://git.opendaylight.org/gerrit/#/c/73217/ to make
  * validate/prepare/commit methods in InMemoryDOMDataStore protected (plus
- * adjustments for Error-Prone).
+ * adjustments for Error-Prone), and with commit returning a ListenableFuture
+ * which the InMemoryDOMStoreThreePhaseCommitCohort hands back to the broker.
  * TODO remove this after refactoring in mdsal.
  */
 package org.opendaylight.etcd.ds.inmemory.copypaste;
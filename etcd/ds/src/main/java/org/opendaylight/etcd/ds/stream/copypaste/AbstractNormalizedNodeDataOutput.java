@@ -25,6 +25,7 @@ import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
+import org.opendaylight.etcd.utils.Varints;
 import org.opendaylight.yangtools.yang.common.QName;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.AugmentationIdentifier;
@@ -43,13 +44,52 @@ abstract class AbstractNormalizedNodeDataOutput implements NormalizedNodeDataOut
     private static final Logger LOG = LoggerFactory.getLogger(AbstractNormalizedNodeDataOutput.class);
 
     private final DataOutput output;
+    private final boolean isCompact;
 
     private NormalizedNodeWriter normalizedNodeWriter;
     private boolean headerWritten;
     private QName lastLeafSetQName;
 
     AbstractNormalizedNodeDataOutput(DataOutput output) {
+        this(output, false);
+    }
+
+    AbstractNormalizedNodeDataOutput(DataOutput output, boolean isCompact) {
         this.output = requireNonNull(output);
+        this.isCompact = isCompact;
+    }
+
+    /**
+     * Whether counts, lengths and values are written as described for {@link TokenTypes#COMPACT_VERSION}.
+     */
+    protected boolean isCompact() {
+        return isCompact;
+    }
+
+    /**
+     * Writes a count or a length, which is never negative.
+     */
+    protected void writeCount(int count) throws IOException {
+        ensureHeaderWritten();
+        if (isCompact) {
+            Varints.writeUnsignedVarInt(output, count);
+        } else {
+            output.writeInt(count);
+        }
+    }
+
+    /**
+     * Writes a String, as UTF-8 with a varint length if compact, else with {@link DataOutput#writeUTF(String)}.
+     */
+    protected void writeStringValue(String string) throws IOException {
+        ensureHeaderWritten();
+        if (isCompact) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            Varints.writeUnsignedVarInt(output, bytes.length);
+            output.write(bytes);
+        } else {
+            output.writeUTF(string);
+        }
     }
 
     protected void ensureHeaderWritten() throws IOException {
@@ -349,7 +389,7 @@ abstract class AbstractNormalizedNodeDataOutput implements NormalizedNodeDataOut
     }
 
     private void writeObjSet(Set<?> set) throws IOException {
-        output.writeInt(set.size());
+        writeCount(set.size());
         for (Object o : set) {
             Preconditions.checkArgument(o instanceof String, "Expected value type to be String but was %s (%s)",
                 o.getClass(), o);
@@ -364,7 +404,7 @@ abstract class AbstractNormalizedNodeDataOutput implements NormalizedNodeDataOut
         output.writeBoolean(path.isAbsolute());
 
         Collection<QName> qnames = path.getPath();
-        output.writeInt(qnames.size());
+        writeCount(qnames.size());
         for (QName qname : qnames) {
             writeQName(qname);
         }
@@ -378,7 +418,7 @@ abstract class AbstractNormalizedNodeDataOutput implements NormalizedNodeDataOut
 
     private void writeYangInstanceIdentifierInternal(YangInstanceIdentifier identifier) throws IOException {
         Collection<PathArgument> pathArguments = identifier.getPathArguments();
-        output.writeInt(pathArguments.size());
+        writeCount(pathArguments.size());
 
         for (PathArgument pathArgument : pathArguments) {
             writePathArgument(pathArgument);
@@ -434,31 +474,35 @@ abstract class AbstractNormalizedNodeDataOutput implements NormalizedNodeDataOut
 
     private void writeKeyValueMap(Map<QName, Object> keyValueMap) throws IOException {
         if (keyValueMap != null && !keyValueMap.isEmpty()) {
-            output.writeInt(keyValueMap.size());
+            writeCount(keyValueMap.size());
 
             for (Map.Entry<QName, Object> entry : keyValueMap.entrySet()) {
                 writeQName(entry.getKey());
                 writeObject(entry.getValue());
             }
         } else {
-            output.writeInt(0);
+            writeCount(0);
         }
     }
 
     private void writeQNameSet(Set<QName> children) throws IOException {
         // Write each child's qname separately, if list is empty send count as 0
         if (children != null && !children.isEmpty()) {
-            output.writeInt(children.size());
+            writeCount(children.size());
             for (QName qname : children) {
                 writeQName(qname);
             }
         } else {
             LOG.debug("augmentation node does not have any child");
-            output.writeInt(0);
+            writeCount(0);
         }
     }
 
     private void writeObject(Object value) throws IOException {
+        if (isCompact) {
+            writeCompactObject(value);
+            return;
+        }
 
         byte type = ValueTypes.getSerializableType(value);
         // Write object type first
@@ -506,4 +550,59 @@ abstract class AbstractNormalizedNodeDataOutput implements NormalizedNodeDataOut
                 break;
         }
     }
+
+    private void writeCompactObject(Object value) throws IOException {
+        byte type = ValueTypes.getSerializableType(value);
+        switch (type) {
+            case ValueTypes.BOOL_TYPE:
+                // the value is in the type, so a boolean takes only 1 byte
+                output.writeByte((Boolean) value ? ValueTypes.BOOL_TRUE_TYPE : ValueTypes.BOOL_FALSE_TYPE);
+                break;
+            case ValueTypes.STRING_BYTES_TYPE:
+                // as strings are anyway written with a varint length, long ones need no special type
+                output.writeByte(ValueTypes.STRING_TYPE);
+                writeStringValue(value.toString());
+                break;
+            default:
+                output.writeByte(type);
+                writeCompactObjectValue(type, value);
+                break;
+        }
+    }
+
+    private void writeCompactObjectValue(byte type, Object value) throws IOException {
+        switch (type) {
+            case ValueTypes.QNAME_TYPE:
+                writeQName((QName) value);
+                break;
+            case ValueTypes.INT_TYPE:
+                Varints.writeSignedVarInt(output, (Integer) value);
+                break;
+            case ValueTypes.BYTE_TYPE:
+                output.writeByte((Byte) value);
+                break;
+            case ValueTypes.LONG_TYPE:
+                Varints.writeSignedVarLong(output, (Long) value);
+                break;
+            case ValueTypes.SHORT_TYPE:
+                Varints.writeSignedVarInt(output, (Short) value);
+                break;
+            case ValueTypes.BITS_TYPE:
+                writeObjSet((Set<?>) value);
+                break;
+            case ValueTypes.BINARY_TYPE:
+                byte[] bytes = (byte[]) value;
+                writeCount(bytes.length);
+                output.write(bytes);
+                break;
+            case ValueTypes.YANG_IDENTIFIER_TYPE:
+                writeYangInstanceIdentifierInternal((YangInstanceIdentifier) value);
+                break;
+            case ValueTypes.EMPTY_TYPE:
+                break;
+            default:
+                writeStringValue(value.toString());
+                break;
+        }
+    }
 }
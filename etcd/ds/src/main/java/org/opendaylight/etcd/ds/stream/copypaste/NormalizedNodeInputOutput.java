@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.stream.copypaste;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataInput;
+import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
+
+/**
+ * Factory for the (deep, not shallow) {@link NormalizedNodeDataInput} and {@link NormalizedNodeDataOutput}, like
+ * the one of the same name in org.opendaylight.controller.cluster.datastore.node.utils.stream.
+ */
+public final class NormalizedNodeInputOutput {
+
+    private NormalizedNodeInputOutput() { }
+
+    /**
+     * Create a new {@link NormalizedNodeDataInput}, which reads and checks the stream's signature marker and version.
+     */
+    public static NormalizedNodeDataInput newDataInput(DataInput input) {
+        return new NormalizedNodeInputStreamReader(input, false);
+    }
+
+    /**
+     * Create a new {@link NormalizedNodeDataOutput}, which writes the signature marker and version to the stream.
+     */
+    public static NormalizedNodeDataOutput newDataOutput(DataOutput output) {
+        return new NormalizedNodeOutputStreamWriter(output);
+    }
+
+    /**
+     * Create a new {@link NormalizedNodeDataOutput} which writes the {@link TokenTypes#COMPACT_VERSION}; the
+     * {@link #newDataInput(DataInput)} reads both versions.
+     */
+    public static NormalizedNodeDataOutput newCompactDataOutput(DataOutput output) {
+        return new NormalizedNodeOutputStreamWriter(output, true);
+    }
+}
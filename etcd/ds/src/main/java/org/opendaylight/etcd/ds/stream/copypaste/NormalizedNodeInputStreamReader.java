@@ -10,7 +10,6 @@ package org.opendaylight.etcd.ds.stream.copypaste;
 
 import static java.util.Objects.requireNonNull;
 
-import com.google.common.base.Strings;
 import com.google.errorprone.annotations.Var;
 import java.io.DataInput;
 import java.io.IOException;
@@ -31,6 +30,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.dom.DOMSource;
 import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataInput;
 import org.opendaylight.etcd.ds.stream.copypaste.dependencies.QNameFactory;
+import org.opendaylight.etcd.utils.Varints;
 import org.opendaylight.yangtools.yang.common.Empty;
 import org.opendaylight.yangtools.yang.common.QName;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
@@ -61,8 +61,6 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
 
     private static final Logger LOG = LoggerFactory.getLogger(NormalizedNodeInputStreamReader.class);
 
-    private static final String REVISION_ARG = "?revision=";
-
     private final DataInput input;
 
     private final Map<Integer, String> codedStringMap = new HashMap<>();
@@ -75,13 +73,24 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
     @SuppressWarnings("rawtypes")
     private NormalizedNodeAttrBuilder<NodeWithValue, Object, LeafSetEntryNode<Object>> leafSetEntryBuilder;
 
-    private final StringBuilder reusableStringBuilder = new StringBuilder(50);
-
     private boolean readSignatureMarker = true;
 
+    private boolean isCompact;
+
     protected NormalizedNodeInputStreamReader(DataInput input, boolean versionChecked) {
+        this(input, versionChecked, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param isCompact whether the stream is in the {@link TokenTypes#COMPACT_VERSION}; only relevant if
+     *                  versionChecked, as otherwise this is determined by the version read from the stream
+     */
+    protected NormalizedNodeInputStreamReader(DataInput input, boolean versionChecked, boolean isCompact) {
         this.input = requireNonNull(input);
         readSignatureMarker = !versionChecked;
+        this.isCompact = isCompact;
     }
 
     @Override
@@ -101,7 +110,9 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
             }
 
             short version = input.readShort();
-            if (version != TokenTypes.LITHIUM_VERSION) {
+            if (version == TokenTypes.COMPACT_VERSION) {
+                isCompact = true;
+            } else if (version != TokenTypes.LITHIUM_VERSION) {
                 throw new InvalidNormalizedNodeStreamException(String.format("Unhandled stream version %s", version));
             }
         }
@@ -150,7 +161,7 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
                         .withNodeIdentifier(entryIdentifier)).build();
 
             default :
-                return readNodeIdentifierDependentNode(nodeType, new NodeIdentifier(readQName()));
+                return readNodeIdentifierDependentNode(nodeType, NodeIdentifier.create(readQName()));
         }
     }
 
@@ -240,30 +251,35 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
     }
 
     protected QName readQName() throws IOException {
+        return readQName(input.readByte());
+    }
+
+    /**
+     * Reads a QName whose first value type byte has already been read (e.g. by a subclass checking for its own type).
+     */
+    protected QName readQName(byte localNameValueType) throws IOException {
         // Read in the same sequence of writing
-        String localName = readCodedString();
+        String localName = readCodedString(localNameValueType);
         String namespace = readCodedString();
         String revision = readCodedString();
-
-        String qname;
-        if (!Strings.isNullOrEmpty(revision)) {
-            qname = reusableStringBuilder.append('(').append(namespace).append(REVISION_ARG).append(revision)
-                    .append(')').append(localName).toString();
-        } else {
-            qname = reusableStringBuilder.append('(').append(namespace).append(')').append(localName).toString();
+        if (localName == null || namespace == null) {
+            throw new InvalidNormalizedNodeStreamException("Invalid QName, without local name or namespace");
         }
 
-        reusableStringBuilder.delete(0, reusableStringBuilder.length());
-        return QNameFactory.create(qname);
+        // not concatenating and re-parsing the parts, but looking them up in a cache of canonical QNames
+        return QNameFactory.create(localName, namespace, revision);
     }
 
-
     private @Nullable String readCodedString() throws IOException {
-        byte valueType = input.readByte();
+        return readCodedString(input.readByte());
+    }
+
+    private @Nullable String readCodedString(byte valueType) throws IOException {
         if (valueType == TokenTypes.IS_CODE_VALUE) {
-            return codedStringMap.get(input.readInt());
+            return codedStringMap.get(readCount());
         } else if (valueType == TokenTypes.IS_STRING_VALUE) {
-            String value = input.readUTF().intern();
+            // no intern() needed, as the QNames returned for these are canonical
+            String value = readStringValue();
             codedStringMap.put(codedStringMap.size(), value);
             return value;
         }
@@ -273,7 +289,7 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
 
     private Set<QName> readQNameSet() throws IOException {
         // Read the children count
-        int count = input.readInt();
+        int count = readCount();
         Set<QName> children = new HashSet<>(count);
         for (int i = 0; i < count; i++) {
             children.add(readQName());
@@ -282,7 +298,7 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
     }
 
     private Map<QName, Object> readKeyValueMap() throws IOException {
-        int count = input.readInt();
+        int count = readCount();
         Map<QName, Object> keyValueMap = new HashMap<>(count);
 
         for (int i = 0; i < count; i++) {
@@ -292,8 +308,30 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
         return keyValueMap;
     }
 
+    /**
+     * Reads a count or a length, see {@link AbstractNormalizedNodeDataOutput#writeCount(int)}.
+     */
+    protected int readCount() throws IOException {
+        return isCompact ? Varints.readUnsignedVarInt(input) : input.readInt();
+    }
+
+    /**
+     * Reads a String, see {@link AbstractNormalizedNodeDataOutput#writeStringValue(String)}.
+     */
+    protected String readStringValue() throws IOException {
+        if (!isCompact) {
+            return input.readUTF();
+        }
+        byte[] bytes = new byte[readCount()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     private @Nullable Object readObject() throws IOException {
         byte objectType = input.readByte();
+        if (isCompact) {
+            return readCompactObject(objectType);
+        }
         switch (objectType) {
             case ValueTypes.BITS_TYPE:
                 return readObjSet();
@@ -350,6 +388,57 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
         }
     }
 
+    private @Nullable Object readCompactObject(byte objectType) throws IOException {
+        switch (objectType) {
+            case ValueTypes.BOOL_FALSE_TYPE :
+                return Boolean.FALSE;
+
+            case ValueTypes.BOOL_TRUE_TYPE :
+                return Boolean.TRUE;
+
+            case ValueTypes.BITS_TYPE:
+                return readObjSet();
+
+            case ValueTypes.BYTE_TYPE :
+                return input.readByte();
+
+            case ValueTypes.INT_TYPE :
+                return Varints.readSignedVarInt(input);
+
+            case ValueTypes.LONG_TYPE :
+                return Varints.readSignedVarLong(input);
+
+            case ValueTypes.QNAME_TYPE :
+                return readQName();
+
+            case ValueTypes.SHORT_TYPE :
+                return (short) Varints.readSignedVarInt(input);
+
+            case ValueTypes.STRING_TYPE :
+                return readStringValue();
+
+            case ValueTypes.BIG_DECIMAL_TYPE :
+                return new BigDecimal(readStringValue());
+
+            case ValueTypes.BIG_INTEGER_TYPE :
+                return new BigInteger(readStringValue());
+
+            case ValueTypes.BINARY_TYPE :
+                byte[] bytes = new byte[readCount()];
+                input.readFully(bytes);
+                return bytes;
+
+            case ValueTypes.YANG_IDENTIFIER_TYPE :
+                return readYangInstanceIdentifierInternal();
+
+            case ValueTypes.EMPTY_TYPE:
+                return Empty.getInstance();
+
+            default :
+                return null;
+        }
+    }
+
     private String readStringBytes() throws IOException {
         byte[] bytes = new byte[input.readInt()];
         input.readFully(bytes);
@@ -361,7 +450,7 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
         readSignatureMarkerAndVersionIfNeeded();
 
         boolean absolute = input.readBoolean();
-        int size = input.readInt();
+        int size = readCount();
         Collection<QName> qnames = new ArrayList<>(size);
         for (int i = 0; i < size; ++i) {
             qnames.add(readQName());
@@ -377,7 +466,7 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
     }
 
     private YangInstanceIdentifier readYangInstanceIdentifierInternal() throws IOException {
-        int size = input.readInt();
+        int size = readCount();
 
         List<PathArgument> pathArguments = new ArrayList<>(size);
 
@@ -388,7 +477,7 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
     }
 
     private Set<String> readObjSet() throws IOException {
-        int count = input.readInt();
+        int count = readCount();
         Set<String> children = new HashSet<>(count);
         for (int i = 0; i < count; i++) {
             children.add(readCodedString());
@@ -407,7 +496,7 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
                 return new YangInstanceIdentifier.AugmentationIdentifier(readQNameSet());
 
             case PathArgumentTypes.NODE_IDENTIFIER :
-                return new NodeIdentifier(readQName());
+                return NodeIdentifier.create(readQName());
 
             case PathArgumentTypes.NODE_IDENTIFIER_WITH_PREDICATES :
                 return new NodeIdentifierWithPredicates(readQName(), readKeyValueMap());
@@ -36,9 +36,13 @@ public class NormalizedNodeOutputStreamWriter extends AbstractNormalizedNodeData
         super(output);
     }
 
+    protected NormalizedNodeOutputStreamWriter(DataOutput output, boolean isCompact) {
+        super(output, isCompact);
+    }
+
     @Override
     protected short streamVersion() {
-        return TokenTypes.LITHIUM_VERSION;
+        return isCompact() ? TokenTypes.COMPACT_VERSION : TokenTypes.LITHIUM_VERSION;
     }
 
     @Override
@@ -55,10 +59,10 @@ public class NormalizedNodeOutputStreamWriter extends AbstractNormalizedNodeData
             if (value == null) {
                 stringCodeMap.put(string, stringCodeMap.size());
                 writeByte(TokenTypes.IS_STRING_VALUE);
-                writeUTF(string);
+                writeStringValue(string);
             } else {
                 writeByte(TokenTypes.IS_CODE_VALUE);
-                writeInt(value);
+                writeCount(value);
             }
         } else {
             writeByte(TokenTypes.IS_NULL_VALUE);
@@ -18,7 +18,27 @@ public final class TokenTypes {
      */
     public static final short LITHIUM_VERSION = 1;
 
+    /**
+     * Like {@link #LITHIUM_VERSION}, but writes counts and lengths as varints instead of as 4 byte ints, int, short and
+     * long values as ZigZag varints, booleans as just their value type, and strings as UTF-8 with a varint length
+     * instead of with {@link java.io.DataOutput#writeUTF(String)}.  Leaves of small YANG integer types, which are the
+     * vast majority, thus take only 2 or 3 bytes instead of 3 to 9.
+     */
+    public static final short COMPACT_VERSION = 2;
+
+    /**
+     * First byte of a value of the etcd specific (shallow, header-less) format, if it is written in the
+     * {@link #COMPACT_VERSION}.  Values of the original version always start with a node type, which is never this.
+     */
+    public static final byte COMPACT_MARKER = (byte) 0xC2;
+
     public static final byte IS_CODE_VALUE = 1;
     public static final byte IS_STRING_VALUE = 2;
     public static final byte IS_NULL_VALUE = 3;
+
+    /**
+     * QName written as the varint code of a global dictionary instead of as three strings; not used by the original
+     * stream format, but only by the etcd specific (shallow) format.
+     */
+    public static final byte IS_QNAME_CODE = 4;
 }
@@ -41,6 +41,9 @@ final class ValueTypes {
     public static final byte NULL_TYPE = 13;
     public static final byte STRING_BYTES_TYPE = 14;
     public static final byte EMPTY_TYPE = 15;
+    // only written by the compact version, see TokenTypes.COMPACT_VERSION
+    public static final byte BOOL_FALSE_TYPE = 16;
+    public static final byte BOOL_TRUE_TYPE = 17;
 
     private static final Map<Class<?>, Byte> TYPES;
 
@@ -11,7 +11,12 @@ package org.opendaylight.etcd.ds.stream.copypaste.dependencies;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import java.net.URI;
+import java.util.Objects;
+import javax.annotation.Nullable;
 import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.common.QNameModule;
+import org.opendaylight.yangtools.yang.common.Revision;
 
 public final class QNameFactory {
 
@@ -28,7 +33,51 @@ public final class QNameFactory {
                 }
             });
 
+    // keyed by the parts as read from a stream, so that they need not be concatenated and parsed again
+    private static final LoadingCache<Key, QName> PARTS_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(MAX_QNAME_CACHE_SIZE).softValues().build(new CacheLoader<Key, QName>() {
+                @Override
+                public QName load(Key key) {
+                    return QName.create(QNameModule.create(URI.create(key.namespace),
+                            Revision.ofNullable(key.revision)), key.localName).intern();
+                }
+            });
+
     public static QName create(String name) {
         return CACHE.getUnchecked(name);
     }
+
+    public static QName create(String localName, String namespace, @Nullable String revision) {
+        return PARTS_CACHE.getUnchecked(new Key(localName, namespace, revision));
+    }
+
+    private static final class Key {
+        final String localName;
+        final String namespace;
+        final @Nullable String revision;
+        final int hashCode;
+
+        Key(String localName, String namespace, @Nullable String revision) {
+            this.localName = localName;
+            this.namespace = namespace;
+            // empty and null both mean no revision
+            this.revision = revision == null || revision.isEmpty() ? null : revision;
+            this.hashCode = Objects.hash(localName, namespace, this.revision);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return localName.equals(other.localName) && namespace.equals(other.namespace)
+                    && Objects.equals(revision, other.revision);
+        }
+    }
 }
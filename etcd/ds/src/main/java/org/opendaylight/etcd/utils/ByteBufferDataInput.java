@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.utils;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * {@link DataInput} reading from a {@link ByteBuffer}, e.g. a memory mapped file, without copying it first.
+ * The buffer's position is advanced by reading; reading past its limit throws an {@link EOFException}.
+ */
+@NotThreadSafe
+public final class ByteBufferDataInput implements DataInput {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferDataInput(ByteBuffer buffer) {
+        this.buffer = requireNonNull(buffer, "buffer");
+    }
+
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void readFully(byte[] bytes) throws IOException {
+        readFully(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void readFully(byte[] bytes, int off, int len) throws IOException {
+        ensureRemaining(len);
+        buffer.get(bytes, off, len);
+    }
+
+    @Override
+    public int skipBytes(int count) {
+        int skipped = Math.max(0, Math.min(count, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        ensureRemaining(Byte.BYTES);
+        return buffer.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        ensureRemaining(Short.BYTES);
+        return buffer.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        ensureRemaining(Character.BYTES);
+        return buffer.getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        ensureRemaining(Integer.BYTES);
+        return buffer.getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        ensureRemaining(Long.BYTES);
+        return buffer.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        ensureRemaining(Float.BYTES);
+        return buffer.getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        ensureRemaining(Double.BYTES);
+        return buffer.getDouble();
+    }
+
+    @Override
+    public String readLine() {
+        throw new UnsupportedOperationException("readLine() is deprecated in DataInput, and not supported here");
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    private void ensureRemaining(int count) throws EOFException {
+        if (buffer.remaining() < count) {
+            throw new EOFException("Need " + count + " bytes, but only " + buffer.remaining() + " remaining");
+        }
+    }
+}
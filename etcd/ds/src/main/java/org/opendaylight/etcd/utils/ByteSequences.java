@@ -62,8 +62,10 @@ public final class ByteSequences {
     }
 
     public static ByteSequence append(ByteSequence base, byte... bytes) {
-        byte[] newBytes = Arrays.copyOf(base.getBytes(), base.getBytes().length + bytes.length);
-        System.arraycopy(bytes, 0, newBytes, base.getBytes().length, bytes.length);
+        // getBytes() copies, so only call it once
+        byte[] baseBytes = base.getBytes();
+        byte[] newBytes = Arrays.copyOf(baseBytes, baseBytes.length + bytes.length);
+        System.arraycopy(bytes, 0, newBytes, baseBytes.length, bytes.length);
         return ByteSequence.from(newBytes);
     }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.utils;
+
+import com.google.errorprone.annotations.Var;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Variable length encoding of integers, using 7 bits per byte with the high bit as continuation flag, like
+ * Protocol Buffers do; small numbers thus take up only 1 byte instead of 4.
+ */
+public final class Varints {
+
+    private Varints() { }
+
+    public static void writeUnsignedVarInt(DataOutput output, int value) throws IOException {
+        @Var int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            output.writeByte(remaining & 0x7F | 0x80);
+            remaining >>>= 7;
+        }
+        output.writeByte(remaining);
+    }
+
+    public static int readUnsignedVarInt(DataInput input) throws IOException {
+        @Var int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte nextByte = input.readByte();
+            value |= (nextByte & 0x7F) << shift;
+            if ((nextByte & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint, more than 5 bytes");
+    }
+
+    public static void writeUnsignedVarLong(DataOutput output, long value) throws IOException {
+        @Var long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            output.writeByte((int) (remaining & 0x7F | 0x80));
+            remaining >>>= 7;
+        }
+        output.writeByte((int) remaining);
+    }
+
+    public static long readUnsignedVarLong(DataInput input) throws IOException {
+        @Var long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte nextByte = input.readByte();
+            value |= (long) (nextByte & 0x7F) << shift;
+            if ((nextByte & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint, more than 10 bytes");
+    }
+
+    /**
+     * Writes a signed int in ZigZag encoding, so that small negative numbers are short as well.
+     */
+    public static void writeSignedVarInt(DataOutput output, int value) throws IOException {
+        writeUnsignedVarInt(output, value << 1 ^ value >> 31);
+    }
+
+    public static int readSignedVarInt(DataInput input) throws IOException {
+        int raw = readUnsignedVarInt(input);
+        return raw >>> 1 ^ -(raw & 1);
+    }
+
+    /**
+     * Writes a signed long in ZigZag encoding, so that small negative numbers are short as well.
+     */
+    public static void writeSignedVarLong(DataOutput output, long value) throws IOException {
+        writeUnsignedVarLong(output, value << 1 ^ value >> 63);
+    }
+
+    public static long readSignedVarLong(DataInput input) throws IOException {
+        long raw = readUnsignedVarLong(input);
+        return raw >>> 1 ^ -(raw & 1);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.opendaylight.etcd.ds.impl.EtcdDataStore.NODES_PREFIX;
+import static org.opendaylight.etcd.utils.ByteSequences.append;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Longs;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.OptionalLong;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link EtcdCompactor}.
+ */
+public class EtcdCompactorTest {
+
+    private final ByteSequence first = append(NODES_PREFIX, (byte) 'a');
+    private final ByteSequence second = append(NODES_PREFIX, (byte) 'b');
+    // sorts last in etcd, although it's a negative byte
+    private final ByteSequence third = append(NODES_PREFIX, (byte) 0xF0);
+
+    @Test
+    public void testOnlyTheFirstNodeCompactsToTheOldestNeededRevision() {
+        List<KeyValue> registry = ImmutableList.of(newKeyValue(third, 7), newKeyValue(second, 5),
+                newKeyValue(first, 9));
+        assertThat(EtcdCompactor.compactionRevision(registry, first)).isEqualTo(OptionalLong.of(5));
+        assertThat(EtcdCompactor.compactionRevision(registry, second)).isEqualTo(OptionalLong.empty());
+        assertThat(EtcdCompactor.compactionRevision(registry, third)).isEqualTo(OptionalLong.empty());
+    }
+
+    @Test
+    public void testNotYetRegistered() {
+        assertThat(EtcdCompactor.compactionRevision(ImmutableList.of(), first)).isEqualTo(OptionalLong.empty());
+    }
+
+    @Test
+    public void testWindow() {
+        LocalTime start = LocalTime.of(2, 0);
+        Duration length = Duration.ofHours(2);
+        assertThat(EtcdCompactor.isInWindow(LocalDateTime.of(2019, 3, 1, 2, 0), start, length)).isTrue();
+        assertThat(EtcdCompactor.isInWindow(LocalDateTime.of(2019, 3, 1, 3, 59), start, length)).isTrue();
+        assertThat(EtcdCompactor.isInWindow(LocalDateTime.of(2019, 3, 1, 4, 0), start, length)).isFalse();
+        assertThat(EtcdCompactor.isInWindow(LocalDateTime.of(2019, 3, 1, 1, 59), start, length)).isFalse();
+    }
+
+    @Test
+    public void testWindowPastMidnight() {
+        LocalTime start = LocalTime.of(23, 0);
+        Duration length = Duration.ofHours(3);
+        assertThat(EtcdCompactor.isInWindow(LocalDateTime.of(2019, 3, 1, 23, 30), start, length)).isTrue();
+        assertThat(EtcdCompactor.isInWindow(LocalDateTime.of(2019, 3, 2, 1, 30), start, length)).isTrue();
+        assertThat(EtcdCompactor.isInWindow(LocalDateTime.of(2019, 3, 2, 2, 0), start, length)).isFalse();
+        assertThat(EtcdCompactor.isInWindow(LocalDateTime.of(2019, 3, 1, 22, 0), start, length)).isFalse();
+    }
+
+    private static KeyValue newKeyValue(ByteSequence key, long revision) {
+        return new KeyValue(io.etcd.jetcd.api.KeyValue.newBuilder().setKey(ByteString.copyFrom(key.getBytes()))
+                .setValue(ByteString.copyFrom(Longs.toByteArray(revision))).build());
+    }
+}
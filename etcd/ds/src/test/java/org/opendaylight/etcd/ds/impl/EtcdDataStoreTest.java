@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.opendaylight.mdsal.common.api.LogicalDatastoreType.CONFIGURATION;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.Response.Header;
+import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
+import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchEvent.EventType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.mdsal.binding.generator.impl.ModuleInfoBackedContext;
+import org.opendaylight.mdsal.binding.spec.reflect.BindingReflections;
+import org.opendaylight.mdsal.common.api.OptimisticLockFailedException;
+import org.opendaylight.mdsal.common.api.TransactionCommitFailedException;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreThreePhaseCommitCohort;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreWriteTransaction;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.ContainerNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeCandidate;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.data.impl.schema.builder.impl.ImmutableContainerNodeBuilder;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+
+/**
+ * Unit test for {@link EtcdDataStore}, with etcd mocked.
+ */
+@SuppressWarnings("javadoc")
+public class EtcdDataStoreTest {
+
+    private static final QName NAME_QNAME = QName.create(HelloWorldContainer.QNAME, "name");
+    private static final YangInstanceIdentifier CONTAINER = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+    private static final YangInstanceIdentifier NAME = CONTAINER.node(NAME_QNAME);
+
+    private final List<FakeTxn> sentTxns = new ArrayList<>();
+    private final KV etcd = mock(KV.class);
+    private final Client client = mock(Client.class);
+    private final RevAwaiter revAwaiter = new RevAwaiter("Test");
+    private EtcdYangKV kv;
+    private EtcdDataStore store;
+
+    @Before
+    public void setUp() {
+        when(client.getKVClient()).thenReturn(etcd);
+        when(etcd.txn()).thenAnswer(invocation -> new FakeTxn());
+        // etcd is empty, at revision 1, which this node has already seen
+        Header header = mock(Header.class);
+        when(header.getRevision()).thenReturn(1L);
+        GetResponse empty = mock(GetResponse.class);
+        when(empty.getHeader()).thenReturn(header);
+        when(etcd.get(any(ByteSequence.class))).thenReturn(completedFuture(empty));
+        when(etcd.get(any(ByteSequence.class), any(GetOption.class))).thenReturn(completedFuture(empty));
+        revAwaiter.update(1);
+        kv = new EtcdYangKV("Test", client, EtcdDataStore.CONFIGURATION_PREFIX);
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testLocalApplyIsVisibleBeforeTheWatchEcho() throws Exception {
+        initStore(EtcdDataStoreConfig.builder().withLocalApply(true));
+        ListenableFuture<Void> commit = commit("hello");
+        assertThat(readName()).isNull();
+
+        sentTxns.get(0).response.complete(response(true, 5));
+        commit.get();
+        assertThat(readName()).isEqualTo("hello");
+
+        // the echo, and an older change of another node which arrives late, must not regress it
+        store.accept(ImmutableList.of(newPutEvent("hello", 5), newPutEvent("older", 4)));
+        assertThat(readName()).isEqualTo("hello");
+
+        // but once the watch has caught up, newer changes are applied again
+        store.accept(ImmutableList.of(newPutEvent("newer", 6)));
+        assertThat(readName()).isEqualTo("newer");
+    }
+
+    @Test
+    public void testWithoutLocalApplyTheWatchApplies() throws Exception {
+        initStore(EtcdDataStoreConfig.builder());
+        ListenableFuture<Void> commit = commit("hello");
+        sentTxns.get(0).response.complete(response(true, 5));
+        commit.get();
+        assertThat(readName()).isNull();
+
+        store.accept(ImmutableList.of(newPutEvent("hello", 5)));
+        assertThat(readName()).isEqualTo("hello");
+    }
+
+    @Test
+    public void testLocalApplyIsSkippedIfTheWatchWasFaster() throws Exception {
+        initStore(EtcdDataStoreConfig.builder().withLocalApply(true));
+        ListenableFuture<Void> commit = commit("hello");
+        store.accept(ImmutableList.of(newPutEvent("hello", 5), newPutEvent("newer", 6)));
+
+        sentTxns.get(0).response.complete(response(true, 5));
+        commit.get();
+        assertThat(readName()).isEqualTo("newer");
+    }
+
+    @Test
+    public void testConcurrentModificationFailsOptimistically() throws Exception {
+        initStore(EtcdDataStoreConfig.builder());
+        ListenableFuture<Void> first = commit("first");
+        ListenableFuture<Void> second = commit("second");
+        // both were validated against the same revision, so only etcd can tell which one was first; they make it
+        // compare the mod revision of each key they put, plus that no staged commit is pending
+        assertThat(sentTxns).hasSize(2);
+        assertThat(sentTxns.get(1).cmps).hasSize(3);
+
+        sentTxns.get(0).response.complete(response(true, 5));
+        sentTxns.get(1).response.complete(response(false, 5));
+        first.get();
+        try {
+            second.get();
+            fail("expected OptimisticLockFailedException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(OptimisticLockFailedException.class);
+        }
+    }
+
+    @Test
+    public void testEtcdFailureFailsTheCommit() throws Exception {
+        initStore(EtcdDataStoreConfig.builder());
+        ListenableFuture<Void> commit = commit("hello");
+        IllegalStateException failure = new IllegalStateException("etcd is gone");
+        sentTxns.get(0).response.completeExceptionally(failure);
+        try {
+            commit.get();
+            fail("expected TransactionCommitFailedException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(TransactionCommitFailedException.class);
+            assertThat(e.getCause().getCause()).isSameAs(failure);
+        }
+    }
+
+    @Test
+    public void testEncodeFailureFailsTheCommitWithoutThrowing() throws Exception {
+        initStore(EtcdDataStoreConfig.builder());
+        // the DataTree accepts any leaf value, but the codec doesn't know how to write this one
+        ListenableFuture<Void> commit = commit(CONTAINER, ImmutableContainerNodeBuilder.create()
+                .withNodeIdentifier(CONTAINER.getLastPathArgument())
+                .withChild(ImmutableNodes.leafNode(NAME_QNAME, new Object())).build());
+        assertThat(sentTxns).isEmpty();
+        try {
+            commit.get();
+            fail("expected TransactionCommitFailedException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(TransactionCommitFailedException.class);
+            assertThat(e.getCause().getCause()).isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    @Test
+    public void testCommitBeforeInitFailsWithoutThrowing() throws Exception {
+        newStore(EtcdDataStoreConfig.builder());
+        // no transaction can be opened before init(), so this is the commit of one that was prepared otherwise
+        ListenableFuture<Void> commit = store.commit(mock(DataTreeCandidate.class));
+        try {
+            commit.get();
+            fail("expected TransactionCommitFailedException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(TransactionCommitFailedException.class);
+        }
+        assertThat(sentTxns).isEmpty();
+    }
+
+    @Test
+    public void testChildWriteFailsIfItsParentWasDeletedConcurrently() throws Exception {
+        initStore(EtcdDataStoreConfig.builder());
+        store.accept(ImmutableList.of(newPutEvent(CONTAINER, newContainer(), 5), newPutEvent("hello", 5)));
+        assertThat(readName()).isEqualTo("hello");
+
+        // only the leaf is put, but the Txn must also compare its parent, which it does not put; for each of them,
+        // that it still exists and was not modified since revision 5, plus that no staged commit is pending
+        ListenableFuture<Void> commit = commit(NAME, ImmutableNodes.leafNode(NAME_QNAME, "hello again"));
+        assertThat(sentTxns.get(0).ops).hasSize(1);
+        assertThat(sentTxns.get(0).cmps).hasSize(5);
+
+        // another node deleted the container, and with it the leaf, before our Txn arrived in etcd
+        store.accept(ImmutableList.of(newDeleteEvent(NAME, 6), newDeleteEvent(CONTAINER, 6)));
+        sentTxns.get(0).response.complete(response(false, 6));
+        try {
+            commit.get();
+            fail("expected OptimisticLockFailedException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(OptimisticLockFailedException.class);
+        }
+        assertThat(readName()).isNull();
+    }
+
+    @Test
+    public void testRestoredSnapshotSkipsTheEventsItAlreadyHas() throws Exception {
+        newStore(EtcdDataStoreConfig.builder());
+        store.init(7, ImmutableContainerNodeBuilder.create().withNodeIdentifier(new NodeIdentifier(SchemaContext.NAME))
+                .withChild(newContainer("restored")).build());
+        assertThat(readName()).isEqualTo("restored");
+        assertThat(store.readRevisionedRoot().getRevision()).isEqualTo(7L);
+
+        // the watch is shared with data stores restored at older revisions, so it can deliver older events
+        store.accept(ImmutableList.of(newPutEvent("older", 6), newPutEvent("same", 7)));
+        assertThat(readName()).isEqualTo("restored");
+
+        store.accept(ImmutableList.of(newPutEvent("newer", 8)));
+        assertThat(readName()).isEqualTo("newer");
+        EtcdSnapshotFile.RevisionedRoot root = store.readRevisionedRoot();
+        assertThat(root.getRevision()).isEqualTo(8L);
+        assertThat(root.getRoot()).isEqualTo(ImmutableContainerNodeBuilder.create()
+                .withNodeIdentifier(new NodeIdentifier(SchemaContext.NAME)).withChild(newContainer("newer")).build());
+    }
+
+    private void initStore(EtcdDataStoreConfig.Builder config) throws Exception {
+        newStore(config);
+        store.init(1);
+    }
+
+    private void newStore(EtcdDataStoreConfig.Builder config) throws Exception {
+        store = new EtcdDataStore("Test", CONFIGURATION, MoreExecutors.newDirectExecutorService(), 1000, client,
+                false, revAwaiter, config.build(), new EtcdServerRevisionFetcher(etcd), null, null, null);
+        store.onGlobalContextUpdated(newSchemaContext());
+    }
+
+    private static SchemaContext newSchemaContext() throws Exception {
+        ModuleInfoBackedContext moduleContext = ModuleInfoBackedContext.create();
+        moduleContext.addModuleInfos(ImmutableSet.of(BindingReflections.getModuleInfo(HelloWorldContainer.class)));
+        return moduleContext.tryToCreateSchemaContext().get();
+    }
+
+    private ListenableFuture<Void> commit(String name) throws Exception {
+        return commit(CONTAINER, newContainer(name));
+    }
+
+    private ListenableFuture<Void> commit(YangInstanceIdentifier path, NormalizedNode<?, ?> data) throws Exception {
+        DOMStoreWriteTransaction tx = store.newWriteOnlyTransaction();
+        tx.write(path, data);
+        DOMStoreThreePhaseCommitCohort cohort = tx.ready();
+        assertThat(cohort.canCommit().get()).isTrue();
+        cohort.preCommit().get();
+        return cohort.commit();
+    }
+
+    private String readName() throws Exception {
+        return store.newReadOnlyTransaction().read(NAME).get()
+                .map(leaf -> (String) leaf.getValue()).orElse(null);
+    }
+
+    private static ContainerNode newContainer(String name) {
+        return ImmutableContainerNodeBuilder.create()
+                .withNodeIdentifier(CONTAINER.getLastPathArgument())
+                .withChild(ImmutableNodes.leafNode(NAME_QNAME, name)).build();
+    }
+
+    private static ContainerNode newContainer() {
+        return ImmutableContainerNodeBuilder.create().withNodeIdentifier(CONTAINER.getLastPathArgument()).build();
+    }
+
+    private WatchEvent newPutEvent(String name, long modRevision) throws EtcdException {
+        return newPutEvent(NAME, ImmutableNodes.leafNode(NAME_QNAME, name), modRevision);
+    }
+
+    private WatchEvent newPutEvent(YangInstanceIdentifier path, NormalizedNode<?, ?> data, long modRevision)
+            throws EtcdException {
+        return new WatchEvent(new KeyValue(io.etcd.jetcd.api.KeyValue.newBuilder()
+                .setKey(ByteString.copyFrom(kv.toByteSequence(path).getBytes()))
+                .setValue(ByteString.copyFrom(kv.toByteSequence(data).getBytes()))
+                .setModRevision(modRevision).build()), null, EventType.PUT);
+    }
+
+    private WatchEvent newDeleteEvent(YangInstanceIdentifier path, long modRevision) throws EtcdException {
+        return new WatchEvent(new KeyValue(io.etcd.jetcd.api.KeyValue.newBuilder()
+                .setKey(ByteString.copyFrom(kv.toByteSequence(path).getBytes()))
+                .setModRevision(modRevision).build()), null, EventType.DELETE);
+    }
+
+    private static TxnResponse response(boolean isSucceeded, long revision) {
+        Header header = mock(Header.class);
+        when(header.getRevision()).thenReturn(revision);
+        TxnResponse response = mock(TxnResponse.class);
+        when(response.isSucceeded()).thenReturn(isSucceeded);
+        when(response.getHeader()).thenReturn(header);
+        return response;
+    }
+
+    private class FakeTxn implements Txn {
+        final List<Cmp> cmps = new ArrayList<>();
+        final List<Op> ops = new ArrayList<>();
+        final CompletableFuture<TxnResponse> response = new CompletableFuture<>();
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn If(Cmp... ifCmps) {
+            cmps.addAll(Arrays.asList(ifCmps));
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn Then(Op... thenOps) {
+            ops.addAll(Arrays.asList(thenOps));
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn Else(Op... elseOps) {
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<TxnResponse> commit() {
+            sentTxns.add(this);
+            return response;
+        }
+    }
+}
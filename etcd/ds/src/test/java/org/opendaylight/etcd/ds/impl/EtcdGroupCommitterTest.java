@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.DeleteOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.junit.After;
+import org.junit.Test;
+import org.opendaylight.etcd.utils.ByteSequences;
+
+/**
+ * Unit test for {@link EtcdGroupCommitter}.
+ */
+@SuppressWarnings("javadoc")
+public class EtcdGroupCommitterTest {
+
+    private final List<FakeTxn> sentTxns = new ArrayList<>();
+    private final EtcdGroupCommitter committer = new EtcdGroupCommitter("TEST", mockKV(), Duration.ZERO, 3);
+
+    @After
+    public void close() {
+        committer.close();
+    }
+
+    @Test
+    public void testGroupWhileInFlight() {
+        CompletionStage<TxnResponse> first = commit("a");
+        assertThat(sentTxns).hasSize(1);
+
+        CompletionStage<TxnResponse> second = commit("b");
+        CompletionStage<TxnResponse> third = commit("c");
+        assertThat(sentTxns).hasSize(1);
+
+        TxnResponse response = mock(TxnResponse.class);
+        sentTxns.get(0).response.complete(response);
+        assertThat(first.toCompletableFuture().getNow(null)).isSameAs(response);
+        assertThat(sentTxns).hasSize(2);
+        assertThat(sentTxns.get(1).ops).hasSize(2);
+
+        sentTxns.get(1).response.complete(response);
+        assertThat(second.toCompletableFuture().isDone()).isTrue();
+        assertThat(third.toCompletableFuture().isDone()).isTrue();
+    }
+
+    @Test
+    public void testSameKeyStartsNewGroup() {
+        commit("a");
+        commit("b");
+        commit("b");
+        assertThat(sentTxns).hasSize(2);
+        assertThat(sentTxns.get(1).ops).hasSize(1);
+
+        sentTxns.get(0).response.complete(mock(TxnResponse.class));
+        sentTxns.get(1).response.complete(mock(TxnResponse.class));
+        assertThat(sentTxns).hasSize(3);
+        assertThat(sentTxns.get(2).ops).hasSize(1);
+    }
+
+    @Test
+    public void testKeyInRangeDeleteStartsNewGroup() {
+        commit("a");
+        commitRangeDelete("b");
+        commit("bc");
+        commit("c");
+        assertThat(sentTxns).hasSize(2);
+        assertThat(sentTxns.get(1).ops).hasSize(1);
+
+        sentTxns.get(0).response.complete(mock(TxnResponse.class));
+        sentTxns.get(1).response.complete(mock(TxnResponse.class));
+        assertThat(sentTxns).hasSize(3);
+        assertThat(sentTxns.get(2).ops).hasSize(2);
+    }
+
+    @Test
+    public void testMaxOps() {
+        commit("a");
+        commit("b", "c");
+        commit("d", "e");
+        assertThat(sentTxns).hasSize(2);
+        assertThat(sentTxns.get(1).ops).hasSize(2);
+    }
+
+    @Test
+    public void testFailureOfSingleTxnIsNotResent() {
+        CompletionStage<TxnResponse> first = commit("a");
+        sentTxns.get(0).response.completeExceptionally(new IllegalStateException("boum"));
+        assertThat(first.toCompletableFuture().isCompletedExceptionally()).isTrue();
+        assertThat(sentTxns).hasSize(1);
+    }
+
+    @Test
+    public void testFailureResendsIndividually() {
+        commit("a");
+        CompletionStage<TxnResponse> second = commit("b");
+        CompletionStage<TxnResponse> third = commit("c");
+        sentTxns.get(0).response.complete(mock(TxnResponse.class));
+        sentTxns.get(1).response.completeExceptionally(new IllegalStateException("boum"));
+        assertThat(sentTxns).hasSize(4);
+        assertThat(sentTxns.get(2).ops).hasSize(1);
+        assertThat(sentTxns.get(3).ops).hasSize(1);
+        assertThat(second.toCompletableFuture().isDone()).isFalse();
+
+        // only the member which etcd rejects on its own fails
+        TxnResponse succeeded = response(true);
+        sentTxns.get(2).response.completeExceptionally(new IllegalStateException("boum"));
+        sentTxns.get(3).response.complete(succeeded);
+        assertThat(second.toCompletableFuture().isCompletedExceptionally()).isTrue();
+        assertThat(third.toCompletableFuture().getNow(null)).isSameAs(succeeded);
+    }
+
+    @Test
+    public void testFailedCompareResendsIndividually() {
+        commit("a");
+        CompletionStage<TxnResponse> second = commitIfUnmodified("b");
+        CompletionStage<TxnResponse> third = commitIfUnmodified("c");
+        sentTxns.get(0).response.complete(mock(TxnResponse.class));
+        assertThat(sentTxns.get(1).cmps).hasSize(2);
+
+        sentTxns.get(1).response.complete(response(false));
+        assertThat(sentTxns).hasSize(4);
+        assertThat(sentTxns.get(2).cmps).hasSize(1);
+        assertThat(sentTxns.get(3).cmps).hasSize(1);
+        assertThat(second.toCompletableFuture().isDone()).isFalse();
+
+        TxnResponse conflicted = response(false);
+        TxnResponse succeeded = response(true);
+        sentTxns.get(2).response.complete(conflicted);
+        sentTxns.get(3).response.complete(succeeded);
+        assertThat(second.toCompletableFuture().getNow(null)).isSameAs(conflicted);
+        assertThat(third.toCompletableFuture().getNow(null)).isSameAs(succeeded);
+
+        // the next group is only sent after the re-sent members have completed
+        CompletionStage<TxnResponse> fourth = commit("d");
+        assertThat(sentTxns).hasSize(5);
+        sentTxns.get(4).response.complete(succeeded);
+        assertThat(fourth.toCompletableFuture().isDone()).isTrue();
+    }
+
+    @Test
+    public void testSharedCompareIsSentOnce() {
+        commit("a");
+        Cmp shared = new Cmp(ByteSequences.fromBytes("lock".getBytes()), Cmp.Op.EQUAL, CmpTarget.version(0));
+        commitIf(shared, "b");
+        commitIf(shared, "c");
+        commitIf(shared, "d");
+        sentTxns.get(0).response.complete(mock(TxnResponse.class));
+        assertThat(sentTxns).hasSize(2);
+        assertThat(sentTxns.get(1).cmps).containsExactly(shared);
+        assertThat(sentTxns.get(1).ops).hasSize(3);
+    }
+
+    private CompletionStage<TxnResponse> commit(String... keys) {
+        List<Op> ops = new ArrayList<>();
+        ImmutableSet.Builder<ByteSequence> keySet = ImmutableSet.builder();
+        for (String key : keys) {
+            ByteSequence keyBytes = ByteSequences.fromBytes(key.getBytes());
+            ops.add(Op.delete(keyBytes, DeleteOption.DEFAULT));
+            keySet.add(keyBytes);
+        }
+        return committer.commit(ImmutableList.copyOf(ops), keySet.build());
+    }
+
+    private CompletionStage<TxnResponse> commitIfUnmodified(String key) {
+        ByteSequence keyBytes = ByteSequences.fromBytes(key.getBytes());
+        return committer.commit(ImmutableList.of(new Cmp(keyBytes, Cmp.Op.LESS, CmpTarget.modRevision(1))),
+                ImmutableList.of(Op.delete(keyBytes, DeleteOption.DEFAULT)), ImmutableSet.of(keyBytes),
+                ImmutableSet.of());
+    }
+
+    private CompletionStage<TxnResponse> commitIf(Cmp cmp, String key) {
+        ByteSequence keyBytes = ByteSequences.fromBytes(key.getBytes());
+        return committer.commit(ImmutableList.of(cmp), ImmutableList.of(Op.delete(keyBytes, DeleteOption.DEFAULT)),
+                ImmutableSet.of(keyBytes), ImmutableSet.of());
+    }
+
+    private CompletionStage<TxnResponse> commitRangeDelete(String key) {
+        ByteSequence keyBytes = ByteSequences.fromBytes(key.getBytes());
+        return committer.commit(ImmutableList.of(), ImmutableList.of(Op.delete(keyBytes,
+                DeleteOption.newBuilder().withPrefix(keyBytes).build())), ImmutableSet.of(keyBytes),
+                ImmutableSet.of(keyBytes));
+    }
+
+    private static TxnResponse response(boolean isSucceeded) {
+        TxnResponse response = mock(TxnResponse.class);
+        when(response.isSucceeded()).thenReturn(isSucceeded);
+        return response;
+    }
+
+    private KV mockKV() {
+        KV kv = mock(KV.class);
+        when(kv.txn()).thenAnswer(invocation -> new FakeTxn());
+        return kv;
+    }
+
+    private class FakeTxn implements Txn {
+        final List<Cmp> cmps = new ArrayList<>();
+        final List<Op> ops = new ArrayList<>();
+        final CompletableFuture<TxnResponse> response = new CompletableFuture<>();
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn If(Cmp... ifCmps) {
+            cmps.addAll(Arrays.asList(ifCmps));
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn Then(Op... thenOps) {
+            ops.addAll(Arrays.asList(thenOps));
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn Else(Op... elseOps) {
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<TxnResponse> commit() {
+            sentTxns.add(this);
+            return response;
+        }
+    }
+}
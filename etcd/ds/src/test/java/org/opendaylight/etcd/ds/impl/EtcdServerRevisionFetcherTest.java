@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.Response.Header;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.options.GetOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link EtcdServerRevisionFetcher}.
+ */
+@SuppressWarnings("javadoc")
+public class EtcdServerRevisionFetcherTest {
+
+    private final List<CompletableFuture<GetResponse>> requests = new ArrayList<>();
+
+    @Test
+    public void testConcurrentCallersShareNextRequest() {
+        EtcdServerRevisionFetcher fetcher = new EtcdServerRevisionFetcher(mockKV());
+        CompletableFuture<Long> first = fetcher.fetch();
+        CompletableFuture<Long> second = fetcher.fetch();
+        CompletableFuture<Long> third = fetcher.fetch();
+        assertThat(requests).hasSize(1);
+
+        requests.get(0).complete(response(7));
+        assertThat(first.getNow(0L)).isEqualTo(7L);
+        // the callers which arrived while the first request was in flight must not re-use its answer
+        assertThat(second.isDone()).isFalse();
+        assertThat(requests).hasSize(2);
+
+        requests.get(1).complete(response(9));
+        assertThat(second.getNow(0L)).isEqualTo(9L);
+        assertThat(third.getNow(0L)).isEqualTo(9L);
+        assertThat(requests).hasSize(2);
+    }
+
+    @Test
+    public void testFailure() {
+        EtcdServerRevisionFetcher fetcher = new EtcdServerRevisionFetcher(mockKV());
+        CompletableFuture<Long> first = fetcher.fetch();
+        requests.get(0).completeExceptionally(new IllegalStateException("boum"));
+        assertThat(first.isCompletedExceptionally()).isTrue();
+
+        fetcher.fetch();
+        assertThat(requests).hasSize(2);
+    }
+
+    @Test
+    public void testMaxAge() {
+        EtcdServerRevisionFetcher fetcher = new EtcdServerRevisionFetcher(mockKV());
+        fetcher.fetch();
+        requests.get(0).complete(response(7));
+        assertThat(fetcher.fetch(Duration.ofHours(1)).getNow(0L)).isEqualTo(7L);
+        assertThat(requests).hasSize(1);
+    }
+
+    @Test
+    public void testLinearizableNeverReusesRecentRevision() {
+        EtcdServerRevisionFetcher fetcher = new EtcdServerRevisionFetcher(mockKV());
+        fetcher.fetch(Duration.ofHours(1));
+        requests.get(0).complete(response(7));
+        assertThat(fetcher.fetch(Duration.ofHours(1)).getNow(0L)).isEqualTo(7L);
+        CompletableFuture<Long> linearizable = fetcher.fetch();
+        assertThat(linearizable.isDone()).isFalse();
+        assertThat(requests).hasSize(2);
+        requests.get(1).complete(response(8));
+        assertThat(linearizable.getNow(0L)).isEqualTo(8L);
+    }
+
+    @Test
+    public void testWithoutMaxAgeAlwaysAsks() {
+        EtcdServerRevisionFetcher fetcher = new EtcdServerRevisionFetcher(mockKV());
+        fetcher.fetch();
+        requests.get(0).complete(response(7));
+        assertThat(fetcher.fetch().isDone()).isFalse();
+        assertThat(requests).hasSize(2);
+    }
+
+    @Test
+    public void testLinearizableAwaitsCurrentRevision() {
+        EtcdServerRevisionFetcher fetcher = new EtcdServerRevisionFetcher(mockKV());
+        fetcher.fetch(Duration.ofHours(1));
+        requests.get(0).complete(response(7));
+        CompletableFuture<Long> revision = fetcher.fetchRevisionToAwait(ReadConsistency.LINEARIZABLE);
+        assertThat(revision.isDone()).isFalse();
+        requests.get(1).complete(response(9));
+        assertThat(revision.getNow(0L)).isEqualTo(9L);
+    }
+
+    @Test
+    public void testBoundedStalenessAwaitsRecentRevisionMinusLag() {
+        EtcdServerRevisionFetcher fetcher = new EtcdServerRevisionFetcher(mockKV());
+        CompletableFuture<Long> first = fetcher.fetchRevisionToAwait(
+                ReadConsistency.boundedStaleness(2, Duration.ofHours(1)));
+        requests.get(0).complete(response(7));
+        assertThat(first.getNow(0L)).isEqualTo(5L);
+        assertThat(fetcher.fetchRevisionToAwait(ReadConsistency.boundedStaleness(3, Duration.ofHours(1))).getNow(0L))
+                .isEqualTo(4L);
+        assertThat(fetcher.fetchRevisionToAwait(ReadConsistency.boundedStaleness(10, Duration.ofHours(1))).getNow(0L))
+                .isEqualTo(0L);
+        assertThat(requests).hasSize(1);
+
+        // without a max. staleness, it's only lagging
+        CompletableFuture<Long> lagging = fetcher.fetchRevisionToAwait(
+                ReadConsistency.boundedStaleness(2, Duration.ZERO));
+        assertThat(lagging.isDone()).isFalse();
+        requests.get(1).complete(response(9));
+        assertThat(lagging.getNow(0L)).isEqualTo(7L);
+    }
+
+    @Test
+    public void testLocalAwaitsNothing() {
+        EtcdServerRevisionFetcher fetcher = new EtcdServerRevisionFetcher(mockKV());
+        assertThat(fetcher.fetchRevisionToAwait(ReadConsistency.LOCAL).getNow(-1L)).isEqualTo(0L);
+        assertThat(requests).isEmpty();
+    }
+
+    private KV mockKV() {
+        KV kv = mock(KV.class);
+        when(kv.get(any(ByteSequence.class), any(GetOption.class))).thenAnswer(invocation -> {
+            CompletableFuture<GetResponse> future = new CompletableFuture<>();
+            requests.add(future);
+            return future;
+        });
+        return kv;
+    }
+
+    private static GetResponse response(long revision) {
+        Header header = mock(Header.class);
+        when(header.getRevision()).thenReturn(revision);
+        GetResponse response = mock(GetResponse.class);
+        when(response.getHeader()).thenReturn(header);
+        return response;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.mdsal.common.api.TransactionCommitFailedException;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadWriteTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreThreePhaseCommitCohort;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+
+/**
+ * Unit test for {@link EtcdShardedDOMStore}.
+ */
+public class EtcdShardedDOMStoreTest {
+
+    private static final QName SHARDED = QName.create("urn:opendaylight:test", "2019-01-01", "sharded");
+    private static final QName OTHER = QName.create("urn:opendaylight:test", "2019-01-01", "other");
+
+    private final EtcdDataStore defaultShard = mock(EtcdDataStore.class);
+    private final EtcdDataStore shard = mock(EtcdDataStore.class);
+    private final DOMStoreReadWriteTransaction defaultTransaction = mock(DOMStoreReadWriteTransaction.class);
+    private final DOMStoreReadWriteTransaction shardTransaction = mock(DOMStoreReadWriteTransaction.class);
+    private final EtcdShardedDOMStore store = new EtcdShardedDOMStore("TEST",
+            EtcdDataStoreConfig.builder().withTopLevelNodeShard(SHARDED, "shard").build(),
+            shardName -> shardName == null ? defaultShard : shard);
+
+    @Before
+    public void setUp() {
+        when(defaultShard.newReadWriteTransaction()).thenReturn(defaultTransaction);
+        when(shard.newReadWriteTransaction()).thenReturn(shardTransaction);
+    }
+
+    @Test
+    public void testRoutesByTopLevelNode() {
+        assertThat(store.getShards()).containsExactly(defaultShard, shard).inOrder();
+        YangInstanceIdentifier sharded = YangInstanceIdentifier.of(SHARDED);
+        NormalizedNode<?, ?> data = ImmutableNodes.containerNode(SHARDED);
+        YangInstanceIdentifier other = YangInstanceIdentifier.of(OTHER);
+        DOMStoreThreePhaseCommitCohort cohort = mock(DOMStoreThreePhaseCommitCohort.class);
+        when(shardTransaction.ready()).thenReturn(cohort);
+
+        DOMStoreReadWriteTransaction transaction = store.newReadWriteTransaction();
+        transaction.write(sharded, data);
+        transaction.read(other);
+        verify(shardTransaction).write(sharded, data);
+        verify(defaultTransaction).read(other);
+
+        // only read from the default shard, so that is not committed to
+        assertThat(transaction.ready()).isSameAs(cohort);
+        verify(defaultTransaction).close();
+        verify(defaultTransaction, never()).ready();
+    }
+
+    @Test
+    public void testWriteToSeveralShardsFailsToCommit() throws InterruptedException {
+        DOMStoreReadWriteTransaction transaction = store.newReadWriteTransaction();
+        transaction.write(YangInstanceIdentifier.of(SHARDED), ImmutableNodes.containerNode(SHARDED));
+        transaction.delete(YangInstanceIdentifier.of(OTHER));
+
+        DOMStoreThreePhaseCommitCohort cohort = transaction.ready();
+        verify(shardTransaction, never()).ready();
+        verify(defaultTransaction, never()).ready();
+        verify(shardTransaction).close();
+        verify(defaultTransaction).close();
+        try {
+            cohort.canCommit().get();
+            fail("expected TransactionCommitFailedException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(TransactionCommitFailedException.class);
+        }
+    }
+}
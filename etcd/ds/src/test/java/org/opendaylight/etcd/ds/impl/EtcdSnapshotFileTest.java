@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.opendaylight.infrautils.testutils.Asserts.assertThrows;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendaylight.etcd.ds.impl.EtcdSnapshotFile.RevisionedRoot;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.ContainerNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+
+/**
+ * Unit test for {@link EtcdSnapshotFile}.
+ */
+@SuppressWarnings("javadoc")
+public class EtcdSnapshotFileTest {
+
+    public @Rule TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        EtcdSnapshotFile file = new EtcdSnapshotFile(folder.getRoot().toPath(), "TEST");
+        assertThat(file.load().isPresent()).isFalse();
+
+        ContainerNode configRoot = Builders.containerBuilder()
+                .withNodeIdentifier(new NodeIdentifier(SchemaContext.NAME))
+                .withChild(ImmutableNodes.containerNode(HelloWorldContainer.QNAME)).build();
+        ContainerNode operRoot = ImmutableNodes.containerNode(SchemaContext.NAME);
+        file.save(ImmutableMap.of("TEST-C", new RevisionedRoot(123, configRoot),
+                "TEST-O", new RevisionedRoot(125, operRoot)));
+
+        Optional<EtcdSnapshotFile.Snapshot> snapshot = file.load();
+        assertThat(snapshot.isPresent()).isTrue();
+        assertThat(snapshot.get().getRevision()).isEqualTo(123L);
+        assertThat(snapshot.get().getLatestRevision()).isEqualTo(125L);
+        assertThat(snapshot.get().getRoot("TEST-C").get().getRevision()).isEqualTo(123L);
+        assertThat(snapshot.get().getRoot("TEST-C").get().getRoot()).isEqualTo(configRoot);
+        assertThat(snapshot.get().getRoot("TEST-O").get().getRevision()).isEqualTo(125L);
+        assertThat(snapshot.get().getRoot("TEST-O").get().getRoot()).isEqualTo(operRoot);
+        assertThat(snapshot.get().getRoot("TEST-C-shard").isPresent()).isFalse();
+    }
+
+    @Test
+    public void testTruncatedFile() throws IOException {
+        EtcdSnapshotFile file = new EtcdSnapshotFile(folder.getRoot().toPath(), "");
+        file.save(ImmutableMap.of("O", new RevisionedRoot(1, ImmutableNodes.containerNode(SchemaContext.NAME))));
+        Path path = folder.getRoot().toPath().resolve("etcd-datastores.snapshot");
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 2));
+        assertThrows(IOException.class, file::load);
+    }
+}
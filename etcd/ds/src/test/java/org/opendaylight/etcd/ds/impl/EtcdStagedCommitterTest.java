@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.opendaylight.etcd.ds.impl.EtcdDataStore.CONFIGURATION_PREFIX;
+import static org.opendaylight.etcd.ds.impl.EtcdDataStore.OPERATIONAL_PREFIX;
+
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import javax.annotation.Nullable;
+import org.junit.Test;
+import org.opendaylight.etcd.ds.impl.EtcdStagedCommitter.Change;
+import org.opendaylight.etcd.utils.ByteSequences;
+
+/**
+ * Unit test for {@link EtcdStagedCommitter}.
+ */
+public class EtcdStagedCommitterTest {
+
+    private final List<FakeTxn> sentTxns = new ArrayList<>();
+    private final KV etcd = mockKV();
+    private final EtcdStagedCommitter committer = new EtcdStagedCommitter("TEST", etcd, CONFIGURATION_PREFIX, 4, 100);
+
+    // if set, sent Txns immediately complete with it
+    private @Nullable TxnResponse autoResponse;
+
+    @Test
+    public void testChunksRoundTrip() throws IOException {
+        List<Change> changes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ByteSequence key = ByteSequences.append(CONFIGURATION_PREFIX, (byte) 0, (byte) i);
+            changes.add(new Change(key, i % 3 == 0 ? null : ByteSequences.fromBytes(new byte[20 + i])));
+        }
+
+        List<ByteSequence> chunks = committer.encodeChunks(changes);
+        assertThat(chunks.size()).isGreaterThan(1);
+
+        List<Change> decoded = new ArrayList<>();
+        for (ByteSequence chunk : chunks) {
+            decoded.addAll(EtcdStagedCommitter.decodeChunk(chunk));
+        }
+        assertThat(decoded).hasSize(changes.size());
+        for (int i = 0; i < changes.size(); i++) {
+            assertThat(decoded.get(i).getKey()).isEqualTo(changes.get(i).getKey());
+            assertThat(decoded.get(i).getValue()).isEqualTo(changes.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void testStagingKeys() {
+        assertThat(committer.isStagingKey(ByteSequences.append(CONFIGURATION_PREFIX, (byte) 0, (byte) 0))).isFalse();
+        assertThat(committer.isStagingKey(ByteSequences.append(CONFIGURATION_PREFIX, EtcdStagedCommitter.STAGING)))
+                .isTrue();
+        assertThat(committer.isStagingKey(ByteSequences.append(OPERATIONAL_PREFIX, EtcdStagedCommitter.STAGING)))
+                .isFalse();
+    }
+
+    @Test
+    public void testFitsIntoOneTxn() {
+        assertThat(committer.fitsIntoOneTxn(4, 3, 100)).isTrue();
+        assertThat(committer.fitsIntoOneTxn(5, 0, 0)).isFalse();
+        assertThat(committer.fitsIntoOneTxn(1, 4, 0)).isFalse();
+        assertThat(committer.fitsIntoOneTxn(1, 0, 101)).isFalse();
+    }
+
+    @Test
+    public void testMarkerTakesLockAndChecksCompares() {
+        CompletionStage<TxnResponse> commit = committer.commit(newCmps(2), newChanges(10));
+        assertThat(sentTxns).hasSize(1);
+        // noStagedCommitPending, the first chunk, and the 2 compares
+        assertThat(sentTxns.get(0).cmps).hasSize(4);
+        // the marker and the lock
+        assertThat(sentTxns.get(0).ops).hasSize(2);
+
+        TxnResponse marker = response(true);
+        autoResponse = response(true);
+        sentTxns.get(0).response.complete(marker);
+        assertThat(commit.toCompletableFuture().getNow(null)).isSameAs(marker);
+        // the roll forward, and finally the clean up, only while the lock is still ours
+        FakeTxn cleanUp = sentTxns.get(sentTxns.size() - 1);
+        assertThat(cleanUp.cmps).hasSize(1);
+        assertThat(cleanUp.ops).hasSize(3);
+    }
+
+    @Test
+    public void testConflictDeletesChunks() {
+        CompletionStage<TxnResponse> commit = committer.commit(newCmps(1), newChanges(10));
+        TxnResponse conflicted = response(false);
+        autoResponse = response(true);
+        sentTxns.get(0).response.complete(conflicted);
+        assertThat(commit.toCompletableFuture().getNow(null)).isSameAs(conflicted);
+        // the chunks, while there is no marker, and then the lock, if it's ours (it isn't)
+        assertThat(sentTxns).hasSize(3);
+        assertThat(sentTxns.get(1).ops).hasSize(1);
+        assertThat(sentTxns.get(2).cmps).hasSize(2);
+    }
+
+    @Test
+    public void testFailureDeletesChunks() {
+        CompletionStage<TxnResponse> commit = committer.commit(newCmps(1), newChanges(10));
+        autoResponse = response(true);
+        sentTxns.get(0).response.completeExceptionally(new IllegalStateException("boum"));
+        assertThat(commit.toCompletableFuture().isCompletedExceptionally()).isTrue();
+        assertThat(sentTxns).hasSize(3);
+        assertThat(sentTxns.get(1).ops).hasSize(1);
+    }
+
+    @Test
+    public void testTooManyComparesAreCheckedWhileLocked() {
+        CompletionStage<TxnResponse> commit = committer.commit(newCmps(7), newChanges(10));
+        assertThat(sentTxns).hasSize(1);
+        // noStagedCommitPending and the first 3 compares, which take the lock
+        assertThat(sentTxns.get(0).cmps).hasSize(4);
+        assertThat(sentTxns.get(0).ops).hasSize(1);
+
+        sentTxns.get(0).response.complete(response(true));
+        // the other 4 compares, while the lock is still ours
+        assertThat(sentTxns).hasSize(3);
+        assertThat(sentTxns.get(1).cmps).hasSize(4);
+        assertThat(sentTxns.get(2).cmps).hasSize(2);
+        assertThat(sentTxns.get(1).ops).isEmpty();
+
+        sentTxns.get(1).response.complete(response(true));
+        sentTxns.get(2).response.complete(response(true));
+        // the marker, if the lock and the first chunk are still there
+        assertThat(sentTxns).hasSize(4);
+        assertThat(sentTxns.get(3).cmps).hasSize(2);
+        assertThat(sentTxns.get(3).ops).hasSize(1);
+        assertThat(commit.toCompletableFuture().isDone()).isFalse();
+    }
+
+    @Test
+    public void testConflictWhileLockedReleasesLock() {
+        CompletionStage<TxnResponse> commit = committer.commit(newCmps(7), newChanges(10));
+        sentTxns.get(0).response.complete(response(true));
+        TxnResponse conflicted = response(false);
+        autoResponse = response(true);
+        sentTxns.get(1).response.complete(response(true));
+        sentTxns.get(2).response.complete(conflicted);
+        assertThat(commit.toCompletableFuture().getNow(null)).isSameAs(conflicted);
+        // no marker, but the chunks are deleted and the lock released
+        assertThat(sentTxns).hasSize(5);
+        assertThat(sentTxns.get(3).ops).hasSize(1);
+        assertThat(sentTxns.get(4).cmps).hasSize(2);
+        assertThat(sentTxns.get(4).ops).hasSize(1);
+    }
+
+    @Test
+    public void testRecoverRollsForward() throws EtcdException {
+        byte[] txId = new byte[16];
+        List<Change> changes = newChanges(10);
+        List<ByteSequence> chunks = committer.encodeChunks(changes);
+        List<KeyValue> chunkKVs = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            chunkKVs.add(newKeyValue(stagingKey('c', Bytes.concat(txId, Ints.toByteArray(i))), chunks.get(i)));
+        }
+        GetResponse lock = newGetResponse(newKeyValue(stagingKey('l', new byte[0]), ByteSequences.fromBytes(txId)));
+        GetResponse marker = newGetResponse(newKeyValue(stagingKey('m', txId),
+                ByteSequences.fromBytes(Ints.toByteArray(chunks.size()))));
+        when(etcd.get(any(ByteSequence.class))).thenReturn(CompletableFuture.completedFuture(lock),
+                CompletableFuture.completedFuture(marker));
+        when(etcd.get(any(ByteSequence.class), any(GetOption.class)))
+                .thenReturn(CompletableFuture.completedFuture(newGetResponse(chunkKVs)));
+        autoResponse = response(true);
+
+        committer.recover();
+        // 10 changes, in Txns of at most 4 ops, and the clean up
+        assertThat(sentTxns).hasSize(4);
+        assertThat(sentTxns.get(0).ops).hasSize(4);
+        assertThat(sentTxns.get(2).ops).hasSize(2);
+        assertThat(sentTxns.get(3).ops).hasSize(3);
+    }
+
+    @Test
+    public void testRecoverReleasesLockWithoutMarker() throws EtcdException {
+        GetResponse lock = newGetResponse(newKeyValue(stagingKey('l', new byte[0]),
+                ByteSequences.fromBytes(new byte[16])));
+        when(etcd.get(any(ByteSequence.class))).thenReturn(CompletableFuture.completedFuture(lock),
+                CompletableFuture.completedFuture(newGetResponse(Collections.emptyList())));
+        autoResponse = response(true);
+
+        committer.recover();
+        // the chunks, and then the lock
+        assertThat(sentTxns).hasSize(2);
+        assertThat(sentTxns.get(0).ops).hasSize(1);
+        assertThat(sentTxns.get(1).ops).hasSize(1);
+    }
+
+    private static List<Cmp> newCmps(int count) {
+        List<Cmp> cmps = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            cmps.add(new Cmp(ByteSequences.append(CONFIGURATION_PREFIX, (byte) 0, (byte) i), Cmp.Op.LESS,
+                    CmpTarget.modRevision(1)));
+        }
+        return cmps;
+    }
+
+    private static List<Change> newChanges(int count) {
+        List<Change> changes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ByteSequence key = ByteSequences.append(CONFIGURATION_PREFIX, (byte) 0, (byte) i);
+            changes.add(new Change(key, i % 3 == 0 ? null : ByteSequences.fromBytes(new byte[20 + i])));
+        }
+        return changes;
+    }
+
+    private static ByteSequence stagingKey(char type, byte[] suffix) {
+        return ByteSequences.append(ByteSequences.append(CONFIGURATION_PREFIX, EtcdStagedCommitter.STAGING,
+                (byte) type), suffix);
+    }
+
+    private static KeyValue newKeyValue(ByteSequence key, ByteSequence value) {
+        return new KeyValue(io.etcd.jetcd.api.KeyValue.newBuilder().setKey(ByteString.copyFrom(key.getBytes()))
+                .setValue(ByteString.copyFrom(value.getBytes())).setModRevision(42).build());
+    }
+
+    private static GetResponse newGetResponse(KeyValue kv) {
+        return newGetResponse(Collections.singletonList(kv));
+    }
+
+    private static GetResponse newGetResponse(List<KeyValue> kvs) {
+        GetResponse response = mock(GetResponse.class);
+        when(response.getKvs()).thenReturn(kvs);
+        return response;
+    }
+
+    private static TxnResponse response(boolean isSucceeded) {
+        TxnResponse response = mock(TxnResponse.class);
+        when(response.isSucceeded()).thenReturn(isSucceeded);
+        return response;
+    }
+
+    private KV mockKV() {
+        KV kv = mock(KV.class);
+        when(kv.txn()).thenAnswer(invocation -> new FakeTxn());
+        when(kv.put(any(ByteSequence.class), any(ByteSequence.class)))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        return kv;
+    }
+
+    private class FakeTxn implements Txn {
+        final List<Cmp> cmps = new ArrayList<>();
+        final List<Op> ops = new ArrayList<>();
+        final CompletableFuture<TxnResponse> response = new CompletableFuture<>();
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn If(Cmp... ifCmps) {
+            cmps.addAll(Arrays.asList(ifCmps));
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn Then(Op... thenOps) {
+            ops.addAll(Arrays.asList(thenOps));
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("checkstyle:MethodName")
+        public Txn Else(Op... elseOps) {
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<TxnResponse> commit() {
+            sentTxns.add(this);
+            if (autoResponse != null) {
+                response.complete(autoResponse);
+            }
+            return response;
+        }
+    }
+}
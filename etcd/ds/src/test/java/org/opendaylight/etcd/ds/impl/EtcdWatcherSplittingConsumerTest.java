@@ -24,9 +24,12 @@ import io.etcd.jetcd.watch.WatchEvent.EventType;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Test;
 import org.opendaylight.infrautils.utils.function.CheckedConsumer;
+import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
 
 /**
  * Unit Test for EtcdWatcherSplittingConsumer.
@@ -84,6 +87,52 @@ public class EtcdWatcherSplittingConsumerTest {
                 newWatchEvent(append(OPERATIONAL_PREFIX, (byte) 123))));
         assertThat(configConsumer.counter.get()).isEqualTo(1L);
         assertThat(operConsumer.counter.get()).isEqualTo(1L);
+        assertThat(splitter.getUnmatchedEventsCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void testNestedPrefixesAndBufferReuse() throws EtcdException {
+        TestConsumer nestedConsumer = new TestConsumer();
+        ByteSequence nestedPrefix = append(CONFIGURATION_PREFIX, (byte) 123);
+        EtcdWatcherSplittingConsumer splitter = new EtcdWatcherSplittingConsumer(empty(), ImmutableMap.of(
+                CONFIGURATION_PREFIX, configConsumer, nestedPrefix, nestedConsumer, OPERATIONAL_PREFIX, operConsumer));
+        splitter.accept(1L, Lists.newArrayList(
+                newWatchEvent(append(nestedPrefix, (byte) 1)),
+                newWatchEvent(append(CONFIGURATION_PREFIX, (byte) 124)),
+                newWatchEvent(CONFIGURATION_PREFIX),
+                newWatchEvent(fromBytes((byte) 'E'))));
+        assertThat(configConsumer.counter.get()).isEqualTo(3L);
+        assertThat(nestedConsumer.counter.get()).isEqualTo(1L);
+        assertThat(operConsumer.counter.get()).isEqualTo(0L);
+        assertThat(splitter.getUnmatchedEventsCount()).isEqualTo(1L);
+
+        // the second response must not see any of the events of the first one again
+        splitter.accept(2L, Lists.newArrayList(newWatchEvent(append(OPERATIONAL_PREFIX, (byte) 1))));
+        assertThat(configConsumer.counter.get()).isEqualTo(3L);
+        assertThat(nestedConsumer.counter.get()).isEqualTo(1L);
+        assertThat(operConsumer.counter.get()).isEqualTo(1L);
+    }
+
+    @Test
+    public void testShardsInParallel() throws EtcdException {
+        TestConsumer shardConsumer = new TestConsumer();
+        ByteSequence shardPrefix = EtcdDataStore.shardPrefix(LogicalDatastoreType.CONFIGURATION, "topology");
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            EtcdWatcherSplittingConsumer splitter = new EtcdWatcherSplittingConsumer(empty(), ImmutableMap.of(
+                    CONFIGURATION_PREFIX, configConsumer, OPERATIONAL_PREFIX, operConsumer, shardPrefix, shardConsumer),
+                    executor);
+            splitter.accept(1L, Lists.newArrayList(
+                    newWatchEvent(append(CONFIGURATION_PREFIX, (byte) 123)),
+                    newWatchEvent(append(shardPrefix, (byte) 123)),
+                    newWatchEvent(append(shardPrefix, (byte) 124)),
+                    newWatchEvent(append(OPERATIONAL_PREFIX, (byte) 123))));
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(configConsumer.counter.get()).isEqualTo(1L);
+        assertThat(operConsumer.counter.get()).isEqualTo(1L);
+        assertThat(shardConsumer.counter.get()).isEqualTo(2L);
     }
 
     private static WatchEvent newWatchEvent(ByteSequence key) {
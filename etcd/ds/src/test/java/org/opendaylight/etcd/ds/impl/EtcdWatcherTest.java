@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.Response.Header;
+import io.etcd.jetcd.Watch;
+import io.etcd.jetcd.options.WatchOption;
+import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchResponse;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+import org.opendaylight.etcd.utils.ByteSequences;
+
+/**
+ * Unit test for {@link EtcdWatcher}.
+ */
+public class EtcdWatcherTest {
+
+    private final AtomicReference<Watch.Listener> listener = new AtomicReference<>();
+    private final CountDownLatch applyStarted = new CountDownLatch(1);
+    private final CountDownLatch applyMayContinue = new CountDownLatch(1);
+    private final AtomicLong appliedRevision = new AtomicLong();
+    private final AtomicLong applyCount = new AtomicLong();
+    private EtcdWatcher watcher;
+
+    @After
+    public void close() {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void testQueueDepthRevisionLagAndBatching() throws InterruptedException {
+        Watch watch = mock(Watch.class);
+        when(watch.watch(any(ByteSequence.class), any(WatchOption.class), any(Watch.Listener.class)))
+            .thenAnswer(invocation -> {
+                listener.set(invocation.getArgument(2));
+                return mock(Watch.Watcher.class);
+            });
+        Client client = mock(Client.class);
+        when(client.getWatchClient()).thenReturn(watch);
+        watcher = new EtcdWatcher("TEST", client, ByteSequences.fromBytes(), (revision, events) -> {
+            applyStarted.countDown();
+            try {
+                applyMayContinue.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            appliedRevision.set(revision);
+            applyCount.incrementAndGet();
+        }, () -> {
+            throw new EtcdException("unexpected resync");
+        }, 2);
+        watcher.start(1);
+
+        listener.get().onNext(newWatchResponse(5));
+        assertThat(applyStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        // the first one is being applied, and these two wait in the queue
+        listener.get().onNext(newWatchResponse(7));
+        listener.get().onNext(newWatchResponse(9));
+        assertThat(watcher.getQueueDepth()).isEqualTo(2);
+        assertThat(watcher.getRevisionLag()).isEqualTo(9);
+
+        applyMayContinue.countDown();
+        for (int i = 0; i < 500 && watcher.getRevisionLag() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(watcher.getRevisionLag()).isEqualTo(0);
+        assertThat(watcher.getQueueDepth()).isEqualTo(0);
+        assertThat(appliedRevision.get()).isEqualTo(9);
+        // the two which were queued were applied together
+        assertThat(applyCount.get()).isEqualTo(2);
+    }
+
+    private static WatchResponse newWatchResponse(long revision) {
+        Header header = mock(Header.class);
+        when(header.getRevision()).thenReturn(revision);
+        WatchResponse response = mock(WatchResponse.class);
+        when(response.getHeader()).thenReturn(header);
+        when(response.getEvents()).thenReturn(Collections.<WatchEvent>emptyList());
+        return response;
+    }
+}
@@ -8,15 +8,43 @@
 package org.opendaylight.etcd.ds.impl;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+import static org.opendaylight.infrautils.testutils.Asserts.assertThrows;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
+import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchEvent.EventType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.DecodedChange;
 import org.opendaylight.etcd.utils.ByteSequences;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.ContainerNode;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafNode;
+import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeModification;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.data.impl.schema.builder.impl.ImmutableContainerNodeBuilder;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
 
 /**
  * Unit test for {@link EtcdYangKV}.
@@ -36,4 +64,252 @@ public class EtcdYangKVTest {
         assertThat(path).named(ByteSequences.asString(byteSequence)).isEqualTo(path2);
     }
 
+    @Test
+    @SuppressWarnings("resource") // because Client is just mocked anyway
+    public void testCompactAndOriginalValuesCanBothBeRead() throws EtcdException {
+        EtcdYangKV compactKV = newEtcdYangKV(true);
+        EtcdYangKV originalKV = newEtcdYangKV(false);
+        YangInstanceIdentifier path = YangInstanceIdentifier.EMPTY.node(new NodeIdentifier(HelloWorldContainer.QNAME));
+        ByteSequence key = compactKV.toByteSequence(path);
+        LeafNode<Short> leaf = ImmutableNodes.leafNode(HelloWorldContainer.QNAME, (short) 42);
+
+        ByteSequence compactValue = compactKV.toByteSequence(leaf);
+        ByteSequence originalValue = originalKV.toByteSequence(leaf);
+        assertThat(compactValue.size()).isLessThan(originalValue.size());
+
+        for (EtcdYangKV kv : new EtcdYangKV[] { compactKV, originalKV }) {
+            assertThat(kv.decodePut(key, compactValue).getData()).isEqualTo(leaf);
+            assertThat(kv.decodePut(key, originalValue).getData()).isEqualTo(leaf);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("resource") // because Client is just mocked anyway
+    public void testCompressedValuesCanBeReadWithoutCompressor() throws EtcdException {
+        EtcdYangKV compressingKV = new EtcdYangKV("Test", Mockito.mock(Client.class),
+                ByteSequences.fromBytes((byte)'t'), EtcdDataStoreConfig.builder()
+                    .withValueCompressor(DeflateValueCompressor.INSTANCE).withValueCompressionThreshold(100).build(),
+                null, null);
+        YangInstanceIdentifier path = YangInstanceIdentifier.EMPTY.node(new NodeIdentifier(HelloWorldContainer.QNAME));
+        ByteSequence key = compressingKV.toByteSequence(path);
+
+        LeafNode<String> smallLeaf = ImmutableNodes.leafNode(HelloWorldContainer.QNAME, "hello");
+        ByteSequence smallValue = compressingKV.toByteSequence(smallLeaf);
+        assertThat(smallValue.getBytes()[0]).isNotEqualTo(EtcdYangKV.COMPRESSED_MARKER);
+
+        LeafNode<String> largeLeaf = ImmutableNodes.leafNode(HelloWorldContainer.QNAME, Strings.repeat("hello ", 1000));
+        ByteSequence largeValue = compressingKV.toByteSequence(largeLeaf);
+        assertThat(largeValue.getBytes()[0]).isEqualTo(EtcdYangKV.COMPRESSED_MARKER);
+        assertThat(largeValue.size()).isLessThan(1000);
+
+        EtcdYangKV otherKV = newEtcdYangKV(true);
+        assertThat(otherKV.decodePut(key, smallValue).getData()).isEqualTo(smallLeaf);
+        assertThat(otherKV.decodePut(key, largeValue).getData()).isEqualTo(largeLeaf);
+    }
+
+    @Test
+    @SuppressWarnings("resource") // because Client is just mocked anyway
+    public void testValueWithSubtree() throws EtcdException {
+        EtcdYangKV kv = newEtcdYangKV(true);
+        YangInstanceIdentifier path = YangInstanceIdentifier.EMPTY.node(new NodeIdentifier(HelloWorldContainer.QNAME));
+        ByteSequence key = kv.toByteSequence(path);
+        ContainerNode container = ImmutableContainerNodeBuilder.create()
+                .withNodeIdentifier(new NodeIdentifier(HelloWorldContainer.QNAME))
+                .withChild(ImmutableNodes.leafNode(QName.create(HelloWorldContainer.QNAME, "name"), "hello"))
+                .build();
+
+        ContainerNode withSubtree = (ContainerNode) kv.decodePut(key, kv.toByteSequence(container, true)).getData();
+        assertThat(withSubtree).isEqualTo(container);
+
+        ContainerNode shallow = (ContainerNode) kv.decodePut(key, kv.toByteSequence(container, false)).getData();
+        assertThat(shallow.getValue()).isEmpty();
+    }
+
+    @Test
+    @SuppressWarnings("resource") // because Client is just mocked anyway
+    public void testPrefixKeys() throws EtcdException {
+        EtcdYangKV kv = new EtcdYangKV("Test", Mockito.mock(Client.class), ByteSequences.fromBytes((byte)'t'),
+                EtcdDataStoreConfig.builder().withPrefixKeyEncoding(true).build(), null, null);
+        YangInstanceIdentifier parent = YangInstanceIdentifier.EMPTY
+                .node(new NodeIdentifier(HelloWorldContainer.QNAME));
+        YangInstanceIdentifier child = parent.node(new NodeIdentifier(QName.create(HelloWorldContainer.QNAME, "name")));
+        ByteSequence parentKey = kv.toByteSequence(parent);
+        ByteSequence childKey = kv.toByteSequence(child);
+        assertThat(childKey.startsWith(parentKey)).isTrue();
+        assertThat(kv.fromByteSequenceToYangInstanceIdentifier(parentKey)).isEqualTo(parent);
+        assertThat(kv.fromByteSequenceToYangInstanceIdentifier(childKey)).isEqualTo(child);
+        assertThat(kv.fromByteSequenceToYangInstanceIdentifier(kv.toByteSequence(YangInstanceIdentifier.EMPTY)))
+                .isEqualTo(YangInstanceIdentifier.EMPTY);
+
+        // keys in the original format can still be read
+        ByteSequence originalKey = newEtcdYangKV(true).toByteSequence(child);
+        assertThat(originalKey.startsWith(parentKey)).isFalse();
+        assertThat(kv.fromByteSequenceToYangInstanceIdentifier(originalKey)).isEqualTo(child);
+
+        // the DELETE events of a range delete are applied as the delete of its root
+        List<DecodedChange> changes = kv.decodeAll(ImmutableList.of(newDeleteEvent(parentKey, 5),
+                newDeleteEvent(childKey, 5)));
+        assertThat(changes).hasSize(1);
+        assertThat(changes.get(0).getKey()).isEqualTo(parentKey);
+        assertThat(kv.decodeAll(ImmutableList.of(newDeleteEvent(parentKey, 5), newDeleteEvent(childKey, 6))))
+                .hasSize(2);
+    }
+
+    @Test
+    @SuppressWarnings("resource") // because Client is just mocked anyway
+    public void testResyncIntoAppliesOnlyTheDelta() throws EtcdException {
+        KV etcd = mock(KV.class);
+        Client client = mock(Client.class);
+        when(client.getKVClient()).thenReturn(etcd);
+        EtcdYangKV kv = new EtcdYangKV("Test", client, ByteSequences.fromBytes((byte)'t'),
+                EtcdDataStoreConfig.builder().withCompactValueEncoding(true).build(), null, null);
+        QName nameQName = QName.create(HelloWorldContainer.QNAME, "name");
+        QName otherQName = QName.create(HelloWorldContainer.QNAME, "other");
+        YangInstanceIdentifier unchanged = YangInstanceIdentifier.EMPTY
+                .node(new NodeIdentifier(HelloWorldContainer.QNAME));
+        YangInstanceIdentifier modified = unchanged.node(new NodeIdentifier(nameQName));
+        YangInstanceIdentifier deleted = YangInstanceIdentifier.EMPTY.node(new NodeIdentifier(otherQName));
+        LeafNode<String> newLeaf = ImmutableNodes.leafNode(nameQName, "world");
+
+        KeyValue unchangedKV = newKeyValue(kv.toByteSequence(unchanged), null, 5);
+        KeyValue modifiedKV = newKeyValue(kv.toByteSequence(modified), kv.toByteSequence(newLeaf), 12);
+        when(etcd.get(any(ByteSequence.class), any(GetOption.class))).thenAnswer(invocation -> {
+            GetOption option = invocation.getArgument(1);
+            return completedFuture(newGetResponse(option.isKeysOnly()
+                    ? ImmutableList.of(unchangedKV, modifiedKV) : ImmutableList.of(modifiedKV)));
+        });
+
+        ContainerNode localRoot = ImmutableContainerNodeBuilder.create()
+                .withNodeIdentifier(new NodeIdentifier(SchemaContext.NAME))
+                .withChild(ImmutableContainerNodeBuilder.create()
+                        .withNodeIdentifier(new NodeIdentifier(HelloWorldContainer.QNAME))
+                        .withChild(ImmutableNodes.leafNode(nameQName, "hello")).build())
+                .withChild(ImmutableContainerNodeBuilder.create()
+                        .withNodeIdentifier(new NodeIdentifier(otherQName)).build())
+                .build();
+        DataTreeModification mod = mock(DataTreeModification.class);
+        assertThat(kv.resyncInto(10, 20, localRoot, EtcdStorageGranularity.SHALLOW, (key, rev) -> false, mod))
+                .isEmpty();
+
+        verify(mod).delete(deleted);
+        verify(mod).merge(modified, newLeaf);
+        verifyNoMoreInteractions(mod);
+    }
+
+    @Test
+    @SuppressWarnings("resource") // because Client is just mocked anyway
+    public void testParallelDecodeKeepsTheOrder() throws EtcdException {
+        EtcdYangKV kv = newEtcdYangKV(true);
+        QName nameQName = QName.create(HelloWorldContainer.QNAME, "name");
+        ByteSequence key = kv.toByteSequence(YangInstanceIdentifier.EMPTY
+                .node(new NodeIdentifier(HelloWorldContainer.QNAME)).node(new NodeIdentifier(nameQName)));
+        int count = EtcdYangKV.PARALLEL_DECODE_THRESHOLD * 2;
+        List<WatchEvent> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(new WatchEvent(newKeyValue(key, kv.toByteSequence(ImmutableNodes.leafNode(nameQName, "v" + i)),
+                    i + 1), null, EventType.PUT));
+        }
+
+        List<DecodedChange> changes = kv.decodeAll(events);
+        assertThat(changes).hasSize(count);
+        for (int i = 0; i < count; i++) {
+            assertThat(changes.get(i).getModRevision()).isEqualTo(i + 1L);
+            assertThat(changes.get(i).getData()).isEqualTo(ImmutableNodes.leafNode(nameQName, "v" + i));
+        }
+
+        // a failure of any one of them fails all of them, as an EtcdException (not a RuntimeException)
+        events.set(count / 2, new WatchEvent(newKeyValue(key, ByteSequences.fromBytes((byte) 0x7F), count / 2 + 1),
+                null, EventType.PUT));
+        assertThrows(EtcdException.class, () -> kv.decodeAll(events));
+    }
+
+    @Test
+    @SuppressWarnings("resource") // because Client is just mocked anyway
+    public void testReadAllIntoReadsInChunks() throws EtcdException {
+        KV etcd = mock(KV.class);
+        Client client = mock(Client.class);
+        when(client.getKVClient()).thenReturn(etcd);
+        EtcdYangKV kv = new EtcdYangKV("Test", client, ByteSequences.fromBytes((byte)'t'),
+                EtcdDataStoreConfig.builder().withInitialLoadChunkSize(2).build(), null, null);
+        List<KeyValue> kvs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            QName qname = QName.create(HelloWorldContainer.QNAME, "leaf" + i);
+            kvs.add(newKeyValue(kv.toByteSequence(YangInstanceIdentifier.EMPTY.node(new NodeIdentifier(qname))),
+                    kv.toByteSequence(ImmutableNodes.leafNode(qname, i)), 5));
+        }
+        kvs.sort((kv1, kv2) -> compare(kv1.getKey(), kv2.getKey()));
+
+        // etcd returns the keys from the requested one on, at most as many as the limit, and whether there are more
+        List<ByteSequence> fromKeys = new ArrayList<>();
+        List<Integer> appliedBeforeRead = new ArrayList<>();
+        List<DecodedChange> applied = new ArrayList<>();
+        when(etcd.get(any(ByteSequence.class), any(GetOption.class))).thenAnswer(invocation -> {
+            ByteSequence fromKey = invocation.getArgument(0);
+            GetOption option = invocation.getArgument(1);
+            assertThat(option.getRevision()).isEqualTo(20L);
+            fromKeys.add(fromKey);
+            appliedBeforeRead.add(applied.size());
+            List<KeyValue> remaining = kvs.stream().filter(keyValue -> compare(keyValue.getKey(), fromKey) >= 0)
+                    .collect(Collectors.toList());
+            List<KeyValue> chunk = remaining.subList(0, Math.min((int) option.getLimit(), remaining.size()));
+            GetResponse response = newGetResponse(chunk);
+            when(response.isMore()).thenReturn(remaining.size() > chunk.size());
+            return completedFuture(response);
+        });
+
+        DataTreeModification mod = mock(DataTreeModification.class);
+        assertThat(kv.readAllInto(20, mod, applied::add)).isEmpty();
+
+        // every key is applied exactly once, in order
+        assertThat(applied).hasSize(kvs.size());
+        for (int i = 0; i < kvs.size(); i++) {
+            assertThat(applied.get(i).getKey()).isEqualTo(kvs.get(i).getKey());
+        }
+        // each next chunk continues right after the last key of the previous one
+        assertThat(fromKeys).containsExactly(ByteSequences.fromBytes((byte)'t'),
+                ByteSequences.append(kvs.get(1).getKey(), (byte) 0),
+                ByteSequences.append(kvs.get(3).getKey(), (byte) 0)).inOrder();
+        // and is requested before the previous one is decoded and applied
+        assertThat(appliedBeforeRead).containsExactly(0, 0, 2).inOrder();
+    }
+
+    private static int compare(ByteSequence key1, ByteSequence key2) {
+        byte[] bytes1 = key1.getBytes();
+        byte[] bytes2 = key2.getBytes();
+        for (int i = 0; i < Math.min(bytes1.length, bytes2.length); i++) {
+            int diff = Byte.toUnsignedInt(bytes1[i]) - Byte.toUnsignedInt(bytes2[i]);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return bytes1.length - bytes2.length;
+    }
+
+    private static KeyValue newKeyValue(ByteSequence key, @Nullable ByteSequence value, long modRevision) {
+        io.etcd.jetcd.api.KeyValue.Builder builder = io.etcd.jetcd.api.KeyValue.newBuilder()
+                .setKey(ByteString.copyFrom(key.getBytes())).setModRevision(modRevision);
+        if (value != null) {
+            builder.setValue(ByteString.copyFrom(value.getBytes()));
+        }
+        return new KeyValue(builder.build());
+    }
+
+    private static GetResponse newGetResponse(List<KeyValue> kvs) {
+        GetResponse response = mock(GetResponse.class);
+        when(response.getKvs()).thenReturn(kvs);
+        when(response.getCount()).thenReturn((long) kvs.size());
+        return response;
+    }
+
+    private static WatchEvent newDeleteEvent(ByteSequence key, long modRevision) {
+        return new WatchEvent(new KeyValue(io.etcd.jetcd.api.KeyValue.newBuilder()
+                .setKey(ByteString.copyFrom(key.getBytes())).setModRevision(modRevision).build()),
+                null, EventType.DELETE);
+    }
+
+    private static EtcdYangKV newEtcdYangKV(boolean isCompact) {
+        return new EtcdYangKV("Test", Mockito.mock(Client.class), ByteSequences.fromBytes((byte)'t'),
+                EtcdDataStoreConfig.builder().withCompactValueEncoding(isCompact).build(), null, null);
+    }
+
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+
+/**
+ * Unit test for {@link LoadedTopLevelNodes}.
+ */
+public class LoadedTopLevelNodesTest {
+
+    private final PathArgument first = newTopLevelNode("first");
+    private final PathArgument second = newTopLevelNode("second");
+    private final PathArgument third = newTopLevelNode("third");
+
+    private final LoadedTopLevelNodes nodes = new LoadedTopLevelNodes(100);
+
+    @Test
+    public void testLeastRecentlyAccessedIsEvictedFirst() {
+        nodes.loaded(first, 40);
+        nodes.loaded(second, 40);
+        nodes.accessed(first);
+        nodes.loaded(third, 40);
+        assertThat(nodes.evict(third)).containsExactly(second);
+        assertThat(nodes.isLoaded(second)).isFalse();
+        assertThat(nodes.getTotalSize()).isEqualTo(80L);
+        assertThat(nodes.evict(third)).isEmpty();
+    }
+
+    @Test
+    public void testWatchedChangesGrowButDontCountAsAccess() {
+        nodes.loaded(first, 40);
+        nodes.loaded(second, 40);
+        nodes.changed(first, 30);
+        // not loaded, so not accounted for
+        nodes.changed(third, 30);
+        assertThat(nodes.getTotalSize()).isEqualTo(110L);
+        assertThat(nodes.evict(null)).containsExactly(first);
+    }
+
+    @Test
+    public void testReloadKeepsAccessOrder() {
+        nodes.loaded(first, 40);
+        nodes.loaded(second, 40);
+        nodes.loaded(first, 70);
+        assertThat(nodes.getTotalSize()).isEqualTo(110L);
+        assertThat(nodes.evict(null)).containsExactly(first);
+    }
+
+    @Test
+    public void testPinnedAreNeverEvicted() {
+        nodes.loaded(first, 80);
+        nodes.loaded(second, 80);
+        nodes.pin(first);
+        nodes.pin(first);
+        nodes.unpin(first);
+        assertThat(nodes.evict(null)).containsExactly(second);
+
+        nodes.loaded(second, 80);
+        nodes.pinAll();
+        assertThat(nodes.evict(null)).isEmpty();
+        nodes.unpinAll();
+        nodes.unpin(first);
+        assertThat(nodes.evict(second)).containsExactly(first);
+    }
+
+    @Test
+    public void testAllLoadedUntilEviction() {
+        nodes.allLoaded(ImmutableMap.of(first, 60L, second, 30L));
+        assertThat(nodes.isLoaded(third)).isTrue();
+        // one which was created after everything was loaded
+        nodes.changed(third, 20);
+        assertThat(nodes.getLoaded()).containsExactly(first, second, third);
+        assertThat(nodes.evict(null)).containsExactly(first);
+        assertThat(nodes.isAllLoaded()).isFalse();
+        assertThat(nodes.isLoaded(first)).isFalse();
+        assertThat(nodes.isLoaded(third)).isTrue();
+    }
+
+    private static PathArgument newTopLevelNode(String localName) {
+        return new NodeIdentifier(QName.create("urn:opendaylight:test", "2019-01-01", localName));
+    }
+}
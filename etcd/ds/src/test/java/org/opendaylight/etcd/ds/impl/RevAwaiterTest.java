@@ -7,12 +7,15 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
+import static com.google.common.truth.Truth.assertThat;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.opendaylight.infrautils.testutils.Asserts.assertThrows;
 
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 import org.junit.Rule;
@@ -83,4 +86,35 @@ public class RevAwaiterTest {
         executor.awaitTermination(5, MILLISECONDS);
     }
 
+    @Test public void testAwaitAsync() throws TimeoutException, InterruptedException, ExecutionException {
+        CompletableFuture<Void> future2 = awaiter.awaitAsync(2, MS_100).toCompletableFuture();
+        CompletableFuture<Void> future1 = awaiter.awaitAsync(1, MS_100).toCompletableFuture();
+        awaiter.update(1);
+        assertThat(future1.isDone()).isTrue();
+        assertThat(future2.isDone()).isFalse();
+        awaiter.update(3);
+        future2.get(200, MILLISECONDS);
+        assertThat(awaiter.awaitAsync(3, MS_100).toCompletableFuture().isDone()).isTrue();
+        awaiter.close();
+    }
+
+    @Test public void testAwaitAsyncTimeout() throws InterruptedException {
+        CompletableFuture<Void> future = awaiter.awaitAsync(1, MS_100).toCompletableFuture();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(1, SECONDS));
+        assertThat(e.getCause()).isInstanceOf(TimeoutException.class);
+        assertThat(awaiter.toString()).endsWith("waiters=0");
+        awaiter.close();
+    }
+
+    @Test public void testTimedOutAwaitIsRemoved() {
+        assertThrows(TimeoutException.class, () -> awaiter.await(1, MS_100));
+        assertThat(awaiter.toString()).endsWith("waiters=0");
+    }
+
+    @Test public void testCloseFailsWaiters() {
+        CompletableFuture<Void> future = awaiter.awaitAsync(1, MS_100).toCompletableFuture();
+        awaiter.close();
+        assertThat(future.isCompletedExceptionally()).isTrue();
+    }
+
 }
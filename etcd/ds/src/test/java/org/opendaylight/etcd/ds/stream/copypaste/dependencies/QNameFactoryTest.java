@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.stream.copypaste.dependencies;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.opendaylight.yangtools.yang.common.QName;
+
+/**
+ * Unit test for {@link QNameFactory}.
+ */
+@SuppressWarnings("javadoc")
+public class QNameFactoryTest {
+
+    @Test
+    public void testPartsAreCanonical() {
+        QName qname = QNameFactory.create("name", "urn:test", "2019-01-01");
+        assertThat(qname).isEqualTo(QName.create("urn:test", "2019-01-01", "name"));
+        assertThat(QNameFactory.create(new String("name"), new String("urn:test"), new String("2019-01-01")))
+                .isSameAs(qname);
+        assertThat(QNameFactory.create("name", "urn:test", "2019-01-01")).isSameAs(qname.intern());
+    }
+
+    @Test
+    public void testEmptyAndNullRevisionAreTheSame() {
+        QName qname = QNameFactory.create("name", "urn:test", null);
+        assertThat(qname.getRevision().isPresent()).isFalse();
+        assertThat(QNameFactory.create("name", "urn:test", "")).isSameAs(qname);
+        assertThat(qname).isEqualTo(QName.create("urn:test", "name"));
+    }
+
+    @Test
+    public void testDifferentPartsAreDifferent() {
+        QName qname = QNameFactory.create("name", "urn:test", null);
+        assertThat(QNameFactory.create("name", "urn:other", null)).isNotEqualTo(qname);
+        assertThat(QNameFactory.create("other", "urn:test", null)).isNotEqualTo(qname);
+        assertThat(QNameFactory.create("name", "urn:test", "2019-01-01")).isNotEqualTo(qname);
+    }
+}
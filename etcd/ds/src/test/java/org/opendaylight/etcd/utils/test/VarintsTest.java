@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2019 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.utils.test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.opendaylight.infrautils.testutils.Asserts.assertThrows;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import org.junit.Test;
+import org.opendaylight.etcd.utils.Varints;
+
+/**
+ * Unit test for {@link Varints}.
+ */
+public class VarintsTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        assertRoundTrip(0, 1);
+        assertRoundTrip(1, 1);
+        assertRoundTrip(127, 1);
+        assertRoundTrip(128, 2);
+        assertRoundTrip(16383, 2);
+        assertRoundTrip(16384, 3);
+        assertRoundTrip(Integer.MAX_VALUE, 5);
+        assertRoundTrip(-1, 5);
+    }
+
+    @Test
+    public void testTooLong() {
+        byte[] bytes = { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01 };
+        assertThrows(IOException.class, () -> Varints.readUnsignedVarInt(ByteStreams.newDataInput(bytes)));
+    }
+
+    private static void assertRoundTrip(int value, int expectedLength) throws IOException {
+        ByteArrayDataOutput output = ByteStreams.newDataOutput();
+        Varints.writeUnsignedVarInt(output, value);
+        byte[] bytes = output.toByteArray();
+        assertThat(bytes).hasLength(expectedLength);
+        assertThat(Varints.readUnsignedVarInt(ByteStreams.newDataInput(bytes))).isEqualTo(value);
+    }
+}